@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits an H.264 Annex-B byte stream into NAL units and access units.
+ * <p>
+ * A new access unit begins at an access unit delimiter, a sequence or picture
+ * parameter set, an SEI message or any of the reserved types 14 to 18 that
+ * follows a coded picture, or at a slice whose first_mb_in_slice is zero.  This
+ * follows section 7.4.1.2.3 of the specification without decoding the slice
+ * header beyond its first field, which is enough for streams whose pictures
+ * start at the first macroblock, as encoders produce them.
+ * </p><p>
+ * An instance is a flyweight over a buffer: it reads the buffer with absolute
+ * gets between its position and limit as they were when {@link #reset} was
+ * called, never moves them and never allocates.  The caller must not change the
+ * buffer's limit while parsing except briefly between calls.
+ * </p><p>
+ * This object is not thread-safe.
+ * </p>
+ */
+public final class AnnexBParser {
+    public static final int NAL_SLICE = 1;
+    public static final int NAL_SLICE_PARTITION_A = 2;
+    public static final int NAL_IDR_SLICE = 5;
+    public static final int NAL_SEI = 6;
+    public static final int NAL_SPS = 7;
+    public static final int NAL_PPS = 8;
+    public static final int NAL_AUD = 9;
+
+    /**
+     * The access unit contains an IDR picture.
+     */
+    public static final int FLAG_KEY_FRAME = FrameHeader.FLAG_KEY_FRAME;
+
+    /**
+     * The access unit contains no coded picture, only parameter sets and the like.
+     */
+    public static final int FLAG_CODEC_CONFIG = FrameHeader.FLAG_CODEC_CONFIG;
+
+    private ByteBuffer mBuffer;
+    private int mStart;
+    private int mLimit;
+    private int mScanPosition;
+
+    // The current NAL unit.
+    private int mNalOffset;
+    private int mNalPayload;
+    private int mNalType;
+
+    // The current access unit, and whether the NAL unit that ended the previous
+    // one is the first of the next.
+    private boolean mFirstAccessUnit;
+    private boolean mHavePendingNal;
+    private int mAccessUnitStart;
+    private int mAccessUnitEnd;
+    private int mAccessUnitFlags;
+
+    /**
+     * Starts parsing the remaining content of a buffer.
+     */
+    public void reset(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mStart = buffer.position();
+        mLimit = buffer.limit();
+        mScanPosition = mStart;
+        mNalOffset = mStart;
+        mNalPayload = mStart;
+        mNalType = 0;
+        mFirstAccessUnit = true;
+        mHavePendingNal = false;
+        mAccessUnitStart = mStart;
+        mAccessUnitEnd = mStart;
+        mAccessUnitFlags = 0;
+    }
+
+    /**
+     * Advances to the next NAL unit.
+     *
+     * @return False if there are no more NAL units.
+     */
+    public boolean nextNalUnit() {
+        final int startCode = findStartCode(mBuffer, mScanPosition, mLimit);
+        if (startCode < 0) {
+            mScanPosition = mLimit;
+            return false;
+        }
+
+        // Include the zero byte of a four byte start code.
+        mNalOffset = startCode > mNalPayload && mBuffer.get(startCode - 1) == 0
+                ? startCode - 1 : startCode;
+        mNalPayload = startCode + 3;
+        mNalType = mNalPayload < mLimit ? mBuffer.get(mNalPayload) & 0x1f : 0;
+        mScanPosition = mNalPayload;
+        return true;
+    }
+
+    /**
+     * Gets the offset of the current NAL unit's start code.
+     */
+    public int getNalOffset() {
+        return mNalOffset;
+    }
+
+    /**
+     * Gets the offset of the current NAL unit's header, just after its start code.
+     */
+    public int getNalPayloadOffset() {
+        return mNalPayload;
+    }
+
+    /**
+     * Gets the type of the current NAL unit, such as {@link #NAL_IDR_SLICE}.
+     */
+    public int getNalType() {
+        return mNalType;
+    }
+
+    /**
+     * Advances to the next access unit.
+     * <p>
+     * Access units cover the buffer without gaps: any bytes before the first start
+     * code belong to the first one.  Content without any start code is returned
+     * as a single access unit with no flags.
+     * </p>
+     *
+     * @return False if there are no more access units.
+     */
+    public boolean nextAccessUnit() {
+        if (!mHavePendingNal && !nextNalUnit()) {
+            if (mFirstAccessUnit && mStart < mLimit) {
+                mFirstAccessUnit = false;
+                mAccessUnitStart = mStart;
+                mAccessUnitEnd = mLimit;
+                mAccessUnitFlags = 0;
+                return true;
+            }
+            return false;
+        }
+
+        mAccessUnitStart = mFirstAccessUnit ? mStart : mNalOffset;
+        mFirstAccessUnit = false;
+        mHavePendingNal = false;
+
+        boolean hasPicture = false;
+        int flags = 0;
+        for (;;) {
+            if (isVcl(mNalType)) {
+                hasPicture = true;
+                if (mNalType == NAL_IDR_SLICE) {
+                    flags |= FLAG_KEY_FRAME;
+                }
+            }
+
+            if (!nextNalUnit()) {
+                mAccessUnitEnd = mLimit;
+                break;
+            }
+            if (hasPicture && startsAccessUnit()) {
+                mAccessUnitEnd = mNalOffset;
+                mHavePendingNal = true;
+                break;
+            }
+        }
+        if (!hasPicture) {
+            flags |= FLAG_CODEC_CONFIG;
+        }
+        mAccessUnitFlags = flags;
+        return true;
+    }
+
+    /**
+     * Gets the offset of the first byte of the current access unit.
+     */
+    public int getAccessUnitStart() {
+        return mAccessUnitStart;
+    }
+
+    /**
+     * Gets the offset just past the last byte of the current access unit.
+     */
+    public int getAccessUnitEnd() {
+        return mAccessUnitEnd;
+    }
+
+    /**
+     * Gets the flags of the current access unit, such as {@link #FLAG_KEY_FRAME}.
+     */
+    public int getAccessUnitFlags() {
+        return mAccessUnitFlags;
+    }
+
+    /**
+     * Returns true if the content has an IDR slice or a sequence parameter set,
+     * either of which starts a point from which decoding can begin.
+     */
+    public boolean containsKeyFrame(ByteBuffer buffer) {
+        reset(buffer);
+        while (nextNalUnit()) {
+            if (mNalType == NAL_IDR_SLICE || mNalType == NAL_SPS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the next three byte start code.
+     *
+     * @param buffer The buffer to search with absolute gets.
+     * @param from The offset at which to start searching.
+     * @param limit The offset at which to stop searching.
+     * @return The offset of the start code, or -1 if there is none.
+     */
+    public static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        if (buffer.hasArray()) {
+            final int arrayOffset = buffer.arrayOffset();
+            final int index = findStartCode(buffer.array(),
+                    from + arrayOffset, limit + arrayOffset);
+            return index >= 0 ? index - arrayOffset : -1;
+        }
+
+        // Look at the last byte of each candidate.  Anything but 0 or 1 there
+        // rules out start codes overlapping it, so skip three bytes ahead.
+        int i = from + 2;
+        while (i < limit) {
+            final int b = buffer.get(i);
+            if (b == 0) {
+                i += 1;
+            } else if (b == 1 && buffer.get(i - 1) == 0 && buffer.get(i - 2) == 0) {
+                return i - 2;
+            } else {
+                i += 3;
+            }
+        }
+        return -1;
+    }
+
+    private static int findStartCode(byte[] array, int from, int limit) {
+        int i = from + 2;
+        while (i < limit) {
+            final int b = array[i];
+            if (b == 0) {
+                i += 1;
+            } else if (b == 1 && array[i - 1] == 0 && array[i - 2] == 0) {
+                return i - 2;
+            } else {
+                i += 3;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isVcl(int type) {
+        return type >= NAL_SLICE && type <= NAL_IDR_SLICE;
+    }
+
+    // Whether the current NAL unit starts a new access unit when it follows
+    // a coded picture.
+    private boolean startsAccessUnit() {
+        switch (mNalType) {
+            case NAL_SEI:
+            case NAL_SPS:
+            case NAL_PPS:
+            case NAL_AUD:
+            case 14:
+            case 15:
+            case 16:
+            case 17:
+            case 18:
+                return true;
+            case NAL_SLICE:
+            case NAL_SLICE_PARTITION_A:
+            case NAL_IDR_SLICE:
+                // first_mb_in_slice is zero when the first bit of its
+                // exponential Golomb code is set.
+                return mNalPayload + 1 < mLimit
+                        && (mBuffer.get(mNalPayload + 1) & 0x80) != 0;
+            default:
+                return false;
+        }
+    }
+}
@@ -17,76 +17,346 @@
 package com.android.accessorydisplay.common;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Maintains a bounded pool of buffers.  Attempts to acquire buffers beyond the maximum
  * count will block until other buffers are released.
+ * <p>
+ * Buffers are grouped into power of two size classes, each with its own free list
+ * and lock, so buffers of the right size are reused instead of being reallocated and
+ * threads working with different sizes do not contend.  Only a pool that has run out
+ * of buffers takes the shared lock to wait.  Buffers may optionally be allocated
+ * off-heap with {@link ByteBuffer#allocateDirect}.
+ * </p><p>
+ * The free buffers kept across all size classes never add up to more than a
+ * byte limit, so a burst of large messages does not pin a full set of the
+ * largest buffers, and the intermediate sizes they grew through, for the life
+ * of the pool.  Buffers released beyond the limit are left to the garbage
+ * collector.
+ * </p><p>
+ * This object is thread-safe.
+ * </p>
  */
-final class BufferPool {
-    private final int mInitialBufferSize;
+public final class BufferPool {
+    /**
+     * Default limit on the total size of the free buffers kept for reuse.  The
+     * limit is raised to hold a full set of the smallest buffers if need be.
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 8 * 1024 * 1024;
+
     private final int mMaxBufferSize;
-    private final ByteBuffer[] mBuffers;
-    private int mAllocated;
-    private int mAvailable;
+    private final int mMaxBuffers;
+    private final boolean mDirect;
+    private final long mMaxRetainedBytes;
+    private final SizeClass[] mSizeClasses;
+
+    // The total capacity of the free buffers, never more than mMaxRetainedBytes.
+    private final AtomicLong mRetainedBytes = new AtomicLong();
+
+    // The number of buffers currently acquired, never more than mMaxBuffers.
+    private final AtomicInteger mAcquired = new AtomicInteger();
+
+    // Threads waiting for a buffer to be released wait on this lock.
+    private final Object mWaitLock = new Object();
+    private final AtomicInteger mWaiters = new AtomicInteger();
+
+    // Statistics.
+    private final AtomicLong mAllocationCount = new AtomicLong();
+    private final AtomicLong mGrowCount = new AtomicLong();
+    private final AtomicLong mWaitCount = new AtomicLong();
+    private final AtomicLong mWaitTimeNanos = new AtomicLong();
+    private final AtomicInteger mHighWaterMark = new AtomicInteger();
 
+    /**
+     * Creates a pool of heap buffers.
+     *
+     * @param initialBufferSize The size of the smallest size class, rounded up to
+     * a power of two.
+     * @param maxBufferSize The maximum size of a buffer.
+     * @param maxBuffers The maximum number of buffers that may be acquired at once.
+     */
     public BufferPool(int initialBufferSize, int maxBufferSize, int maxBuffers) {
-        mInitialBufferSize = initialBufferSize;
+        this(initialBufferSize, maxBufferSize, maxBuffers, false);
+    }
+
+    /**
+     * Creates a pool of buffers.
+     *
+     * @param initialBufferSize The size of the smallest size class, rounded up to
+     * a power of two.
+     * @param maxBufferSize The maximum size of a buffer.
+     * @param maxBuffers The maximum number of buffers that may be acquired at once.
+     * @param direct True to allocate direct buffers outside of the Java heap.
+     */
+    public BufferPool(int initialBufferSize, int maxBufferSize, int maxBuffers,
+            boolean direct) {
+        this(initialBufferSize, maxBufferSize, maxBuffers, direct,
+                DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Creates a pool of buffers with a limit on the memory it keeps.
+     *
+     * @param initialBufferSize The size of the smallest size class, rounded up to
+     * a power of two.
+     * @param maxBufferSize The maximum size of a buffer.
+     * @param maxBuffers The maximum number of buffers that may be acquired at once.
+     * @param direct True to allocate direct buffers outside of the Java heap.
+     * @param maxRetainedBytes The limit on the total size of the free buffers kept
+     * for reuse, which is raised to hold maxBuffers of the smallest buffers.
+     */
+    public BufferPool(int initialBufferSize, int maxBufferSize, int maxBuffers,
+            boolean direct, long maxRetainedBytes) {
+        if (initialBufferSize <= 0 || maxBufferSize <= 0 || maxBuffers <= 0
+                || maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("Buffer pool sizes must be positive.");
+        }
+
         mMaxBufferSize = maxBufferSize;
-        mBuffers = new ByteBuffer[maxBuffers];
+        mMaxBuffers = maxBuffers;
+        mDirect = direct;
+
+        int capacity = Math.min(roundUpToPowerOfTwo(initialBufferSize), maxBufferSize);
+        mMaxRetainedBytes = Math.max(maxRetainedBytes, (long)capacity * maxBuffers);
+        int count = 1;
+        for (int c = capacity; c < maxBufferSize; c *= 2) {
+            count += 1;
+        }
+        mSizeClasses = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            mSizeClasses[i] = new SizeClass(Math.min(capacity, maxBufferSize), maxBuffers);
+            capacity *= 2;
+        }
+    }
+
+    /**
+     * Returns true if the pool allocates direct buffers.
+     */
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    /**
+     * Gets the maximum size of a buffer.
+     */
+    public int getMaxBufferSize() {
+        return mMaxBufferSize;
     }
 
+    /**
+     * Acquires a buffer with at least the needed capacity, blocking until one
+     * is available.  The buffer is cleared.
+     */
     public ByteBuffer acquire(int needed) {
-        synchronized (this) {
-            for (;;) {
-                if (mAvailable != 0) {
-                    mAvailable -= 1;
-                    return grow(mBuffers[mAvailable], needed);
+        final SizeClass sizeClass = chooseSizeClass(needed);
+        reserve();
+        return take(sizeClass);
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        recycle(buffer);
+        mAcquired.decrementAndGet();
+        if (mWaiters.get() != 0) {
+            synchronized (mWaitLock) {
+                mWaitLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Ensures that an acquired buffer has at least the needed capacity.  If it does not,
+     * its contents up to the current position are moved into a larger buffer and the
+     * old buffer is returned to its free list.
+     */
+    public ByteBuffer grow(ByteBuffer buffer, int needed) {
+        if (buffer.capacity() >= needed) {
+            return buffer;
+        }
+
+        mGrowCount.incrementAndGet();
+        final ByteBuffer newBuffer = take(chooseSizeClass(needed));
+        buffer.flip();
+        newBuffer.put(buffer);
+        recycle(buffer);
+        return newBuffer;
+    }
+
+    /**
+     * Gets the number of buffers that have been allocated.
+     */
+    public long getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    /**
+     * Gets the number of times an acquired buffer had to be grown.
+     */
+    public long getGrowCount() {
+        return mGrowCount.get();
+    }
+
+    /**
+     * Gets the number of times a caller had to wait because all buffers were in use.
+     */
+    public long getWaitCount() {
+        return mWaitCount.get();
+    }
+
+    /**
+     * Gets the total time callers spent waiting for buffers in nanoseconds.
+     */
+    public long getWaitTimeNanos() {
+        return mWaitTimeNanos.get();
+    }
+
+    /**
+     * Gets the largest number of buffers that have been acquired at once.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark.get();
+    }
+
+    /**
+     * Gets the total capacity of the free buffers kept for reuse.
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes.get();
+    }
+
+    /**
+     * Gets the number of buffers that are currently acquired.
+     */
+    public int getAcquiredCount() {
+        return mAcquired.get();
+    }
+
+    private void reserve() {
+        if (tryReserve()) {
+            return;
+        }
+
+        mWaitCount.incrementAndGet();
+        final long startTime = System.nanoTime();
+        mWaiters.incrementAndGet();
+        try {
+            synchronized (mWaitLock) {
+                while (!tryReserve()) {
+                    try {
+                        mWaitLock.wait();
+                    } catch (InterruptedException ex) {
+                    }
                 }
+            }
+        } finally {
+            mWaiters.decrementAndGet();
+        }
+        mWaitTimeNanos.addAndGet(System.nanoTime() - startTime);
+    }
 
-                if (mAllocated < mBuffers.length) {
-                    mAllocated += 1;
-                    return ByteBuffer.allocate(chooseCapacity(mInitialBufferSize, needed));
+    private boolean tryReserve() {
+        for (;;) {
+            final int acquired = mAcquired.get();
+            if (acquired >= mMaxBuffers) {
+                return false;
+            }
+            if (mAcquired.compareAndSet(acquired, acquired + 1)) {
+                for (;;) {
+                    final int highWaterMark = mHighWaterMark.get();
+                    if (acquired < highWaterMark
+                            || mHighWaterMark.compareAndSet(highWaterMark, acquired + 1)) {
+                        return true;
+                    }
                 }
+            }
+        }
+    }
+
+    private ByteBuffer take(SizeClass sizeClass) {
+        ByteBuffer buffer = sizeClass.poll();
+        if (buffer != null) {
+            mRetainedBytes.addAndGet(-sizeClass.mCapacity);
+        } else {
+            mAllocationCount.incrementAndGet();
+            buffer = mDirect ? ByteBuffer.allocateDirect(sizeClass.mCapacity)
+                    : ByteBuffer.allocate(sizeClass.mCapacity);
+        }
+        return buffer;
+    }
 
-                try {
-                    wait();
-                } catch (InterruptedException ex) {
+    private void recycle(ByteBuffer buffer) {
+        buffer.clear();
+        final int capacity = buffer.capacity();
+        for (SizeClass sizeClass : mSizeClasses) {
+            if (sizeClass.mCapacity == capacity) {
+                if (tryRetain(capacity) && !sizeClass.offer(buffer)) {
+                    mRetainedBytes.addAndGet(-capacity);
                 }
+                return;
             }
         }
     }
 
-    public void release(ByteBuffer buffer) {
-        synchronized (this) {
-            buffer.clear();
-            mBuffers[mAvailable++] = buffer;
-            notifyAll();
+    private boolean tryRetain(int capacity) {
+        for (;;) {
+            final long retained = mRetainedBytes.get();
+            if (retained + capacity > mMaxRetainedBytes) {
+                return false;
+            }
+            if (mRetainedBytes.compareAndSet(retained, retained + capacity)) {
+                return true;
+            }
         }
     }
 
-    public ByteBuffer grow(ByteBuffer buffer, int needed) {
-        int capacity = buffer.capacity();
-        if (capacity < needed) {
-            final ByteBuffer oldBuffer = buffer;
-            capacity = chooseCapacity(capacity, needed);
-            buffer = ByteBuffer.allocate(capacity);
-            oldBuffer.flip();
-            buffer.put(oldBuffer);
+    private SizeClass chooseSizeClass(int needed) {
+        if (needed > mMaxBufferSize) {
+            throw new IllegalArgumentException("Requested size " + needed
+                    + " is larger than maximum buffer size " + mMaxBufferSize + ".");
         }
-        return buffer;
+        for (SizeClass sizeClass : mSizeClasses) {
+            if (sizeClass.mCapacity >= needed) {
+                return sizeClass;
+            }
+        }
+        return mSizeClasses[mSizeClasses.length - 1];
     }
 
-    private int chooseCapacity(int capacity, int needed) {
-        while (capacity < needed) {
-            capacity *= 2;
+    private static int roundUpToPowerOfTwo(int value) {
+        final int highestOneBit = Integer.highestOneBit(value);
+        return highestOneBit == value ? value : highestOneBit << 1;
+    }
+
+    private static final class SizeClass {
+        public final int mCapacity;
+        private final ByteBuffer[] mFree;
+        private int mCount;
+
+        public SizeClass(int capacity, int maxBuffers) {
+            mCapacity = capacity;
+            mFree = new ByteBuffer[maxBuffers];
         }
-        if (capacity > mMaxBufferSize) {
-            if (needed > mMaxBufferSize) {
-                throw new IllegalArgumentException("Requested size " + needed
-                        + " is larger than maximum buffer size " + mMaxBufferSize + ".");
+
+        public synchronized ByteBuffer poll() {
+            if (mCount == 0) {
+                return null;
+            }
+            final ByteBuffer buffer = mFree[--mCount];
+            mFree[mCount] = null;
+            return buffer;
+        }
+
+        // Returns false if the buffer was dropped because the free list is full.
+        public synchronized boolean offer(ByteBuffer buffer) {
+            if (mCount == mFree.length) {
+                return false;
             }
-            capacity = mMaxBufferSize;
+            mFree[mCount++] = buffer;
+            return true;
         }
-        return capacity;
     }
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+/**
+ * A source of monotonic time, so that time can be faked when needed.
+ */
+public interface Clock {
+    /**
+     * The clock used by default, which reads {@link System#nanoTime}.
+     * <p>
+     * On Android this is the same monotonic clock that timestamps the buffers
+     * produced by a virtual display, and so the presentation time of the frames
+     * that the encoder makes from them.
+     * </p>
+     */
+    public static final Clock SYSTEM = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Gets the current time in nanoseconds.
+     */
+    public long nanoTime();
+}
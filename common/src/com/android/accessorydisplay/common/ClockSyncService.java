@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import android.content.Context;
+import android.os.Handler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Estimates the offset between the local clock and the peer's clock.
+ * <p>
+ * Both sides answer pings.  Once started, this service also pings the peer:
+ * a quick burst to get an estimate soon after connecting, then periodically to
+ * follow drift.  Like NTP, each exchange yields a round trip time and an offset,
+ * and the offset is taken from the exchange with the smallest round trip among
+ * the most recent ones since it was least disturbed by queueing.
+ * </p><p>
+ * The estimate may be read from any thread.
+ * </p>
+ */
+public class ClockSyncService extends Service {
+    private static final int SAMPLE_COUNT = 8;
+    private static final long BURST_PING_INTERVAL_MILLIS = 100;
+    private static final long PING_INTERVAL_MILLIS = 2000;
+
+    private final Clock mClock;
+    private final Handler mHandler;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(24);
+    private boolean mRunning;
+    private int mPingCount;
+
+    // The most recent samples, used as a ring, and the number of samples taken.
+    private final long[] mSampleRoundTrips = new long[SAMPLE_COUNT];
+    private final long[] mSampleOffsets = new long[SAMPLE_COUNT];
+    private int mSampleCount;
+
+    // The current estimate.
+    private volatile boolean mSynchronized;
+    private volatile long mOffsetNanos;
+    private volatile long mRoundTripNanos;
+    private final LatencyHistogram mRoundTripHistogram = new LatencyHistogram();
+
+    public ClockSyncService(Context context, Transport transport, Clock clock) {
+        super(context, transport, Protocol.ClockSyncService.ID);
+        mClock = clock;
+        mHandler = transport.getHandler();
+    }
+
+    @Override
+    public void start() {
+        super.start();
+
+        mRunning = true;
+        mPingCount = 0;
+        mHandler.post(mPingRunnable);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+
+        mRunning = false;
+        mHandler.removeCallbacks(mPingRunnable);
+    }
+
+    /**
+     * Gets the clock used for the local side.
+     */
+    public Clock getClock() {
+        return mClock;
+    }
+
+    /**
+     * Returns true once the offset to the peer's clock has been estimated.
+     */
+    public boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * Gets the estimated time on the peer's clock minus the time on the local clock.
+     */
+    public long getOffsetNanos() {
+        return mOffsetNanos;
+    }
+
+    /**
+     * Gets the round trip time of the exchange the offset was taken from.
+     */
+    public long getRoundTripNanos() {
+        return mRoundTripNanos;
+    }
+
+    /**
+     * Gets the distribution of round trip times of all exchanges.
+     */
+    public LatencyHistogram getRoundTripHistogram() {
+        return mRoundTripHistogram;
+    }
+
+    /**
+     * Converts a time on the peer's clock to the local clock.
+     * Only meaningful once {@link #isSynchronized} returns true.
+     */
+    public long toLocalTime(long peerTimeNanos) {
+        return peerTimeNanos - mOffsetNanos;
+    }
+
+    @Override
+    public void onMessageReceived(int service, int what, ByteBuffer content) {
+        final long now = mClock.nanoTime();
+        switch (what) {
+            case Protocol.ClockSyncService.MSG_PING: {
+                if (content != null && content.remaining() >= 8) {
+                    final long originateTime = content.getLong();
+                    mBuffer.clear();
+                    mBuffer.putLong(originateTime);
+                    mBuffer.putLong(now);
+                    mBuffer.putLong(mClock.nanoTime());
+                    mBuffer.flip();
+                    sendMessage(Protocol.ClockSyncService.ID,
+                            Protocol.ClockSyncService.MSG_PONG, mBuffer);
+                }
+                break;
+            }
+
+            case Protocol.ClockSyncService.MSG_PONG: {
+                if (content != null && content.remaining() >= 24) {
+                    final long originateTime = content.getLong();
+                    final long receiveTime = content.getLong();
+                    final long transmitTime = content.getLong();
+                    addSample(originateTime, receiveTime, transmitTime, now);
+                }
+                break;
+            }
+        }
+    }
+
+    private void addSample(long originateTime, long receiveTime, long transmitTime,
+            long destinationTime) {
+        final long roundTrip = (destinationTime - originateTime)
+                - (transmitTime - receiveTime);
+        if (roundTrip < 0) {
+            getLogger().log("Ignoring clock sample with negative round trip time.");
+            return;
+        }
+        final long offset = ((receiveTime - originateTime)
+                + (transmitTime - destinationTime)) / 2;
+        mRoundTripHistogram.record(roundTrip);
+
+        final int slot = mSampleCount % SAMPLE_COUNT;
+        mSampleRoundTrips[slot] = roundTrip;
+        mSampleOffsets[slot] = offset;
+        mSampleCount += 1;
+
+        int best = 0;
+        final int count = Math.min(mSampleCount, SAMPLE_COUNT);
+        for (int i = 1; i < count; i++) {
+            if (mSampleRoundTrips[i] < mSampleRoundTrips[best]) {
+                best = i;
+            }
+        }
+        mOffsetNanos = mSampleOffsets[best];
+        mRoundTripNanos = mSampleRoundTrips[best];
+        if (!mSynchronized) {
+            mSynchronized = true;
+            getLogger().log("Clock synchronized with peer: offset="
+                    + mOffsetNanos / 1000 + "us, roundTrip=" + mRoundTripNanos / 1000 + "us.");
+        }
+    }
+
+    private void sendPing() {
+        mBuffer.clear();
+        mBuffer.putLong(mClock.nanoTime());
+        mBuffer.flip();
+        sendMessage(Protocol.ClockSyncService.ID, Protocol.ClockSyncService.MSG_PING, mBuffer);
+    }
+
+    private final Runnable mPingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) {
+                return;
+            }
+
+            // Peers that predate clock synchronization would not answer.
+            if (getTransport().getPeerVersion() >= 3) {
+                sendPing();
+                mPingCount += 1;
+            }
+            mHandler.postDelayed(this, mPingCount < SAMPLE_COUNT
+                    ? BURST_PING_INTERVAL_MILLIS : PING_INTERVAL_MILLIS);
+        }
+    };
+}
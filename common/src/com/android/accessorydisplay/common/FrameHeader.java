@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the header that precedes each frame sent with
+ * {@link Protocol.DisplaySinkService#MSG_CONTENT}.
+ * <p>
+ * The header is laid out as follows, in network byte order.
+ * </p><pre>
+ *   0: header version (8 bits)
+ *   1: flags (8 bits)
+ *   2: reserved, zero (16 bits)
+ *   4: sequence number, incremented for each frame sent, modulo 2^32 (32 bits)
+ *   8: presentation time in microseconds (64 bits)
+ *  16: time the frame left the encoder, on the source's clock in nanoseconds
+ *      (64 bits, version 2 and later)
+ *  24: ... encoded frame follows ...
+ * </pre><p>
+ * The presentation time is the capture time on the source's clock, since that is
+ * how a virtual display timestamps the buffers that the encoder consumes.
+ * </p><p>
+ * An instance is a flyweight over a buffer: {@link #wrap} reads the fields in
+ * place without moving the buffer's position or allocating, so a single instance
+ * can be reused for every frame.
+ * </p><p>
+ * This object is not thread-safe.
+ * </p>
+ */
+public final class FrameHeader {
+    /**
+     * Size of the header written by this implementation in bytes.
+     */
+    public static final int SIZE = 24;
+
+    /**
+     * Version of the header layout written by this implementation.
+     */
+    public static final int VERSION = 2;
+
+    // Size of the first version of the header, which had no encoded time.
+    private static final int SIZE_V1 = 16;
+
+    /**
+     * The frame can be decoded without reference to earlier frames.
+     */
+    public static final int FLAG_KEY_FRAME = 1 << 0;
+
+    /**
+     * The frame holds codec configuration data rather than a picture.
+     */
+    public static final int FLAG_CODEC_CONFIG = 1 << 1;
+
+    /**
+     * The stream refreshes the picture gradually instead of with periodic key
+     * frames, so decoding may start at any frame once the codec configuration
+     * is known and the picture is whole again after one refresh period.
+     */
+    public static final int FLAG_INTRA_REFRESH = 1 << 2;
+
+    private int mVersion;
+    private int mFlags;
+    private int mSequence;
+    private long mPresentationTimeUs;
+    private long mEncodedTimeNanos;
+
+    /**
+     * Reads the header at the current position of a buffer.
+     * <p>
+     * The buffer's position is not changed; the caller should skip
+     * {@link #getSize} bytes once it is done with the header.
+     * </p>
+     *
+     * @param buffer The buffer to read.
+     * @return True if the buffer holds a complete header of a known version.
+     */
+    public boolean wrap(ByteBuffer buffer) {
+        if (buffer == null || buffer.remaining() < SIZE_V1) {
+            return false;
+        }
+        final int position = buffer.position();
+        mVersion = buffer.get(position) & 0xff;
+        if (mVersion < 1 || mVersion > VERSION || buffer.remaining() < getSize()) {
+            return false;
+        }
+        mFlags = buffer.get(position + 1) & 0xff;
+        mSequence = buffer.getInt(position + 4);
+        mPresentationTimeUs = buffer.getLong(position + 8);
+        mEncodedTimeNanos = mVersion >= 2 ? buffer.getLong(position + 16) : 0;
+        return true;
+    }
+
+    /**
+     * Writes a header at the current position of a buffer, advancing it by
+     * {@link #SIZE} bytes.
+     *
+     * @param buffer The buffer to write.
+     * @param flags The frame flags, such as {@link #FLAG_KEY_FRAME}.
+     * @param sequence The sequence number.
+     * @param presentationTimeUs The presentation time in microseconds.
+     * @param encodedTimeNanos The time the frame left the encoder in nanoseconds.
+     */
+    public static void write(ByteBuffer buffer, int flags, int sequence,
+            long presentationTimeUs, long encodedTimeNanos) {
+        buffer.put((byte)VERSION);
+        buffer.put((byte)flags);
+        buffer.putShort((short)0);
+        buffer.putInt(sequence);
+        buffer.putLong(presentationTimeUs);
+        buffer.putLong(encodedTimeNanos);
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Gets the size of the header that was read, which depends on its version.
+     */
+    public int getSize() {
+        return mVersion >= 2 ? SIZE : SIZE_V1;
+    }
+
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    /**
+     * Gets the time the frame left the encoder, or 0 if the header does not say.
+     */
+    public long getEncodedTimeNanos() {
+        return mEncodedTimeNanos;
+    }
+
+    public boolean isKeyFrame() {
+        return (mFlags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (mFlags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isIntraRefresh() {
+        return (mFlags & FLAG_INTRA_REFRESH) != 0;
+    }
+}
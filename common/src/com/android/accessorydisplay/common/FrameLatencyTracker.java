@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+/**
+ * Measures how long frames spend in each stage between capture and rendering.
+ * <p>
+ * The stages are encoding, from capture until the frame left the encoder on the
+ * source, the network, from then until the whole frame reached the sink, and
+ * decoding, from then until it was rendered, including any time spent waiting
+ * in a jitter buffer.  Encoding is measured entirely on the source's clock and
+ * decoding entirely on the sink's, while the network and end to end latencies
+ * need the clock offset estimated by a {@link ClockSyncService} and are only
+ * recorded once it is available.
+ * </p><p>
+ * Frames are matched by presentation time, so they must be unique among the
+ * frames in flight.  Tracking is cheap and never allocates.
+ * </p><p>
+ * This object is not thread-safe, but its histograms may be read from any thread.
+ * </p>
+ */
+public final class FrameLatencyTracker {
+    // The maximum number of frames between arrival and rendering.
+    private static final int MAX_FRAMES_IN_FLIGHT = 32;
+
+    private final Clock mClock;
+    private final ClockSyncService mClockSync;
+
+    // Frames that arrived but were not rendered yet, used as a ring.
+    private final long[] mPresentationTimesUs = new long[MAX_FRAMES_IN_FLIGHT];
+    private final long[] mArrivalTimesNanos = new long[MAX_FRAMES_IN_FLIGHT];
+    private final boolean[] mInFlight = new boolean[MAX_FRAMES_IN_FLIGHT];
+    private int mNextSlot;
+
+    private final LatencyHistogram mEncodeHistogram = new LatencyHistogram();
+    private final LatencyHistogram mNetworkHistogram = new LatencyHistogram();
+    private final LatencyHistogram mDecodeHistogram = new LatencyHistogram();
+    private final LatencyHistogram mEndToEndHistogram = new LatencyHistogram();
+
+    /**
+     * Creates a frame latency tracker.
+     *
+     * @param clockSync The service that estimates the source's clock offset,
+     * whose clock is used for the sink's side.
+     */
+    public FrameLatencyTracker(ClockSyncService clockSync) {
+        mClock = clockSync.getClock();
+        mClockSync = clockSync;
+    }
+
+    /**
+     * Records that a frame has been completely received.
+     *
+     * @param presentationTimeUs The capture time on the source's clock in microseconds.
+     * @param encodedTimeNanos The time the frame left the encoder on the source's clock,
+     * or 0 if unknown.
+     */
+    public void onFrameReceived(long presentationTimeUs, long encodedTimeNanos) {
+        onFrameReceived(presentationTimeUs, encodedTimeNanos, mClock.nanoTime());
+    }
+
+    /**
+     * Records that a frame was completely received at a given time, for callers
+     * that pass frames on to be decoded later.
+     *
+     * @param presentationTimeUs The capture time on the source's clock in microseconds.
+     * @param encodedTimeNanos The time the frame left the encoder on the source's clock,
+     * or 0 if unknown.
+     * @param arrivalTimeNanos The time the frame was received on the local clock.
+     */
+    public void onFrameReceived(long presentationTimeUs, long encodedTimeNanos,
+            long arrivalTimeNanos) {
+        if (encodedTimeNanos != 0) {
+            mEncodeHistogram.record(encodedTimeNanos - presentationTimeUs * 1000);
+            if (mClockSync.isSynchronized()) {
+                mNetworkHistogram.record(
+                        arrivalTimeNanos - mClockSync.toLocalTime(encodedTimeNanos));
+            }
+        }
+
+        // Overwrite the oldest frame if too many never made it to the screen.
+        final int slot = mNextSlot;
+        mPresentationTimesUs[slot] = presentationTimeUs;
+        mArrivalTimesNanos[slot] = arrivalTimeNanos;
+        mInFlight[slot] = true;
+        mNextSlot = (slot + 1) % MAX_FRAMES_IN_FLIGHT;
+    }
+
+    /**
+     * Records that the decoder has released a frame for rendering.
+     *
+     * @param presentationTimeUs The presentation time of the decoded frame.
+     */
+    public void onFrameRendered(long presentationTimeUs) {
+        onFrameRendered(presentationTimeUs, mClock.nanoTime());
+    }
+
+    /**
+     * Records that a frame has been scheduled to be rendered at a given time.
+     *
+     * @param presentationTimeUs The presentation time of the decoded frame.
+     * @param renderTimeNanos The time it will be rendered on the local clock.
+     */
+    public void onFrameRendered(long presentationTimeUs, long renderTimeNanos) {
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            if (mInFlight[i] && mPresentationTimesUs[i] == presentationTimeUs) {
+                mInFlight[i] = false;
+                mDecodeHistogram.record(renderTimeNanos - mArrivalTimesNanos[i]);
+                if (mClockSync.isSynchronized()) {
+                    mEndToEndHistogram.record(renderTimeNanos
+                            - mClockSync.toLocalTime(presentationTimeUs * 1000));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets frames in flight, such as when the decoder is flushed or replaced.
+     */
+    public void clear() {
+        for (int i = 0; i < MAX_FRAMES_IN_FLIGHT; i++) {
+            mInFlight[i] = false;
+        }
+    }
+
+    public LatencyHistogram getEncodeHistogram() {
+        return mEncodeHistogram;
+    }
+
+    public LatencyHistogram getNetworkHistogram() {
+        return mNetworkHistogram;
+    }
+
+    public LatencyHistogram getDecodeHistogram() {
+        return mDecodeHistogram;
+    }
+
+    public LatencyHistogram getEndToEndHistogram() {
+        return mEndToEndHistogram;
+    }
+
+    @Override
+    public String toString() {
+        return "encode: " + mEncodeHistogram
+                + "; network: " + mNetworkHistogram
+                + "; decode: " + mDecodeHistogram
+                + "; end to end: " + mEndToEndHistogram;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+/**
+ * Records a distribution of latencies in power of two microsecond buckets.
+ * <p>
+ * Recording is cheap and never allocates so it may be done on hot paths.
+ * Percentiles are reported as the upper bound of the bucket that contains them.
+ * </p><p>
+ * This object is thread-safe.
+ * </p>
+ */
+public final class LatencyHistogram {
+    // Bucket i holds latencies below 2^i microseconds, the last one holds the rest.
+    private static final int BUCKET_COUNT = 32;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        final long micros = nanos / 1000;
+        final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+        mBuckets[bucket] += 1;
+        mCount += 1;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+    }
+
+    /**
+     * Gets the number of latencies that were recorded.
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets the mean latency in nanoseconds, or 0 if none were recorded.
+     */
+    public synchronized long getMeanNanos() {
+        return mCount != 0 ? mTotalNanos / mCount : 0;
+    }
+
+    /**
+     * Gets the largest latency that was recorded in nanoseconds.
+     */
+    public synchronized long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    /**
+     * Gets an upper bound of the latency below which the given fraction of
+     * the recorded latencies fall in nanoseconds.
+     *
+     * @param fraction The fraction between 0 and 1, such as 0.99 for the 99th percentile.
+     */
+    public synchronized long getPercentileNanos(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1: " + fraction);
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long)Math.ceil(fraction * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += mBuckets[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) * 1000, mMaxNanos);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    /**
+     * Discards all recorded latencies.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + mCount
+                + ", mean=" + getMeanNanos() / 1000 + "us"
+                + ", p50=" + getPercentileNanos(0.5) / 1000 + "us"
+                + ", p95=" + getPercentileNanos(0.95) / 1000 + "us"
+                + ", p99=" + getPercentileNanos(0.99) / 1000 + "us"
+                + ", max=" + mMaxNanos / 1000 + "us";
+    }
+}
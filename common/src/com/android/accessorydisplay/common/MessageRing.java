@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A ring buffer in which the reader thread frames incoming messages in place.
+ * <p>
+ * Data is read into the ring at the tail, message headers are parsed where they
+ * land, and runs of complete messages are handed out as offsets into the ring
+ * without ever copying a partial message or reallocating.  Runs are released in
+ * the order they were handed out.
+ * </p><p>
+ * To keep every message contiguous the storage extends one maximum envelope past
+ * the nominal capacity.  A message that starts before the nominal end may run into
+ * this overhang, but the reader never reads past the end of that message there and
+ * only wraps back to the start at a message boundary.
+ * </p><p>
+ * The read methods may only be called by the reader thread and {@link #release}
+ * only by the thread that consumes the runs.
+ * </p>
+ */
+final class MessageRing {
+    private final int mCapacity;
+    private final ByteBuffer mStorage;
+    private final ByteBuffer mReadView;
+
+    // Reader state.  The tail is where the next read goes and the message start is
+    // the beginning of the first message that is not yet complete.
+    private int mTail;
+    private int mMessageStart;
+
+    // State shared with the consumer, guarded by this.  The head is the start of the
+    // oldest unreleased run.  The wrap end is the end of the data at the top of the
+    // ring after the tail has wrapped back to the start, or -1 if it has not.
+    private int mHead;
+    private int mWrapEnd = -1;
+    private boolean mClosed;
+
+    // Statistics, guarded by this.
+    private long mWaitCount;
+    private long mWaitTimeNanos;
+
+    /**
+     * Creates a message ring.
+     *
+     * @param capacity The nominal capacity, at least {@link Protocol#MAX_ENVELOPE_SIZE}.
+     * @param direct True to allocate the storage outside of the Java heap.
+     */
+    public MessageRing(int capacity, boolean direct) {
+        if (capacity < Protocol.MAX_ENVELOPE_SIZE) {
+            throw new IllegalArgumentException("Ring capacity " + capacity
+                    + " is smaller than the maximum envelope size.");
+        }
+        mCapacity = capacity;
+        final int size = capacity + Protocol.MAX_ENVELOPE_SIZE;
+        mStorage = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        mReadView = mStorage.duplicate();
+    }
+
+    /**
+     * Creates a new view of the ring storage for a consumer to access runs through.
+     */
+    public ByteBuffer newView() {
+        return mStorage.duplicate();
+    }
+
+    /**
+     * Gets the offset of the first message that is not yet complete.
+     */
+    public int getMessageStart() {
+        return mMessageStart;
+    }
+
+    /**
+     * Waits until there is room to read more data and returns a view of that space.
+     *
+     * @return The view to read into, or null if the ring was closed.
+     */
+    public ByteBuffer beginRead() {
+        // Bytes past the nominal capacity may only belong to the message that
+        // straddles it, so only read as far as the end of that message.
+        int end = mCapacity;
+        final int pending = mTail - mMessageStart;
+        if (pending >= Protocol.HEADER_SIZE) {
+            end = Math.max(end, mMessageStart + Protocol.HEADER_SIZE
+                    + (mStorage.getInt(mMessageStart + 4) & Protocol.CONTENT_SIZE_MASK));
+        } else {
+            end = Math.max(end, mMessageStart + Protocol.HEADER_SIZE);
+        }
+
+        synchronized (this) {
+            long startTime = 0;
+            for (;;) {
+                if (mClosed) {
+                    return null;
+                }
+                final int limit = mWrapEnd >= 0 ? Math.min(end, mHead) : end;
+                if (limit > mTail) {
+                    end = limit;
+                    break;
+                }
+                if (startTime == 0) {
+                    startTime = System.nanoTime();
+                    mWaitCount += 1;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                }
+            }
+            if (startTime != 0) {
+                mWaitTimeNanos += System.nanoTime() - startTime;
+            }
+        }
+
+        mReadView.limit(end);
+        mReadView.position(mTail);
+        return mReadView;
+    }
+
+    /**
+     * Accounts for data read into the view returned by {@link #beginRead} and parses
+     * the headers of any messages it completed.
+     *
+     * @param count The number of bytes read.
+     * @return The end of the run of complete messages which starts at the message
+     * start offset from before the read.
+     * @throws IOException if a header contains an invalid content size.
+     */
+    public int endRead(int count) throws IOException {
+        mTail += count;
+
+        int next = mMessageStart;
+        for (;;) {
+            final int remaining = mTail - next;
+            if (remaining < Protocol.HEADER_SIZE) {
+                break;
+            }
+            final int sizeAndFlags = mStorage.getInt(next + 4);
+            final int contentSize = sizeAndFlags & Protocol.CONTENT_SIZE_MASK;
+            final int flags = sizeAndFlags & ~Protocol.CONTENT_SIZE_MASK;
+            if ((flags & ~Protocol.FRAGMENT_FLAGS_MASK) != 0
+                    || contentSize > Protocol.MAX_CONTENT_SIZE) {
+                throw new IOException("Encountered invalid content size: " + sizeAndFlags);
+            }
+            final int length = Protocol.HEADER_SIZE + contentSize;
+            if (remaining < length) {
+                break;
+            }
+            next += length;
+        }
+        mMessageStart = next;
+
+        // Wrap around at a message boundary once past the nominal capacity.
+        if (mTail == mMessageStart && mTail >= mCapacity) {
+            synchronized (this) {
+                if (mHead == mTail) {
+                    mHead = 0;
+                } else {
+                    mWrapEnd = mTail;
+                }
+            }
+            mTail = 0;
+            mMessageStart = 0;
+        }
+        return next;
+    }
+
+    /**
+     * Releases a run of messages after it has been consumed.
+     *
+     * @param end The end offset of the run.
+     */
+    public void release(int end) {
+        synchronized (this) {
+            mHead = end;
+            if (mHead == mWrapEnd) {
+                mHead = 0;
+                mWrapEnd = -1;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes the ring, waking the reader if it is waiting for space.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Gets the number of times the reader had to wait for runs to be released.
+     */
+    public synchronized long getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * Gets the total time the reader spent waiting for runs to be released
+     * in nanoseconds.
+     */
+    public synchronized long getWaitTimeNanos() {
+        return mWaitTimeNanos;
+    }
+}
@@ -23,18 +23,61 @@ public class Protocol {
     // Message header.
     //   0: service id (16 bits)
     //   2: what (16 bits)
-    //   4: content size (32 bits)
+    //   4: fragment flags (8 bits) and content size (24 bits)
     //   8: ... content follows ...
     static final int HEADER_SIZE = 8;
 
+    // Fragment flags, only sent once the peer has negotiated a maximum message
+    // size larger than MAX_CONTENT_SIZE.  Messages that are too large for a single
+    // envelope are split into a first fragment, continuation fragments and a last
+    // fragment which are delivered in order with no other fragments of messages
+    // for the same service in between.
+    static final int FLAG_MORE_FRAGMENTS = 0x80000000;
+    static final int FLAG_CONTINUATION = 0x40000000;
+    static final int FRAGMENT_FLAGS_MASK = FLAG_MORE_FRAGMENTS | FLAG_CONTINUATION;
+    static final int CONTENT_SIZE_MASK = 0x00ffffff;
+
     // Maximum size of a message envelope including the header and contents.
     static final int MAX_ENVELOPE_SIZE = 256 * 1024;
 
     /**
-     * Maximum message content size.
+     * Maximum message content size that fits in a single envelope.
      */
     public static final int MAX_CONTENT_SIZE = MAX_ENVELOPE_SIZE - HEADER_SIZE;
 
+    /**
+     * Maximum message content size that may be negotiated for fragmented messages.
+     */
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Protocol version advertised in {@link TransportService#MSG_HELLO}.
+     */
+    public static final int VERSION = 5;
+
+    public static final class TransportService {
+        private TransportService() { }
+
+        // Reserved for the transport itself.  Messages for this service are
+        // handled internally and never delivered to registered services.
+        public static final int ID = 0;
+
+        // Sent by each side when it starts reading.
+        //   0: protocol version (32 bits)
+        //   4: maximum message content size it can receive (32 bits)
+        //   8: receive window in bytes (32 bits)
+        //  12: receive window in messages (32 bits)
+        // The windows are optional.  When present, the peer must not have more
+        // than that many bytes or messages for other services outstanding, counting
+        // each fragment as a message and including headers, until they are credited.
+        public static final int MSG_HELLO = 1;
+
+        // Grants send credit once received messages have been dispatched.
+        //   0: total bytes consumed so far, modulo 2^32 (32 bits)
+        //   4: total messages consumed so far, modulo 2^32 (32 bits)
+        public static final int MSG_CREDIT = 2;
+    }
+
     public static final class DisplaySinkService {
         private DisplaySinkService() { }
 
@@ -44,8 +87,15 @@ public class Protocol {
         // Replies with sink available or not available.
         public static final int MSG_QUERY = 1;
 
-        // Send MPEG2-TS H.264 encoded content.
+        // Send H.264 encoded content, one frame per message.
+        // From protocol version 2, each frame is preceded by a FrameHeader
+        // carrying its sequence number, presentation time and flags.
         public static final int MSG_CONTENT = 2;
+
+        // Sent from protocol version 5 instead of frames while the content is not
+        // changing, so the sink knows that the stream is idle rather than stalled.
+        //   0: sequence number of the next frame (32 bits)
+        public static final int MSG_HEARTBEAT = 3;
     }
 
     public static final class DisplaySourceService {
@@ -57,9 +107,45 @@ public class Protocol {
         //   0: width (32 bits)
         //   4: height (32 bits)
         //   8: density dpi (32 bits)
+        //  12: sink flags (32 bits, optional)
+        // From protocol version 4, a sink that announces itself again with the
+        // same configuration, such as after restarting its decoder, is sent the
+        // codec configuration and the frames since the last sync frame, or a new
+        // sync frame, so it need not ask for one.
         public static final int MSG_SINK_AVAILABLE = 1;
 
+        // Sink flag: the sink can start decoding a stream that uses gradual
+        // intra refresh without waiting for a key frame.
+        public static final int SINK_FLAG_INTRA_REFRESH = 1 << 0;
+
         // Sink is no longer available for use.
         public static final int MSG_SINK_NOT_AVAILABLE = 2;
+
+        // Periodic report of how well the sink is keeping up with the content.
+        //   0: receive rate in bits per second (32 bits)
+        //   4: number of frames waiting to be decoded (32 bits)
+        //   8: inter-arrival jitter in microseconds (32 bits)
+        public static final int MSG_SINK_FEEDBACK = 3;
+
+        // Sink lost content and cannot decode until the next sync frame.
+        // The source should ask its encoder for one as soon as possible.
+        public static final int MSG_REQUEST_KEYFRAME = 4;
+    }
+
+    // Available from protocol version 3.
+    public static final class ClockSyncService {
+        private ClockSyncService() { }
+
+        public static final int ID = 3;
+
+        // Asks the peer for its clock.
+        //   0: originate time, on the sender's clock in nanoseconds (64 bits)
+        public static final int MSG_PING = 1;
+
+        // Answers a ping.
+        //   0: originate time copied from the ping (64 bits)
+        //   8: time the ping was received, on the sender's clock (64 bits)
+        //  16: time the pong was sent, on the sender's clock (64 bits)
+        public static final int MSG_PONG = 2;
     }
 }
@@ -34,11 +34,22 @@ public abstract class Service implements Transport.Callback {
     private final Context mContext;
     private final Transport mTransport;
     private final int mServiceId;
+    private final int mPriority;
 
     public Service(Context context, Transport transport, int serviceId) {
+        this(context, transport, serviceId, Transport.PRIORITY_CONTROL);
+    }
+
+    /**
+     * Creates a service whose messages are sent with the given priority.
+     *
+     * @param priority The priority, such as {@link Transport#PRIORITY_CONTROL}.
+     */
+    public Service(Context context, Transport transport, int serviceId, int priority) {
         mContext = context;
         mTransport = transport;
         mServiceId = serviceId;
+        mPriority = priority;
     }
 
     public Context getContext() {
@@ -53,12 +64,23 @@ public abstract class Service implements Transport.Callback {
         return mTransport;
     }
 
+    public int getPriority() {
+        return mPriority;
+    }
+
     public Logger getLogger() {
         return mTransport.getLogger();
     }
 
+    /**
+     * Sends a message with this service's priority.
+     */
+    public boolean sendMessage(int service, int what, ByteBuffer content) {
+        return mTransport.sendMessage(service, what, content, mPriority);
+    }
+
     public void start() {
-        mTransport.registerService(mServiceId, this);
+        mTransport.registerService(mServiceId, this, mPriority);
     }
 
     public void stop() {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends or receives messages over a TCP connection using a blocking {@link SocketChannel}.
+ * <p>
+ * Each message is written with a single gathering write of its header and content
+ * directly from the caller's buffers, so no intermediate copy or allocation is needed.
+ * Writes are serialized by the transport lock so message ordering is preserved.
+ * Messages are received into direct buffers so reads do not need to be copied
+ * through a temporary buffer either.
+ * </p>
+ */
+public class SocketChannelTransport extends Transport {
+    private static final int MAX_PACKET_SIZE = 64 * 1024;
+
+    private final SocketChannel mChannel;
+
+    // Gathering write buffers, only accessed while holding the transport lock.
+    private final ByteBuffer[] mWriteBuffers = new ByteBuffer[2];
+
+    // Wrappers for the arrays last read into and written from.  The transport
+    // reuses the same arrays, so these are normally wrapped only once.  The read
+    // wrapper is only accessed by the reader thread and the write wrapper only
+    // while holding the transport lock.
+    private ByteBuffer mReadWrapper;
+    private ByteBuffer mWriteWrapper;
+
+    public SocketChannelTransport(Logger logger, SocketChannel channel) {
+        super(logger, MAX_PACKET_SIZE, new BufferPool(MAX_PACKET_SIZE,
+                Protocol.MAX_MESSAGE_SIZE, MAX_INPUT_BUFFERS, true /*direct*/));
+        mChannel = channel;
+        try {
+            mChannel.socket().setTcpNoDelay(true);
+        } catch (IOException ex) {
+            logger.logError("Could not disable Nagle's algorithm: " + ex);
+        }
+    }
+
+    @Override
+    protected void ioClose() {
+        try {
+            mChannel.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    @Override
+    protected int ioRead(byte[] buffer, int offset, int count) throws IOException {
+        mReadWrapper = wrap(mReadWrapper, buffer, offset, count);
+        return mChannel.read(mReadWrapper);
+    }
+
+    @Override
+    protected int ioRead(ByteBuffer buffer) throws IOException {
+        return mChannel.read(buffer);
+    }
+
+    @Override
+    protected void ioWrite(byte[] buffer, int offset, int count) throws IOException {
+        mWriteWrapper = wrap(mWriteWrapper, buffer, offset, count);
+        final ByteBuffer wrapped = mWriteWrapper;
+        while (wrapped.hasRemaining()) {
+            mChannel.write(wrapped);
+        }
+    }
+
+    @Override
+    protected void ioWrite(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    @Override
+    protected void ioWriteMessage(ByteBuffer header, ByteBuffer content) throws IOException {
+        if (content == null || !content.hasRemaining()) {
+            while (header.hasRemaining()) {
+                mChannel.write(header);
+            }
+            return;
+        }
+
+        mWriteBuffers[0] = header;
+        mWriteBuffers[1] = content;
+        try {
+            while (content.hasRemaining()) {
+                mChannel.write(mWriteBuffers);
+            }
+        } finally {
+            mWriteBuffers[0] = null;
+            mWriteBuffers[1] = null;
+        }
+    }
+
+    private static ByteBuffer wrap(ByteBuffer wrapper, byte[] buffer, int offset, int count) {
+        if (wrapper == null || wrapper.array() != buffer) {
+            wrapper = ByteBuffer.wrap(buffer);
+        }
+        wrapper.limit(offset + count);
+        wrapper.position(offset);
+        return wrapper;
+    }
+}
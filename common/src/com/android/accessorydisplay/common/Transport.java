@@ -20,9 +20,11 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple message transport.
@@ -30,10 +32,76 @@ import java.nio.ByteBuffer;
  * This object's interface is thread-safe, however incoming messages
  * are always delivered on the {@link Looper} thread on which the transport
  * was created.
+ * </p><p>
+ * Once writing has started, queued messages are written in order of priority.
+ * Messages of equal priority are written in the order they were sent.  When the
+ * peer supports fragmentation, large messages are written one packet sized chunk
+ * at a time so that a more urgent message never waits for more than one chunk.
+ * </p><p>
+ * Each side also advertises a receive window and grants credit back to its peer as
+ * it dispatches received messages.  The writer thread stops writing once the
+ * peer's window is used up, so a slow receiver makes messages wait in the send
+ * queue, where the sender can see them, instead of in socket and USB buffers.
  * </p>
  */
 public abstract class Transport {
-    private static final int MAX_INPUT_BUFFERS = 8;
+    /**
+     * Default maximum number of input buffers.
+     */
+    public static final int MAX_INPUT_BUFFERS = 8;
+
+    // The nominal capacity of the input ring.
+    private static final int INPUT_RING_CAPACITY = 4 * Protocol.MAX_ENVELOPE_SIZE;
+
+    // The receive window advertised to the peer.  The byte window matches the input
+    // ring so the peer never sends more than the ring can hold.
+    private static final int RECEIVE_WINDOW_BYTES = INPUT_RING_CAPACITY;
+    private static final int RECEIVE_WINDOW_MESSAGES = 256;
+
+    // Waiting longer than this for space in the input ring is logged.
+    private static final long INPUT_WAIT_WARNING_NANOS = 50 * 1000000L;
+
+    /**
+     * Send queue policy: block the sender until there is room in the queue.
+     */
+    public static final int QUEUE_POLICY_BLOCK = 0;
+
+    /**
+     * Send queue policy: fail immediately when the queue is full.
+     */
+    public static final int QUEUE_POLICY_FAIL = 1;
+
+    /**
+     * Default maximum number of messages in the send queue.
+     */
+    public static final int DEFAULT_SEND_QUEUE_CAPACITY = 16;
+
+    /**
+     * Maximum size of the prefix that may be sent with {@link #sendMessageDirect}.
+     */
+    public static final int MAX_PREFIX_SIZE = 64;
+
+    /**
+     * Message priority: control traffic such as queries and status updates.
+     */
+    public static final int PRIORITY_CONTROL = 0;
+
+    /**
+     * Message priority: user input events.
+     */
+    public static final int PRIORITY_INPUT = 1;
+
+    /**
+     * Message priority: video content.
+     */
+    public static final int PRIORITY_VIDEO = 2;
+
+    /**
+     * Message priority: bulk data that may be delayed by anything else.
+     */
+    public static final int PRIORITY_BULK = 3;
+
+    private static final int PRIORITY_COUNT = 4;
 
     private final Logger mLogger;
 
@@ -46,21 +114,129 @@ public abstract class Transport {
     // The output buffer.  Set to null when the transport is closed.
     private ByteBuffer mOutputBuffer;
 
+    // The header of the message currently being sent followed by its prefix, if any.
+    private final ByteBuffer mHeaderBuffer =
+            ByteBuffer.allocate(Protocol.HEADER_SIZE + MAX_PREFIX_SIZE);
+
     // The input buffer pool.
-    private BufferPool mInputBufferPool;
+    private final BufferPool mInputBufferPool;
+
+    // The ring into which messages are read and framed.
+    private final MessageRing mInputRing;
 
     // The reader thread.  Initialized when reading starts.
     private ReaderThread mThread;
 
+    // The writer thread.  Initialized when writing starts.
+    private volatile WriterThread mWriterThread;
+
+    // Lock to guard the send queue.  This is separate from mLock so that
+    // senders are not blocked while the writer thread is performing I/O.
+    private final Object mQueueLock = new Object();
+
+    // The send queue, one list of preallocated entries per priority.
+    // These fields are guarded by mQueueLock.
+    private OutgoingMessage[] mSendQueue;
+    private final OutgoingMessage[] mSendQueueHeads = new OutgoingMessage[PRIORITY_COUNT];
+    private final OutgoingMessage[] mSendQueueTails = new OutgoingMessage[PRIORITY_COUNT];
+    private OutgoingMessage mFreeMessages;
+    private BufferPool mSendBufferPool;
+    private int mSendQueuePolicy;
+    private int mSendQueueCount;
+    private boolean mSendQueueClosed;
+
+    // Send queue statistics, guarded by mQueueLock.
+    private int mMaxSendQueueDepth;
+    private long mQueuedMessageCount;
+    private long mWrittenMessageCount;
+    private long mRejectedMessageCount;
+    private long mTotalTimeInQueueNanos;
+    private long mMaxTimeInQueueNanos;
+
+    // Send credit.  Counts wrap around and are compared using int arithmetic.
+    // The windows are 0 until the peer advertises them.  Guarded by mQueueLock.
+    private int mPeerWindowBytes;
+    private int mPeerWindowMessages;
+    private int mSentCreditBytes;
+    private int mSentCreditMessages;
+    private int mPeerConsumedBytes;
+    private int mPeerConsumedMessages;
+    private long mCreditStallCount;
+    private long mCreditStallTimeNanos;
+
+    // Credit waiting to be granted by the writer thread, guarded by mQueueLock.
+    private boolean mCreditGrantPending;
+    private int mCreditGrantBytes;
+    private int mCreditGrantMessages;
+
+    // Receive credit, only accessed on the transport thread.
+    private int mConsumedBytes;
+    private int mConsumedMessages;
+    private int mGrantedBytes;
+    private int mGrantedMessages;
+    private final ByteBuffer mCreditBuffer = ByteBuffer.allocate(8);
+
+    // True once the peer has said that it expects credit.
+    private volatile boolean mPeerUsesCredit;
+    private volatile long mCreditGrantCount;
+
+    // Time each message waited to start being written, by priority.
+    private final LatencyHistogram[] mSendLatencyHistograms =
+            new LatencyHistogram[PRIORITY_COUNT];
+
+    // The maximum message content size that the peer can receive.
+    // Initially limited to a single envelope until the peer says hello.
+    private volatile int mPeerMaxMessageSize = Protocol.MAX_CONTENT_SIZE;
+
+    // The protocol version of the peer, or 0 until the peer says hello.
+    private volatile int mPeerVersion;
+
+    // Messages being reassembled from fragments indexed by service id.
+    // Only accessed on the transport thread.
+    private final SparseArray<Reassembly> mReassemblies = new SparseArray<Reassembly>();
+
+    // The number of content bytes copied while sending messages.
+    private final AtomicLong mCopiedByteCount = new AtomicLong();
+
     // The list of callbacks indexed by service id.
     private final SparseArray<Callback> mServices = new SparseArray<Callback>();
 
+    // The priority of messages sent by each service indexed by service id.
+    private final SparseIntArray mServicePriorities = new SparseIntArray();
+
     public Transport(Logger logger, int maxPacketSize) {
+        this(logger, maxPacketSize, new BufferPool(
+                maxPacketSize, Protocol.MAX_MESSAGE_SIZE, MAX_INPUT_BUFFERS));
+    }
+
+    /**
+     * Creates a transport that receives messages using the given buffer pool.
+     * <p>
+     * Messages are framed in place in an input ring which is allocated off-heap
+     * when the pool is direct.  Transports that read with {@link #ioRead(ByteBuffer)}
+     * directly from a channel may use a pool of direct buffers.  The pool supplies
+     * the buffers into which fragmented messages are reassembled, so its maximum
+     * buffer size is advertised to the peer as the largest message it may send.
+     * </p>
+     *
+     * @param logger The logger.
+     * @param maxPacketSize The maximum size of a single read or write.
+     * @param inputBufferPool The input buffer pool, whose maximum buffer size must be
+     * at least {@link Protocol#MAX_ENVELOPE_SIZE}.
+     */
+    public Transport(Logger logger, int maxPacketSize, BufferPool inputBufferPool) {
+        if (inputBufferPool.getMaxBufferSize() < Protocol.MAX_ENVELOPE_SIZE) {
+            throw new IllegalArgumentException("Input buffer pool cannot hold "
+                    + "a message envelope of " + Protocol.MAX_ENVELOPE_SIZE + " bytes.");
+        }
         mLogger = logger;
-        mHandler = new TransportHandler();
         mOutputBuffer = ByteBuffer.allocate(maxPacketSize);
-        mInputBufferPool = new BufferPool(
-                maxPacketSize, Protocol.MAX_ENVELOPE_SIZE, MAX_INPUT_BUFFERS);
+        mInputBufferPool = inputBufferPool;
+        mInputRing = new MessageRing(INPUT_RING_CAPACITY, inputBufferPool.isDirect());
+        mHandler = new TransportHandler();
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mSendLatencyHistograms[i] = new LatencyHistogram();
+        }
     }
 
     /**
@@ -77,6 +253,13 @@ public abstract class Transport {
         return mHandler;
     }
 
+    /**
+     * Gets the input buffer pool, for statistics.
+     */
+    public BufferPool getInputBufferPool() {
+        return mInputBufferPool;
+    }
+
     /**
      * Closes the transport.
      */
@@ -91,73 +274,176 @@ public abstract class Transport {
                     // be in the process of reading from the stream so we can't simply
                     // shut it down right now.
                     mThread.quit();
+                    mInputRing.close();
                 }
                 mOutputBuffer = null;
             }
         }
+
+        synchronized (mQueueLock) {
+            if (mSendQueue != null && !mSendQueueClosed) {
+                mSendQueueClosed = true;
+                mQueueLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum message content size that may currently be sent.
+     * <p>
+     * This is {@link Protocol#MAX_CONTENT_SIZE} until the peer has advertised a larger
+     * size, after which larger messages are sent as a series of fragments.
+     * </p>
+     */
+    public int getMaxMessageSize() {
+        return Math.min(mPeerMaxMessageSize, Protocol.MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     * Gets the protocol version spoken by the peer, or 0 if it has not said hello.
+     * <p>
+     * The peer says hello before it sends anything else, so a service that receives
+     * a message from the peer can rely on this to decide how to parse it.
+     * </p>
+     */
+    public int getPeerVersion() {
+        return mPeerVersion;
     }
 
     /**
      * Sends a message.
+     * <p>
+     * If writing was started with {@link #startWriting} then the message is copied
+     * into the send queue and written later by the writer thread, otherwise it is
+     * written immediately on the calling thread.
+     * </p>
      *
      * @param service The service to whom the message is addressed.
      * @param what The message type.
      * @param content The content, or null if there is none.
-     * @return True if the message was sent successfully, false if an error occurred.
+     * @return True if the message was sent or queued successfully, false if an error
+     * occurred or the send queue was full.
      */
     public boolean sendMessage(int service, int what, ByteBuffer content) {
+        return sendMessage(service, what, content, PRIORITY_CONTROL);
+    }
+
+    /**
+     * Sends a message with the given priority.
+     *
+     * @param service The service to whom the message is addressed.
+     * @param what The message type.
+     * @param content The content, or null if there is none.
+     * @param priority The priority, such as {@link #PRIORITY_CONTROL}.
+     * @return True if the message was sent or queued successfully, false if an error
+     * occurred or the send queue was full.
+     * @see #sendMessage(int, int, ByteBuffer)
+     */
+    public boolean sendMessage(int service, int what, ByteBuffer content, int priority) {
         checkServiceId(service);
         checkMessageId(what);
+        checkContentSize(null, content);
+        checkPriority(priority);
 
-        try {
-            synchronized (mLock) {
-                if (mOutputBuffer == null) {
-                    mLogger.logError("Send message failed because transport was closed.");
+        if (mWriterThread != null) {
+            synchronized (mQueueLock) {
+                return enqueueMessageLocked(service, what, null, content, priority, true)
+                        != null;
+            }
+        }
+        return writeMessage(service, what, null, content);
+    }
+
+    /**
+     * Sends a message without copying its content.
+     * <p>
+     * The content is handed to the I/O layer straight from the caller's buffer,
+     * which may be a direct buffer such as one returned by
+     * {@code MediaCodec.getOutputBuffer}.  Unlike {@link #sendMessage}, this method
+     * always waits until the message has been written, even when the send queue is
+     * in use, so the buffer may be reused or released as soon as it returns.
+     * Messages remain ordered with respect to those sent with {@link #sendMessage}.
+     * </p>
+     *
+     * @param service The service to whom the message is addressed.
+     * @param what The message type.
+     * @param content The content, or null if there is none.
+     * @return True if the message was written successfully, false if an error
+     * occurred or the send queue was full.
+     */
+    public boolean sendMessageDirect(int service, int what, ByteBuffer content) {
+        return sendMessageDirect(service, what, content, PRIORITY_CONTROL);
+    }
+
+    /**
+     * Sends a message with the given priority without copying its content.
+     *
+     * @param service The service to whom the message is addressed.
+     * @param what The message type.
+     * @param content The content, or null if there is none.
+     * @param priority The priority, such as {@link #PRIORITY_VIDEO}.
+     * @return True if the message was written successfully, false if an error
+     * occurred or the send queue was full.
+     * @see #sendMessageDirect(int, int, ByteBuffer)
+     */
+    public boolean sendMessageDirect(int service, int what, ByteBuffer content,
+            int priority) {
+        return sendMessageDirect(service, what, null, content, priority);
+    }
+
+    /**
+     * Sends a message made of a small prefix followed by content without copying
+     * either of them.
+     * <p>
+     * This lets a sender put a header in front of a buffer it does not own, such as
+     * one returned by {@code MediaCodec.getOutputBuffer}.  The receiver sees a single
+     * message whose content is the prefix followed by the content.
+     * </p>
+     *
+     * @param service The service to whom the message is addressed.
+     * @param what The message type.
+     * @param prefix The prefix, at most {@link #MAX_PREFIX_SIZE} bytes, or null.
+     * @param content The content, or null if there is none.
+     * @param priority The priority, such as {@link #PRIORITY_VIDEO}.
+     * @return True if the message was written successfully, false if an error
+     * occurred or the send queue was full.
+     * @see #sendMessageDirect(int, int, ByteBuffer)
+     */
+    public boolean sendMessageDirect(int service, int what, ByteBuffer prefix,
+            ByteBuffer content, int priority) {
+        checkServiceId(service);
+        checkMessageId(what);
+        checkContentSize(prefix, content);
+        checkPriority(priority);
+
+        if (mWriterThread != null) {
+            synchronized (mQueueLock) {
+                final OutgoingMessage message =
+                        enqueueMessageLocked(service, what, prefix, content, priority, false);
+                if (message == null) {
                     return false;
                 }
-
-                final byte[] outputArray = mOutputBuffer.array();
-                final int capacity = mOutputBuffer.capacity();
-                mOutputBuffer.clear();
-                mOutputBuffer.putShort((short)service);
-                mOutputBuffer.putShort((short)what);
-                if (content == null) {
-                    mOutputBuffer.putInt(0);
-                } else {
-                    final int contentLimit = content.limit();
-                    int contentPosition = content.position();
-                    int contentRemaining = contentLimit - contentPosition;
-                    if (contentRemaining > Protocol.MAX_CONTENT_SIZE) {
-                        throw new IllegalArgumentException("Message content too large: "
-                                + contentRemaining + " > " + Protocol.MAX_CONTENT_SIZE);
-                    }
-                    mOutputBuffer.putInt(contentRemaining);
-                    while (contentRemaining != 0) {
-                        final int outputAvailable = capacity - mOutputBuffer.position();
-                        if (contentRemaining <= outputAvailable) {
-                            mOutputBuffer.put(content);
-                            break;
-                        }
-                        content.limit(contentPosition + outputAvailable);
-                        mOutputBuffer.put(content);
-                        content.limit(contentLimit);
-                        ioWrite(outputArray, 0, capacity);
-                        contentPosition += outputAvailable;
-                        contentRemaining -= outputAvailable;
-                        mOutputBuffer.clear();
+                // The writer thread always completes the message, even when the
+                // queue is closed, and leaves it to us to return it to the free list.
+                while (!message.done) {
+                    try {
+                        mQueueLock.wait();
+                    } catch (InterruptedException ex) {
                     }
                 }
-                ioWrite(outputArray, 0, mOutputBuffer.position());
-                return true;
+                final boolean success = message.success;
+                freeMessageLocked(message);
+                return success;
             }
-        } catch (IOException ex) {
-            mLogger.logError("Send message failed: " + ex);
-            return false;
         }
+        return writeMessage(service, what, prefix, content);
     }
 
     /**
      * Starts reading messages on a separate thread.
+     * <p>
+     * Also tells the peer the largest message it may send.
+     * </p>
      */
     public void startReading() {
         synchronized (mLock) {
@@ -168,22 +454,285 @@ public abstract class Transport {
             mThread = new ReaderThread();
             mThread.start();
         }
+
+        final ByteBuffer hello = ByteBuffer.allocate(16);
+        hello.putInt(Protocol.VERSION);
+        hello.putInt(Math.min(mInputBufferPool.getMaxBufferSize(), Protocol.MAX_MESSAGE_SIZE));
+        hello.putInt(RECEIVE_WINDOW_BYTES);
+        hello.putInt(RECEIVE_WINDOW_MESSAGES);
+        hello.flip();
+        sendMessage(Protocol.TransportService.ID, Protocol.TransportService.MSG_HELLO, hello);
+    }
+
+    /**
+     * Starts writing messages on a separate thread using a send queue with
+     * the default capacity that blocks senders when full.
+     */
+    public void startWriting() {
+        startWriting(DEFAULT_SEND_QUEUE_CAPACITY, QUEUE_POLICY_BLOCK);
+    }
+
+    /**
+     * Starts writing messages on a separate thread.
+     * <p>
+     * Once started, messages are placed into a bounded queue which a single writer
+     * thread drains in order, so senders are not stalled by slow or blocked I/O
+     * unless the queue fills up.
+     * </p>
+     *
+     * @param capacity The maximum number of messages in the send queue.
+     * @param policy The policy to apply when the queue is full, either
+     * {@link #QUEUE_POLICY_BLOCK} or {@link #QUEUE_POLICY_FAIL}.
+     */
+    public void startWriting(int capacity, int policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (policy != QUEUE_POLICY_BLOCK && policy != QUEUE_POLICY_FAIL) {
+            throw new IllegalArgumentException("invalid queue policy: " + policy);
+        }
+
+        synchronized (mLock) {
+            if (mOutputBuffer == null) {
+                throw new IllegalStateException("Transport has been closed");
+            }
+            if (mWriterThread != null) {
+                throw new IllegalStateException("Writing has already started");
+            }
+
+            synchronized (mQueueLock) {
+                mSendQueue = new OutgoingMessage[capacity];
+                for (int i = 0; i < capacity; i++) {
+                    mSendQueue[i] = new OutgoingMessage();
+                    mSendQueue[i].next = mFreeMessages;
+                    mFreeMessages = mSendQueue[i];
+                }
+                mSendBufferPool = new BufferPool(mOutputBuffer.capacity(),
+                        Protocol.MAX_MESSAGE_SIZE, capacity);
+                mSendQueuePolicy = policy;
+            }
+
+            mWriterThread = new WriterThread();
+            mWriterThread.start();
+        }
+    }
+
+    /**
+     * Gets the number of times the reader had to wait for received messages to be
+     * dispatched before it could read more.
+     */
+    public long getInputWaitCount() {
+        return mInputRing.getWaitCount();
+    }
+
+    /**
+     * Gets the total time the reader spent waiting for received messages to be
+     * dispatched in nanoseconds.
+     */
+    public long getInputWaitTimeNanos() {
+        return mInputRing.getWaitTimeNanos();
+    }
+
+    /**
+     * Gets the number of messages currently waiting in the send queue.
+     */
+    public int getSendQueueDepth() {
+        synchronized (mQueueLock) {
+            return mSendQueueCount;
+        }
+    }
+
+    /**
+     * Gets how long the oldest message of the given priority has been waiting in
+     * the send queue in nanoseconds, including any time spent being written,
+     * or 0 if there is none.
+     *
+     * @param priority The priority, such as {@link #PRIORITY_VIDEO}.
+     */
+    public long getOldestQueuedAgeNanos(int priority) {
+        checkPriority(priority);
+        synchronized (mQueueLock) {
+            final OutgoingMessage message = mSendQueueHeads[priority];
+            return message != null ? System.nanoTime() - message.enqueueTimeNanos : 0;
+        }
+    }
+
+    /**
+     * Gets the largest number of messages that have been waiting in the send queue.
+     */
+    public int getMaxSendQueueDepth() {
+        synchronized (mQueueLock) {
+            return mMaxSendQueueDepth;
+        }
+    }
+
+    /**
+     * Gets the number of messages that have been placed into the send queue.
+     */
+    public long getQueuedMessageCount() {
+        synchronized (mQueueLock) {
+            return mQueuedMessageCount;
+        }
+    }
+
+    /**
+     * Gets the number of queued messages that have been written.
+     */
+    public long getWrittenMessageCount() {
+        synchronized (mQueueLock) {
+            return mWrittenMessageCount;
+        }
+    }
+
+    /**
+     * Gets the number of content bytes that were copied while sending messages,
+     * either into the send queue or into the output buffer.
+     */
+    public long getCopiedByteCount() {
+        return mCopiedByteCount.get();
+    }
+
+    /**
+     * Gets the number of messages that were rejected because the send queue was full.
+     */
+    public long getRejectedMessageCount() {
+        synchronized (mQueueLock) {
+            return mRejectedMessageCount;
+        }
+    }
+
+    /**
+     * Gets the total time that written messages spent waiting in the send queue
+     * in nanoseconds.
+     */
+    public long getTotalTimeInQueueNanos() {
+        synchronized (mQueueLock) {
+            return mTotalTimeInQueueNanos;
+        }
+    }
+
+    /**
+     * Gets the longest time that a written message spent waiting in the send queue
+     * in nanoseconds.
+     */
+    public long getMaxTimeInQueueNanos() {
+        synchronized (mQueueLock) {
+            return mMaxTimeInQueueNanos;
+        }
+    }
+
+    /**
+     * Gets the number of bytes that may still be written before the peer grants
+     * more credit, or {@link Integer#MAX_VALUE} if the peer does not use credit.
+     * <p>
+     * Senders may use this to reduce the amount of data they produce before
+     * messages start backing up in the send queue.
+     * </p>
+     */
+    public int getSendCreditBytes() {
+        synchronized (mQueueLock) {
+            if (mPeerWindowBytes == 0) {
+                return Integer.MAX_VALUE;
+            }
+            return mPeerWindowBytes - (mSentCreditBytes - mPeerConsumedBytes);
+        }
+    }
+
+    /**
+     * Gets the number of messages that may still be written before the peer grants
+     * more credit, or {@link Integer#MAX_VALUE} if the peer does not use credit.
+     */
+    public int getSendCreditMessages() {
+        synchronized (mQueueLock) {
+            if (mPeerWindowMessages == 0) {
+                return Integer.MAX_VALUE;
+            }
+            return mPeerWindowMessages - (mSentCreditMessages - mPeerConsumedMessages);
+        }
+    }
+
+    /**
+     * Gets the number of times the writer thread had to wait for the peer to grant
+     * more credit.
+     */
+    public long getCreditStallCount() {
+        synchronized (mQueueLock) {
+            return mCreditStallCount;
+        }
+    }
+
+    /**
+     * Gets the total time the writer thread spent waiting for the peer to grant
+     * more credit in nanoseconds.
+     */
+    public long getCreditStallTimeNanos() {
+        synchronized (mQueueLock) {
+            return mCreditStallTimeNanos;
+        }
+    }
+
+    /**
+     * Gets the number of times credit was granted to the peer.
+     */
+    public long getCreditGrantCount() {
+        return mCreditGrantCount;
+    }
+
+    /**
+     * Gets the distribution of the time that messages of the given priority
+     * waited in the send queue before they started being written.
+     *
+     * @param priority The priority, such as {@link #PRIORITY_CONTROL}.
+     */
+    public LatencyHistogram getSendLatencyHistogram(int priority) {
+        checkPriority(priority);
+        return mSendLatencyHistograms[priority];
     }
 
     /**
      * Registers a service and provides a callback to receive messages.
+     * Messages sent by the service have {@link #PRIORITY_CONTROL}.
      *
      * @param service The service id.
      * @param callback The callback to use.
      */
     public void registerService(int service, Callback callback) {
+        registerService(service, callback, PRIORITY_CONTROL);
+    }
+
+    /**
+     * Registers a service and provides a callback to receive messages.
+     *
+     * @param service The service id.
+     * @param callback The callback to use.
+     * @param priority The priority of messages sent by the service.
+     * @see #getServicePriority
+     */
+    public void registerService(int service, Callback callback, int priority) {
         checkServiceId(service);
+        checkPriority(priority);
+        if (service == Protocol.TransportService.ID) {
+            throw new IllegalArgumentException("service id is reserved: " + service);
+        }
         if (callback == null) {
             throw new IllegalArgumentException("callback must not be null");
         }
 
         synchronized (mLock) {
             mServices.put(service, callback);
+            mServicePriorities.put(service, priority);
+        }
+    }
+
+    /**
+     * Gets the priority with which a registered service sends its messages,
+     * or {@link #PRIORITY_CONTROL} if it is not registered.
+     *
+     * @param service The service id.
+     */
+    public int getServicePriority(int service) {
+        synchronized (mLock) {
+            return mServicePriorities.get(service, PRIORITY_CONTROL);
         }
     }
 
@@ -197,10 +746,257 @@ public abstract class Transport {
 
         synchronized (mLock) {
             mServices.remove(service);
+            mServicePriorities.delete(service);
+        }
+    }
+
+    private boolean writeMessage(int service, int what, ByteBuffer prefix,
+            ByteBuffer content) {
+        try {
+            synchronized (mLock) {
+                if (mOutputBuffer == null) {
+                    mLogger.logError("Send message failed because transport was closed.");
+                    return false;
+                }
+
+                writeMessageLocked(service, what, prefix, content);
+                return true;
+            }
+        } catch (IOException ex) {
+            mLogger.logError("Send message failed: " + ex);
+            return false;
+        }
+    }
+
+    // Returns the queued message, or null if it was not queued.
+    private OutgoingMessage enqueueMessageLocked(int service, int what, ByteBuffer prefix,
+            ByteBuffer content, int priority, boolean copy) {
+        for (;;) {
+            if (mSendQueueClosed) {
+                mLogger.logError("Send message failed because transport was closed.");
+                return null;
+            }
+            if (mFreeMessages != null) {
+                break;
+            }
+            if (mSendQueuePolicy == QUEUE_POLICY_FAIL) {
+                mRejectedMessageCount += 1;
+                return null;
+            }
+            try {
+                mQueueLock.wait();
+            } catch (InterruptedException ex) {
+            }
+        }
+
+        // Each queued message holds at most one buffer and the pool has as many
+        // buffers as the queue has entries so this will not block.
+        final OutgoingMessage message = mFreeMessages;
+        mFreeMessages = message.next;
+        message.next = null;
+        message.service = service;
+        message.what = what;
+        message.priority = priority;
+        message.direct = !copy;
+        message.prefix = prefix;
+        message.pooled = copy && content != null;
+        if (message.pooled) {
+            final int size = content.remaining();
+            message.content = mSendBufferPool.acquire(size);
+            message.content.put(content);
+            message.content.flip();
+            mCopiedByteCount.addAndGet(size);
+        } else {
+            message.content = content;
+        }
+        message.enqueueTimeNanos = System.nanoTime();
+
+        if (mSendQueueTails[priority] != null) {
+            mSendQueueTails[priority].next = message;
+        } else {
+            mSendQueueHeads[priority] = message;
+        }
+        mSendQueueTails[priority] = message;
+
+        mSendQueueCount += 1;
+        mQueuedMessageCount += 1;
+        if (mSendQueueCount > mMaxSendQueueDepth) {
+            mMaxSendQueueDepth = mSendQueueCount;
+        }
+        mQueueLock.notifyAll();
+        return message;
+    }
+
+    // Returns the message that should be written next, or null if there is none.
+    // A message is only preempted by one of another service, or by one which fits
+    // in a single chunk, so that the fragments of a service's messages never mix.
+    private OutgoingMessage peekNextMessageLocked(int chunkSize) {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            final OutgoingMessage message = mSendQueueHeads[i];
+            if (message == null) {
+                continue;
+            }
+            if ((message.started || message.getRemainingSize() <= chunkSize
+                    || !isServiceBeingWrittenLocked(message.service))
+                    && hasSendCreditLocked(message, chunkSize)) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    // Returns true if the peer has granted enough credit to write the next
+    // fragment of the message.
+    private boolean hasSendCreditLocked(OutgoingMessage message, int chunkSize) {
+        if (message.service == Protocol.TransportService.ID || mPeerWindowBytes == 0) {
+            return true;
         }
+        final int size = Protocol.HEADER_SIZE + Math.min(message.getRemainingSize(), chunkSize);
+        return mPeerWindowBytes - (mSentCreditBytes - mPeerConsumedBytes) >= size
+                && mPeerWindowMessages - (mSentCreditMessages - mPeerConsumedMessages) > 0;
+    }
+
+    private boolean isServiceBeingWrittenLocked(int service) {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            final OutgoingMessage message = mSendQueueHeads[i];
+            if (message != null && message.started && message.service == service) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasQueuedMessagesLocked() {
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            if (mSendQueueHeads[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Removes a message from the head of its queue, releases its content and
+    // either returns it to the free list or hands it back to its waiting sender.
+    private void completeMessageLocked(OutgoingMessage message, boolean success) {
+        final int priority = message.priority;
+        mSendQueueHeads[priority] = message.next;
+        if (message.next == null) {
+            mSendQueueTails[priority] = null;
+        }
+        message.next = null;
+
+        if (message.pooled) {
+            mSendBufferPool.release(message.content);
+        }
+        message.content = null;
+        message.prefix = null;
+        message.pooled = false;
+
+        if (message.direct) {
+            message.done = true;
+            message.success = success;
+        } else {
+            freeMessageLocked(message);
+        }
+        mQueueLock.notifyAll();
+    }
+
+    private void freeMessageLocked(OutgoingMessage message) {
+        message.started = false;
+        message.done = false;
+        message.success = false;
+        message.next = mFreeMessages;
+        mFreeMessages = message;
+        mSendQueueCount -= 1;
+        mQueueLock.notifyAll();
+    }
+
+    // The size of the chunks in which queued messages are written.  Messages can only
+    // be split into chunks smaller than an envelope once the peer has said that it
+    // understands fragments, and until then are written whole.
+    private int getChunkSize() {
+        if (mPeerMaxMessageSize <= Protocol.MAX_CONTENT_SIZE) {
+            return Protocol.MAX_CONTENT_SIZE;
+        }
+        synchronized (mLock) {
+            if (mOutputBuffer == null) {
+                return Protocol.MAX_CONTENT_SIZE;
+            }
+            return Math.min(Protocol.MAX_CONTENT_SIZE,
+                    mOutputBuffer.capacity() - Protocol.HEADER_SIZE);
+        }
+    }
+
+    private void writeMessageLocked(int service, int what, ByteBuffer prefix,
+            ByteBuffer content) throws IOException {
+        boolean first = true;
+        while (!writeNextFragmentLocked(service, what, prefix, content, first,
+                Protocol.MAX_CONTENT_SIZE)) {
+            first = false;
+        }
+    }
+
+    // Writes the next fragment of a message, or all of it if it fits in one fragment.
+    // The prefix is only written with the first fragment.
+    // Returns true once the message has been completely written.
+    private boolean writeNextFragmentLocked(int service, int what, ByteBuffer prefix,
+            ByteBuffer content, boolean first, int fragmentSize) throws IOException {
+        if (!first) {
+            prefix = null;
+        }
+        final int prefixSize = prefix != null ? prefix.remaining() : 0;
+        final int contentSize = content != null ? content.remaining() : 0;
+        if (first && prefixSize + contentSize <= fragmentSize) {
+            writeEnvelopeLocked(service, what, 0, prefix, content);
+            return true;
+        }
+
+        final int limit = content.limit();
+        final int count = Math.min(contentSize, fragmentSize - prefixSize);
+        int flags = first ? 0 : Protocol.FLAG_CONTINUATION;
+        if (count < contentSize) {
+            flags |= Protocol.FLAG_MORE_FRAGMENTS;
+        }
+        content.limit(content.position() + count);
+        try {
+            writeEnvelopeLocked(service, what, flags, prefix, content);
+        } finally {
+            content.limit(limit);
+        }
+        return !content.hasRemaining();
+    }
+
+    private void writeEnvelopeLocked(int service, int what, int flags, ByteBuffer prefix,
+            ByteBuffer content) throws IOException {
+        final int size = (prefix != null ? prefix.remaining() : 0)
+                + (content != null ? content.remaining() : 0);
+        if (service != Protocol.TransportService.ID) {
+            synchronized (mQueueLock) {
+                mSentCreditBytes += Protocol.HEADER_SIZE + size;
+                mSentCreditMessages += 1;
+            }
+        }
+
+        mHeaderBuffer.clear();
+        mHeaderBuffer.putShort((short)service);
+        mHeaderBuffer.putShort((short)what);
+        mHeaderBuffer.putInt(flags | size);
+        if (prefix != null) {
+            // Leave the caller's prefix untouched so that it can be reused.
+            final int position = prefix.position();
+            mHeaderBuffer.put(prefix);
+            prefix.position(position);
+        }
+        mHeaderBuffer.flip();
+        ioWriteMessage(mHeaderBuffer, content);
     }
 
     private void dispatchMessageReceived(int service, int what, ByteBuffer content) {
+        if (service == Protocol.TransportService.ID) {
+            handleTransportMessage(what, content);
+            return;
+        }
+
         final Callback callback;
         synchronized (mLock) {
             callback = mServices.get(service);
@@ -213,6 +1009,137 @@ public abstract class Transport {
         }
     }
 
+    private void dispatchFragmentReceived(int service, int what, int flags,
+            ByteBuffer content) {
+        final boolean first = (flags & Protocol.FLAG_CONTINUATION) == 0;
+        final boolean last = (flags & Protocol.FLAG_MORE_FRAGMENTS) == 0;
+
+        // Hand the fragment straight to services that can consume it.
+        final Callback callback;
+        synchronized (mLock) {
+            callback = mServices.get(service);
+        }
+        if (callback instanceof FragmentCallback) {
+            ((FragmentCallback)callback).onMessageFragmentReceived(
+                    service, what, content, first, last);
+            return;
+        }
+
+        // Otherwise reassemble the message.
+        Reassembly reassembly = mReassemblies.get(service);
+        if (first) {
+            if (reassembly == null) {
+                reassembly = new Reassembly();
+                mReassemblies.put(service, reassembly);
+            } else if (reassembly.buffer != null) {
+                mLogger.logError("Discarding incomplete message " + reassembly.what
+                        + " for service " + service);
+                mInputBufferPool.release(reassembly.buffer);
+            }
+            reassembly.what = what;
+            reassembly.buffer = mInputBufferPool.acquire(content.remaining());
+        } else if (reassembly == null || reassembly.buffer == null || reassembly.what != what) {
+            mLogger.logError("Discarding unexpected fragment of message " + what
+                    + " for service " + service);
+            return;
+        }
+
+        final int needed = reassembly.buffer.position() + content.remaining();
+        if (needed > mInputBufferPool.getMaxBufferSize()) {
+            mLogger.logError("Discarding message " + what + " for service " + service
+                    + " because it is larger than " + mInputBufferPool.getMaxBufferSize()
+                    + " bytes.");
+            mInputBufferPool.release(reassembly.buffer);
+            reassembly.buffer = null;
+            return;
+        }
+        reassembly.buffer = mInputBufferPool.grow(reassembly.buffer, needed);
+        reassembly.buffer.put(content);
+
+        if (last) {
+            final ByteBuffer buffer = reassembly.buffer;
+            reassembly.buffer = null;
+            buffer.flip();
+            try {
+                dispatchMessageReceived(service, what, buffer);
+            } finally {
+                mInputBufferPool.release(buffer);
+            }
+        }
+    }
+
+    private void handleTransportMessage(int what, ByteBuffer content) {
+        switch (what) {
+            case Protocol.TransportService.MSG_HELLO: {
+                if (content != null && content.remaining() >= 8) {
+                    final int version = content.getInt();
+                    final int maxMessageSize = content.getInt();
+                    mPeerVersion = version;
+                    mPeerMaxMessageSize = Math.max(Protocol.MAX_CONTENT_SIZE,
+                            Math.min(maxMessageSize, Protocol.MAX_MESSAGE_SIZE));
+                    mLogger.log("Peer speaks protocol version " + version
+                            + " and accepts messages up to " + maxMessageSize + " bytes.");
+                }
+                if (content != null && content.remaining() >= 8) {
+                    // The window must hold a few envelopes or the sender could stall
+                    // waiting for credit that is only granted a quarter window at a time.
+                    final int windowBytes = content.getInt();
+                    final int windowMessages = content.getInt();
+                    synchronized (mQueueLock) {
+                        mPeerWindowBytes = Math.max(windowBytes, 4 * Protocol.MAX_ENVELOPE_SIZE);
+                        mPeerWindowMessages = Math.max(windowMessages, 4);
+                        mQueueLock.notifyAll();
+                    }
+                    mPeerUsesCredit = true;
+                    grantCredit();
+                }
+                break;
+            }
+
+            case Protocol.TransportService.MSG_CREDIT: {
+                if (content != null && content.remaining() >= 8) {
+                    synchronized (mQueueLock) {
+                        mPeerConsumedBytes = content.getInt();
+                        mPeerConsumedMessages = content.getInt();
+                        mQueueLock.notifyAll();
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    // Grants credit for the messages consumed so far once enough has accumulated.
+    // Called on the transport thread after received messages have been dispatched.
+    private void grantCredit() {
+        if (!mPeerUsesCredit
+                || (mConsumedBytes - mGrantedBytes < RECEIVE_WINDOW_BYTES / 4
+                        && mConsumedMessages - mGrantedMessages < RECEIVE_WINDOW_MESSAGES / 4)) {
+            return;
+        }
+        mGrantedBytes = mConsumedBytes;
+        mGrantedMessages = mConsumedMessages;
+        mCreditGrantCount += 1;
+
+        // With a writer thread, hand the grant to it directly rather than through the
+        // send queue which may be full of messages that are waiting for credit.
+        if (mWriterThread != null) {
+            synchronized (mQueueLock) {
+                mCreditGrantPending = true;
+                mCreditGrantBytes = mGrantedBytes;
+                mCreditGrantMessages = mGrantedMessages;
+                mQueueLock.notifyAll();
+            }
+        } else {
+            mCreditBuffer.clear();
+            mCreditBuffer.putInt(mGrantedBytes);
+            mCreditBuffer.putInt(mGrantedMessages);
+            mCreditBuffer.flip();
+            writeMessage(Protocol.TransportService.ID, Protocol.TransportService.MSG_CREDIT,
+                    null, mCreditBuffer);
+        }
+    }
+
     private static void checkServiceId(int service) {
         if (service < 0 || service > 0xffff) {
             throw new IllegalArgumentException("service id out of range: " + service);
@@ -225,6 +1152,89 @@ public abstract class Transport {
         }
     }
 
+    private static void checkPriority(int priority) {
+        if (priority < 0 || priority >= PRIORITY_COUNT) {
+            throw new IllegalArgumentException("invalid priority: " + priority);
+        }
+    }
+
+    private void checkContentSize(ByteBuffer prefix, ByteBuffer content) {
+        final int prefixSize = prefix != null ? prefix.remaining() : 0;
+        if (prefixSize > MAX_PREFIX_SIZE) {
+            throw new IllegalArgumentException("Message prefix too large: "
+                    + prefixSize + " > " + MAX_PREFIX_SIZE);
+        }
+        final int size = prefixSize + (content != null ? content.remaining() : 0);
+        final int maxMessageSize = getMaxMessageSize();
+        if (size > maxMessageSize) {
+            throw new IllegalArgumentException("Message content too large: "
+                    + size + " > " + maxMessageSize);
+        }
+    }
+
+    /**
+     * Writes a complete message consisting of a header followed by its content.
+     * <p>
+     * The default implementation coalesces the header and content into a single
+     * packet when they fit in the output buffer.  Otherwise it writes the header and
+     * content separately using {@link #ioWrite(ByteBuffer)} so that large content is
+     * not copied.  Transports that can write several {@link ByteBuffer}s at once may
+     * override this method.  Messages are written one at a time while holding the
+     * transport lock.
+     * </p>
+     *
+     * @param header The message header, positioned at its start.
+     * @param content The content, or null if there is none.
+     */
+    protected void ioWriteMessage(ByteBuffer header, ByteBuffer content) throws IOException {
+        if (content != null
+                && header.remaining() + content.remaining() > mOutputBuffer.capacity()) {
+            ioWrite(header);
+            ioWrite(content);
+            return;
+        }
+
+        mOutputBuffer.clear();
+        mOutputBuffer.put(header);
+        if (content != null) {
+            mCopiedByteCount.addAndGet(content.remaining());
+            mOutputBuffer.put(content);
+        }
+        ioWrite(mOutputBuffer.array(), 0, mOutputBuffer.position());
+    }
+
+    /**
+     * Writes the remaining contents of a buffer.
+     * <p>
+     * The default implementation writes heap buffers straight from their backing
+     * array in packet sized chunks using {@link #ioWrite(byte[], int, int)}.  Direct
+     * buffers have to be copied through the output buffer first so transports that
+     * can write from a direct buffer should override this method.
+     * Called while holding the transport lock.
+     * </p>
+     *
+     * @param buffer The buffer to write, which is consumed.
+     */
+    protected void ioWrite(ByteBuffer buffer) throws IOException {
+        final int capacity = mOutputBuffer.capacity();
+        while (buffer.hasRemaining()) {
+            final int position = buffer.position();
+            final int count = Math.min(buffer.remaining(), capacity);
+            if (buffer.hasArray()) {
+                ioWrite(buffer.array(), buffer.arrayOffset() + position, count);
+                buffer.position(position + count);
+            } else {
+                final int limit = buffer.limit();
+                buffer.limit(position + count);
+                mOutputBuffer.clear();
+                mOutputBuffer.put(buffer);
+                buffer.limit(limit);
+                mCopiedByteCount.addAndGet(count);
+                ioWrite(mOutputBuffer.array(), 0, count);
+            }
+        }
+    }
+
     // The IO methods must be safe to call on any thread.
     // They may be called concurrently.
     protected abstract void ioClose();
@@ -233,6 +1243,29 @@ public abstract class Transport {
     protected abstract void ioWrite(byte[] buffer, int offset, int count)
             throws IOException;
 
+    /**
+     * Reads into a buffer between its position and limit, advancing its position.
+     * <p>
+     * The default implementation reads into the backing array with
+     * {@link #ioRead(byte[], int, int)}.  Transports that use a pool of direct input
+     * buffers must override this method.  Only called by the reader thread.
+     * </p>
+     *
+     * @return The number of bytes read, or -1 at the end of the stream.
+     */
+    protected int ioRead(ByteBuffer buffer) throws IOException {
+        if (!buffer.hasArray()) {
+            throw new IOException("Transport cannot read into a direct buffer.");
+        }
+        final int position = buffer.position();
+        final int count = ioRead(buffer.array(), buffer.arrayOffset() + position,
+                buffer.remaining());
+        if (count > 0) {
+            buffer.position(position + count);
+        }
+        return count;
+    }
+
     /**
      * Callback for services that handle received messages.
      */
@@ -247,29 +1280,65 @@ public abstract class Transport {
         public void onMessageReceived(int service, int what, ByteBuffer content);
     }
 
+    /**
+     * Callback for services that can consume large messages one fragment at a time
+     * instead of having them reassembled into a single buffer first.
+     */
+    public interface FragmentCallback extends Callback {
+        /**
+         * Indicates that a fragment of a message that was too large for a single
+         * envelope was received.  Fragments of a message are delivered in order.
+         *
+         * @param service The service to whom the message is addressed.
+         * @param what The message type.
+         * @param content The content of this fragment.
+         * @param first True if this is the first fragment of the message.
+         * @param last True if this is the last fragment of the message.
+         */
+        public void onMessageFragmentReceived(int service, int what, ByteBuffer content,
+                boolean first, boolean last);
+    }
+
     final class TransportHandler extends Handler {
+        // A view of the input ring, only accessed on the transport thread.
+        private final ByteBuffer mBuffer = mInputRing.newView();
+
         @Override
         public void handleMessage(Message msg) {
-            final ByteBuffer buffer = (ByteBuffer)msg.obj;
+            // The message holds the start and end of a run of complete messages.
+            final ByteBuffer buffer = mBuffer;
+            final int limit = msg.arg2;
             try {
-                final int limit = buffer.limit();
+                buffer.limit(limit);
+                buffer.position(msg.arg1);
                 while (buffer.position() < limit) {
                     final int service = buffer.getShort() & 0xffff;
                     final int what = buffer.getShort() & 0xffff;
-                    final int contentSize = buffer.getInt();
-                    if (contentSize == 0) {
+                    final int sizeAndFlags = buffer.getInt();
+                    final int contentSize = sizeAndFlags & Protocol.CONTENT_SIZE_MASK;
+                    final int flags = sizeAndFlags & Protocol.FRAGMENT_FLAGS_MASK;
+                    if (service != Protocol.TransportService.ID) {
+                        mConsumedBytes += Protocol.HEADER_SIZE + contentSize;
+                        mConsumedMessages += 1;
+                    }
+                    if (contentSize == 0 && flags == 0) {
                         dispatchMessageReceived(service, what, null);
                     } else {
                         final int end = buffer.position() + contentSize;
                         buffer.limit(end);
-                        dispatchMessageReceived(service, what, buffer);
+                        if (flags == 0) {
+                            dispatchMessageReceived(service, what, buffer);
+                        } else {
+                            dispatchFragmentReceived(service, what, flags, buffer);
+                        }
                         buffer.limit(limit);
                         buffer.position(end);
                     }
                 }
             } finally {
-                mInputBufferPool.release(buffer);
+                mInputRing.release(limit);
             }
+            grantCredit();
         }
     }
 
@@ -288,95 +1357,184 @@ public abstract class Transport {
         }
 
         private void loop() {
-            ByteBuffer buffer = null;
-            int length = Protocol.HEADER_SIZE;
-            int contentSize = -1;
-            outer: while (!mQuitting) {
-                // Get a buffer.
+            while (!mQuitting) {
+                // Wait for space in the ring.
+                final long startTime = System.nanoTime();
+                final ByteBuffer buffer = mInputRing.beginRead();
                 if (buffer == null) {
-                    buffer = mInputBufferPool.acquire(length);
-                } else {
-                    buffer = mInputBufferPool.grow(buffer, length);
+                    break; // closed
+                }
+                final long waitTime = System.nanoTime() - startTime;
+                if (waitTime > INPUT_WAIT_WARNING_NANOS) {
+                    mLogger.log("Reader waited " + waitTime / 1000000 + " ms for "
+                            + "received messages to be dispatched.");
                 }
 
-                // Read more data until needed number of bytes obtained.
-                int position = buffer.position();
-                int count;
+                // Read more data and frame any messages that it completes.
+                final int start = mInputRing.getMessageStart();
+                final int end;
                 try {
-                    count = ioRead(buffer.array(), position, buffer.capacity() - position);
+                    final int count = ioRead(buffer);
                     if (count < 0) {
                         break; // end of stream
                     }
+                    end = mInputRing.endRead(count);
                 } catch (IOException ex) {
                     mLogger.logError("Read failed: " + ex);
-                    break; // error
+                    break; // error or malformed stream
                 }
-                position += count;
-                buffer.position(position);
-                if (contentSize < 0 && position >= Protocol.HEADER_SIZE) {
-                    contentSize = buffer.getInt(4);
-                    if (contentSize < 0 || contentSize > Protocol.MAX_CONTENT_SIZE) {
-                        mLogger.logError("Encountered invalid content size: " + contentSize);
-                        break; // malformed stream
-                    }
-                    length += contentSize;
-                }
-                if (position < length) {
-                    continue; // need more data
+
+                // Post the run of complete messages then don't modify it anymore.
+                // It is released back to the ring once it has been dispatched.
+                if (end > start) {
+                    mHandler.obtainMessage(0, start, end).sendToTarget();
                 }
+            }
+        }
+
+        public void quit() {
+            mQuitting = true;
+        }
+    }
 
-                // There is at least one complete message in the buffer.
-                // Find the end of a contiguous chunk of complete messages.
-                int next = length;
-                int remaining;
-                for (;;) {
-                    length = Protocol.HEADER_SIZE;
-                    remaining = position - next;
-                    if (remaining < length) {
-                        contentSize = -1;
-                        break; // incomplete header, need more data
+    final class WriterThread extends Thread {
+        // The content of credit grants, only accessed by the writer thread.
+        private final ByteBuffer mGrantBuffer = ByteBuffer.allocate(8);
+
+        public WriterThread() {
+            super("Accessory Display Transport Writer");
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                // Wait for a credit grant to send or for the most urgent message that
+                // the peer has credit for.  Leave the message in the queue while it is
+                // being written so that it keeps its place.
+                final int chunkSize = getChunkSize();
+                OutgoingMessage message = null;
+                boolean first = false;
+                boolean grant = false;
+                synchronized (mQueueLock) {
+                    long stallStartTime = 0;
+                    while (!mSendQueueClosed) {
+                        if (mCreditGrantPending) {
+                            mCreditGrantPending = false;
+                            mGrantBuffer.clear();
+                            mGrantBuffer.putInt(mCreditGrantBytes);
+                            mGrantBuffer.putInt(mCreditGrantMessages);
+                            mGrantBuffer.flip();
+                            grant = true;
+                            break;
+                        }
+                        if (hasQueuedMessagesLocked()) {
+                            message = peekNextMessageLocked(chunkSize);
+                            if (message != null) {
+                                break;
+                            }
+                            if (stallStartTime == 0) {
+                                stallStartTime = System.nanoTime();
+                                mCreditStallCount += 1;
+                            }
+                        }
+                        try {
+                            mQueueLock.wait();
+                        } catch (InterruptedException ex) {
+                        }
                     }
-                    contentSize = buffer.getInt(next + 4);
-                    if (contentSize < 0 || contentSize > Protocol.MAX_CONTENT_SIZE) {
-                        mLogger.logError("Encountered invalid content size: " + contentSize);
-                        break outer; // malformed stream
+                    if (stallStartTime != 0) {
+                        mCreditStallTimeNanos += System.nanoTime() - stallStartTime;
                     }
-                    length += contentSize;
-                    if (remaining < length) {
-                        break; // incomplete content, need more data
+                    if (mSendQueueClosed) {
+                        break;
+                    }
+                    if (message != null) {
+                        first = !message.started;
+                        message.started = true;
+                        if (first) {
+                            final long timeInQueueNanos =
+                                    System.nanoTime() - message.enqueueTimeNanos;
+                            mSendLatencyHistograms[message.priority].record(timeInQueueNanos);
+                            mTotalTimeInQueueNanos += timeInQueueNanos;
+                            if (timeInQueueNanos > mMaxTimeInQueueNanos) {
+                                mMaxTimeInQueueNanos = timeInQueueNanos;
+                            }
+                        }
                     }
-                    next += length;
                 }
 
-                // Post the buffer then don't modify it anymore.
-                // Now this is kind of sneaky.  We know that no other threads will
-                // be acquiring buffers from the buffer pool so we can keep on
-                // referring to this buffer as long as we don't modify its contents.
-                // This allows us to operate in a single-buffered mode if desired.
-                buffer.limit(next);
-                buffer.rewind();
-                mHandler.obtainMessage(0, buffer).sendToTarget();
-
-                // If there is an incomplete message at the end, then we will need
-                // to copy it to a fresh buffer before continuing.  In the single-buffered
-                // case, we may acquire the same buffer as before which is fine.
-                if (remaining == 0) {
-                    buffer = null;
-                } else {
-                    final ByteBuffer oldBuffer = buffer;
-                    buffer = mInputBufferPool.acquire(length);
-                    System.arraycopy(oldBuffer.array(), next, buffer.array(), 0, remaining);
-                    buffer.position(remaining);
+                // Write the grant or one chunk then look for something more urgent.
+                boolean success = false;
+                boolean complete = false;
+                try {
+                    synchronized (mLock) {
+                        if (mOutputBuffer != null) {
+                            if (grant) {
+                                writeEnvelopeLocked(Protocol.TransportService.ID,
+                                        Protocol.TransportService.MSG_CREDIT, 0,
+                                        null, mGrantBuffer);
+                            } else {
+                                complete = writeNextFragmentLocked(message.service,
+                                        message.what, message.prefix, message.content,
+                                        first, chunkSize);
+                            }
+                            success = true;
+                        }
+                    }
+                } catch (IOException ex) {
+                    mLogger.logError("Send message failed: " + ex);
+                }
+
+                synchronized (mQueueLock) {
+                    if (!success) {
+                        mSendQueueClosed = true;
+                        mQueueLock.notifyAll();
+                    } else if (complete) {
+                        mWrittenMessageCount += 1;
+                        completeMessageLocked(message, true);
+                    }
                 }
             }
 
-            if (buffer != null) {
-                mInputBufferPool.release(buffer);
+            synchronized (mQueueLock) {
+                // Complete any messages that were never written.
+                for (int i = 0; i < PRIORITY_COUNT; i++) {
+                    while (mSendQueueHeads[i] != null) {
+                        completeMessageLocked(mSendQueueHeads[i], false);
+                    }
+                }
             }
         }
+    }
 
-        public void quit() {
-            mQuitting = true;
+    static final class Reassembly {
+        public int what;
+        public ByteBuffer buffer;
+    }
+
+    static final class OutgoingMessage {
+        public int service;
+        public int what;
+        public int priority;
+        // A prefix written before the content, only for direct messages.
+        public ByteBuffer prefix;
+        public ByteBuffer content;
+        // True if the content is a copy owned by the send buffer pool.
+        public boolean pooled;
+        // True if the sender is waiting in sendMessageDirect for the message
+        // to be done, after which the sender returns it to the free list.
+        public boolean direct;
+        public boolean started;
+        public boolean done;
+        public boolean success;
+        public long enqueueTimeNanos;
+        // The next message in the same queue or in the free list.
+        public OutgoingMessage next;
+
+        // Gets the number of bytes of prefix and content that remain to be written.
+        public int getRemainingSize() {
+            return (prefix != null && !started ? prefix.remaining() : 0)
+                    + (content != null ? content.remaining() : 0);
         }
     }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+public class AnnexBParserTest {
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+    private static final byte[] SHORT_START_CODE = { 0, 0, 1 };
+
+    private static final byte[] SPS = { 0x67, 0x42, (byte)0xc0, 0x1f, (byte)0xda };
+    private static final byte[] PPS = { 0x68, (byte)0xce, 0x3c, (byte)0x80 };
+    private static final byte[] SEI = { 0x06, 0x05, 0x01, 0x42, (byte)0x80 };
+
+    // Slices whose first_mb_in_slice is zero have the top bit of the byte after
+    // the NAL header set.
+    private static final byte[] IDR = { 0x65, (byte)0x88, (byte)0x84, 0x21, 0x7f };
+    private static final byte[] IDR_SECOND_SLICE = { 0x65, 0x41, (byte)0x9a, 0x11 };
+    private static final byte[] SLICE = { 0x41, (byte)0x9a, 0x02, 0x03 };
+    private static final byte[] SLICE_SECOND_SLICE = { 0x41, 0x20, 0x04, 0x05 };
+
+    private final AnnexBParser mParser = new AnnexBParser();
+
+    @Test
+    public void parameterSetsStayWithIdrInOneAccessUnit() {
+        final byte[] stream = stream(START_CODE, SPS, START_CODE, PPS, SHORT_START_CODE, SEI,
+                SHORT_START_CODE, IDR, SHORT_START_CODE, SLICE);
+        final int sliceOffset = stream.length - SLICE.length - SHORT_START_CODE.length;
+
+        mParser.reset(ByteBuffer.wrap(stream));
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(0, mParser.getAccessUnitStart());
+        assertEquals(sliceOffset, mParser.getAccessUnitEnd());
+        assertEquals(AnnexBParser.FLAG_KEY_FRAME, mParser.getAccessUnitFlags());
+
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(sliceOffset, mParser.getAccessUnitStart());
+        assertEquals(stream.length, mParser.getAccessUnitEnd());
+        assertEquals(0, mParser.getAccessUnitFlags());
+
+        assertFalse(mParser.nextAccessUnit());
+    }
+
+    @Test
+    public void parameterSetsAloneAreCodecConfig() {
+        final byte[] stream = stream(START_CODE, SPS, START_CODE, PPS);
+
+        mParser.reset(ByteBuffer.wrap(stream));
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(0, mParser.getAccessUnitStart());
+        assertEquals(stream.length, mParser.getAccessUnitEnd());
+        assertEquals(AnnexBParser.FLAG_CODEC_CONFIG, mParser.getAccessUnitFlags());
+        assertFalse(mParser.nextAccessUnit());
+    }
+
+    @Test
+    public void sliceStartsAccessUnitOnlyAtFirstMacroblock() {
+        final byte[] stream = stream(START_CODE, IDR, START_CODE, IDR_SECOND_SLICE,
+                START_CODE, SLICE, START_CODE, SLICE_SECOND_SLICE, START_CODE, SLICE);
+        final int secondPicture = START_CODE.length * 2 + IDR.length + IDR_SECOND_SLICE.length;
+        final int thirdPicture = stream.length - START_CODE.length - SLICE.length;
+
+        mParser.reset(ByteBuffer.wrap(stream));
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(0, mParser.getAccessUnitStart());
+        assertEquals(secondPicture, mParser.getAccessUnitEnd());
+        assertEquals(AnnexBParser.FLAG_KEY_FRAME, mParser.getAccessUnitFlags());
+
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(secondPicture, mParser.getAccessUnitStart());
+        assertEquals(thirdPicture, mParser.getAccessUnitEnd());
+        assertEquals(0, mParser.getAccessUnitFlags());
+
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(thirdPicture, mParser.getAccessUnitStart());
+        assertEquals(stream.length, mParser.getAccessUnitEnd());
+
+        assertFalse(mParser.nextAccessUnit());
+    }
+
+    @Test
+    public void contentWithoutStartCodeIsOneAccessUnit() {
+        final byte[] content = { 0x12, 0x00, 0x00, 0x02, 0x34, 0x00, 0x00 };
+
+        mParser.reset(ByteBuffer.wrap(content));
+        assertFalse(mParser.nextNalUnit());
+
+        mParser.reset(ByteBuffer.wrap(content));
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(0, mParser.getAccessUnitStart());
+        assertEquals(content.length, mParser.getAccessUnitEnd());
+        assertEquals(0, mParser.getAccessUnitFlags());
+        assertFalse(mParser.nextAccessUnit());
+
+        assertFalse(mParser.containsKeyFrame(ByteBuffer.wrap(content)));
+
+        mParser.reset(ByteBuffer.allocate(0));
+        assertFalse(mParser.nextAccessUnit());
+    }
+
+    @Test
+    public void bytesBeforeFirstStartCodeBelongToFirstAccessUnit() {
+        final byte[] stream = stream(new byte[] { 0x55, 0x66 }, START_CODE, SLICE);
+        final ByteBuffer buffer = ByteBuffer.allocate(stream.length + 3);
+        buffer.position(3);
+        buffer.put(stream);
+        buffer.position(3);
+
+        mParser.reset(buffer);
+        assertTrue(mParser.nextAccessUnit());
+        assertEquals(3, mParser.getAccessUnitStart());
+        assertEquals(buffer.limit(), mParser.getAccessUnitEnd());
+        assertFalse(mParser.nextAccessUnit());
+        assertEquals(3, buffer.position());
+    }
+
+    @Test
+    public void startCodeSplitAcrossReads() {
+        final byte[] stream = stream(START_CODE, SPS, START_CODE, PPS, SHORT_START_CODE, IDR,
+                SHORT_START_CODE, SLICE);
+        final int[] expected = accessUnits(ByteBuffer.wrap(stream));
+
+        // Frames arrive in pieces that may end anywhere, including inside a start
+        // code.  Whatever the split, the assembled frame parses the same way and
+        // a partial frame never reports a start code that is not complete yet.
+        for (int split = 1; split < stream.length; split++) {
+            for (boolean direct : new boolean[] { false, true }) {
+                final ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(stream.length)
+                        : ByteBuffer.allocate(stream.length);
+                buffer.put(stream, 0, split);
+                buffer.flip();
+                mParser.reset(buffer);
+                while (mParser.nextNalUnit()) {
+                    assertTrue(mParser.getNalPayloadOffset() <= split);
+                }
+                assertEquals(countStartCodes(stream, split), countNalUnits(buffer));
+
+                buffer.limit(stream.length);
+                buffer.position(split);
+                buffer.put(stream, split, stream.length - split);
+                buffer.flip();
+                assertArrayEquals(expected, accessUnits(buffer));
+            }
+        }
+    }
+
+    @Test
+    public void containsKeyFrame() {
+        assertTrue(mParser.containsKeyFrame(ByteBuffer.wrap(stream(START_CODE, SPS))));
+        assertTrue(mParser.containsKeyFrame(ByteBuffer.wrap(stream(START_CODE, IDR))));
+        assertFalse(mParser.containsKeyFrame(ByteBuffer.wrap(stream(START_CODE, SEI,
+                START_CODE, SLICE))));
+    }
+
+    // Returns the start, end and flags of each access unit.
+    private int[] accessUnits(ByteBuffer buffer) {
+        final int[] result = new int[30];
+        int count = 0;
+        mParser.reset(buffer);
+        while (mParser.nextAccessUnit()) {
+            result[count++] = mParser.getAccessUnitStart();
+            result[count++] = mParser.getAccessUnitEnd();
+            result[count++] = mParser.getAccessUnitFlags();
+        }
+        final int[] trimmed = new int[count];
+        System.arraycopy(result, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    private int countNalUnits(ByteBuffer buffer) {
+        int count = 0;
+        mParser.reset(buffer);
+        while (mParser.nextNalUnit()) {
+            count += 1;
+        }
+        return count;
+    }
+
+    private static int countStartCodes(byte[] stream, int limit) {
+        int count = 0;
+        for (int i = 0; i + 2 < limit; i++) {
+            if (stream[i] == 0 && stream[i + 1] == 0 && stream[i + 2] == 1) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] stream(byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
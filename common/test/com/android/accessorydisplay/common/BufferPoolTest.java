@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+    private static final int KB = 1024;
+    private static final int MB = 1024 * 1024;
+
+    @Test
+    public void releasedBufferIsReused() {
+        final BufferPool pool = new BufferPool(4 * KB, 64 * KB, 4);
+        final ByteBuffer buffer = pool.acquire(3 * KB);
+        assertEquals(4 * KB, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(4 * KB, pool.getRetainedBytes());
+
+        assertSame(buffer, pool.acquire(4 * KB));
+        assertEquals(1, pool.getAllocationCount());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    @Test
+    public void retainedBytesAreCappedAcrossSizeClasses() {
+        final int maxBuffers = 8;
+        final BufferPool pool = new BufferPool(64 * KB, 16 * MB, maxBuffers, false, 8 * MB);
+
+        // A burst of large messages, each grown through every smaller size.
+        final ByteBuffer[] buffers = new ByteBuffer[maxBuffers];
+        for (int i = 0; i < maxBuffers; i++) {
+            ByteBuffer buffer = pool.acquire(64 * KB);
+            for (int size = 128 * KB; size <= 16 * MB; size *= 2) {
+                buffer = pool.grow(buffer, size);
+            }
+            buffers[i] = buffer;
+            assertTrue(pool.getRetainedBytes() <= 8 * MB);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+            assertTrue(pool.getRetainedBytes() <= 8 * MB);
+        }
+        assertEquals(0, pool.getAcquiredCount());
+    }
+
+    @Test
+    public void fullSetOfSmallestBuffersIsAlwaysRetained() {
+        final int maxBuffers = 8;
+        final BufferPool pool = new BufferPool(64 * KB, 16 * MB, maxBuffers, false, 0);
+
+        final ByteBuffer[] buffers = new ByteBuffer[maxBuffers];
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < maxBuffers; i++) {
+                buffers[i] = pool.acquire(KB);
+            }
+            for (ByteBuffer buffer : buffers) {
+                pool.release(buffer);
+            }
+        }
+        assertEquals(maxBuffers, pool.getAllocationCount());
+        assertEquals(maxBuffers * 64 * KB, pool.getRetainedBytes());
+
+        // Larger buffers do not fit once the small ones are kept.
+        pool.release(pool.acquire(MB));
+        assertEquals(maxBuffers * 64 * KB, pool.getRetainedBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void acquireLargerThanMaximumThrows() {
+        new BufferPool(4 * KB, 64 * KB, 4).acquire(64 * KB + 1);
+    }
+}
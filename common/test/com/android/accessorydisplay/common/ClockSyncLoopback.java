@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Synchronizes the sink's clock with the source's over loopback transports with
+ * fake clocks, one exchange at a time.
+ */
+final class ClockSyncLoopback {
+    // How long the source takes to answer a ping.
+    private static final long PROCESSING_NANOS = 50000;
+
+    public final FakeClock mSinkClock = new FakeClock();
+    public final FakeClock mSourceClock = new FakeClock();
+    public final ClockSyncService mClockSync;
+    private final ClockSyncService mPeer;
+    private final long mSkewNanos;
+    private int mPingCount;
+    private int mPongCount;
+
+    /**
+     * @param skewNanos How much more the source's clock reads than the sink's.
+     */
+    public ClockSyncLoopback(LoopbackTransports transports, long skewNanos) {
+        mSkewNanos = skewNanos;
+        mClockSync = new ClockSyncService(RuntimeEnvironment.application,
+                transports.mSink, mSinkClock) {
+            @Override
+            public void onMessageReceived(int service, int what, ByteBuffer content) {
+                super.onMessageReceived(service, what, content);
+                mPongCount += 1;
+            }
+        };
+
+        // The peer only answers, so it is registered without starting its pings.
+        mPeer = new ClockSyncService(RuntimeEnvironment.application,
+                transports.mSource, mSourceClock);
+        transports.mSource.registerService(Protocol.ClockSyncService.ID, mPeer);
+    }
+
+    /**
+     * Pings the source at a time on the sink's clock and waits for the answer.
+     *
+     * @param originateTime The time of the ping on the sink's clock.
+     * @param forwardNanos How long the ping takes to reach the source.
+     * @param backwardNanos How long the answer takes to come back.
+     */
+    public void exchange(long originateTime, long forwardNanos, long backwardNanos) {
+        final long receiveTime = originateTime + forwardNanos;
+        final long transmitTime = receiveTime + PROCESSING_NANOS;
+        mSinkClock.enqueue(originateTime, transmitTime + backwardNanos);
+        mSourceClock.enqueue(receiveTime + mSkewNanos, transmitTime + mSkewNanos);
+
+        // The first ping is sent when the service starts, the others on a timer
+        // that is quick at first.
+        if (mPingCount == 0) {
+            mClockSync.start();
+        } else {
+            ShadowLooper.idleMainLooper(mPingCount < 8 ? 100 : 2000);
+        }
+        mPingCount += 1;
+        LoopbackTransports.runUntil(new LoopbackTransports.Condition() {
+            @Override
+            public boolean isTrue() {
+                return mPongCount == mPingCount;
+            }
+        });
+        assertEquals(0, mSinkClock.getQueuedCount());
+        assertEquals(0, mSourceClock.getQueuedCount());
+    }
+
+    public void stop() {
+        if (mPingCount != 0) {
+            mClockSync.stop();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class ClockSyncServiceTest {
+    private static final long MS = 1000000L;
+
+    // The source's clock reads this much more than the sink's.
+    private static final long SKEW_NANOS = 123456789L;
+
+    private LoopbackTransports mTransports;
+    private ClockSyncLoopback mLoopback;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransports = new LoopbackTransports();
+        mTransports.start();
+        mLoopback = new ClockSyncLoopback(mTransports, SKEW_NANOS);
+    }
+
+    @After
+    public void tearDown() {
+        mLoopback.stop();
+        mTransports.close();
+    }
+
+    @Test
+    public void symmetricExchangeMeasuresSkew() {
+        assertFalse(mLoopback.mClockSync.isSynchronized());
+
+        mLoopback.exchange(10 * MS, 2 * MS, 2 * MS);
+        assertTrue(mLoopback.mClockSync.isSynchronized());
+        assertEquals(SKEW_NANOS, mLoopback.mClockSync.getOffsetNanos());
+        assertEquals(4 * MS, mLoopback.mClockSync.getRoundTripNanos());
+        assertEquals(1000 * MS, mLoopback.mClockSync.toLocalTime(1000 * MS + SKEW_NANOS));
+    }
+
+    @Test
+    public void offsetComesFromExchangeWithSmallestRoundTrip() {
+        // Queueing makes most exchanges asymmetric, which skews their offsets by
+        // half the difference between the two directions.
+        final long[][] delays = {
+            { 9 * MS, 1 * MS },
+            { 2 * MS, 12 * MS },
+            { 6 * MS, 3 * MS },
+            { 1 * MS, 1 * MS },
+            { 20 * MS, 2 * MS },
+            { 3 * MS, 6 * MS },
+            { 5 * MS, 3 * MS },
+            { 1 * MS, 8 * MS },
+        };
+        long time = 10 * MS;
+        for (long[] delay : delays) {
+            mLoopback.exchange(time, delay[0], delay[1]);
+            time += 100 * MS;
+        }
+        assertEquals(SKEW_NANOS, mLoopback.mClockSync.getOffsetNanos());
+        assertEquals(2 * MS, mLoopback.mClockSync.getRoundTripNanos());
+        assertEquals(8, mLoopback.mClockSync.getRoundTripHistogram().getCount());
+
+        // Once the best exchange is no longer among the last eight, the best of
+        // those is used instead.
+        for (int i = 0; i < 4; i++) {
+            mLoopback.exchange(time, 6 * MS, 10 * MS);
+            time += 2000 * MS;
+        }
+        assertEquals(SKEW_NANOS + 1 * MS, mLoopback.mClockSync.getOffsetNanos());
+        assertEquals(8 * MS, mLoopback.mClockSync.getRoundTripNanos());
+        assertEquals(12, mLoopback.mClockSync.getRoundTripHistogram().getCount());
+    }
+
+    @Test
+    public void ignoresNegativeRoundTrip() {
+        mLoopback.exchange(10 * MS, 3 * MS, 3 * MS);
+
+        // The answer seems to arrive before it was sent, as if a clock jumped.
+        mLoopback.exchange(110 * MS, 1 * MS, -3 * MS);
+        assertEquals(1, mLoopback.mClockSync.getRoundTripHistogram().getCount());
+        assertEquals(SKEW_NANOS, mLoopback.mClockSync.getOffsetNanos());
+        assertEquals(6 * MS, mLoopback.mClockSync.getRoundTripNanos());
+    }
+}
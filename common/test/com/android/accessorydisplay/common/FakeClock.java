@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+/**
+ * A clock that returns the times it was told to, in order, then keeps returning
+ * the last one.
+ */
+final class FakeClock implements Clock {
+    private final long[] mTimes = new long[64];
+    private int mHead;
+    private int mCount;
+    private long mNow;
+
+    /**
+     * Queues the times returned by the next calls to {@link #nanoTime}.
+     */
+    public synchronized void enqueue(long... times) {
+        for (long time : times) {
+            if (mCount == mTimes.length) {
+                throw new IllegalStateException("Too many times queued");
+            }
+            mTimes[(mHead + mCount) % mTimes.length] = time;
+            mCount += 1;
+        }
+    }
+
+    /**
+     * Gets the number of queued times that have not been returned yet.
+     */
+    public synchronized int getQueuedCount() {
+        return mCount;
+    }
+
+    @Override
+    public synchronized long nanoTime() {
+        if (mCount != 0) {
+            mNow = mTimes[mHead];
+            mHead = (mHead + 1) % mTimes.length;
+            mCount -= 1;
+        }
+        return mNow;
+    }
+}
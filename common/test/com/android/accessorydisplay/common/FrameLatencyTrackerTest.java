@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class FrameLatencyTrackerTest {
+    private static final long MS = 1000000L;
+
+    // The source's clock reads this much more than the sink's, in whole
+    // microseconds like presentation times.
+    private static final long SKEW_NANOS = 7654321000L;
+
+    private LoopbackTransports mTransports;
+    private ClockSyncLoopback mLoopback;
+    private FrameLatencyTracker mTracker;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransports = new LoopbackTransports();
+        mTransports.start();
+        mLoopback = new ClockSyncLoopback(mTransports, SKEW_NANOS);
+        mTracker = new FrameLatencyTracker(mLoopback.mClockSync);
+    }
+
+    @After
+    public void tearDown() {
+        mLoopback.stop();
+        mTransports.close();
+    }
+
+    @Test
+    public void onlyLocalStagesAreMeasuredBeforeSync() {
+        sendFrame(1000 * MS, 8 * MS, 12 * MS, 5 * MS);
+
+        assertEquals(1, mTracker.getEncodeHistogram().getCount());
+        assertEquals(8 * MS, mTracker.getEncodeHistogram().getMaxNanos());
+        assertEquals(1, mTracker.getDecodeHistogram().getCount());
+        assertEquals(5 * MS, mTracker.getDecodeHistogram().getMaxNanos());
+        assertEquals(0, mTracker.getNetworkHistogram().getCount());
+        assertEquals(0, mTracker.getEndToEndHistogram().getCount());
+    }
+
+    @Test
+    public void networkAndEndToEndAreMeasuredAcrossClocks() {
+        mLoopback.exchange(10 * MS, 3 * MS, 3 * MS);
+
+        sendFrame(1000 * MS, 8 * MS, 12 * MS, 5 * MS);
+        sendFrame(1033 * MS, 6 * MS, 30 * MS, 16 * MS);
+
+        assertEquals(2, mTracker.getNetworkHistogram().getCount());
+        assertEquals(21 * MS, mTracker.getNetworkHistogram().getMeanNanos());
+        assertEquals(30 * MS, mTracker.getNetworkHistogram().getMaxNanos());
+        assertEquals(2, mTracker.getEndToEndHistogram().getCount());
+        assertEquals((25 + 52) * MS / 2, mTracker.getEndToEndHistogram().getMeanNanos());
+        assertEquals(52 * MS, mTracker.getEndToEndHistogram().getMaxNanos());
+        assertEquals(7 * MS, mTracker.getEncodeHistogram().getMeanNanos());
+        assertEquals((5 + 16) * MS / 2, mTracker.getDecodeHistogram().getMeanNanos());
+    }
+
+    @Test
+    public void framesAreMatchedByPresentationTime() {
+        mLoopback.exchange(10 * MS, 3 * MS, 3 * MS);
+
+        // Two frames in flight are rendered in the opposite order.
+        final long firstCapture = 2000 * MS;
+        final long secondCapture = 2016 * MS;
+        mTracker.onFrameReceived(toPts(firstCapture), firstCapture + SKEW_NANOS + 5 * MS,
+                firstCapture + 20 * MS);
+        mTracker.onFrameReceived(toPts(secondCapture), secondCapture + SKEW_NANOS + 5 * MS,
+                secondCapture + 20 * MS);
+        mTracker.onFrameRendered(toPts(secondCapture), secondCapture + 30 * MS);
+        mTracker.onFrameRendered(toPts(firstCapture), firstCapture + 40 * MS);
+
+        // A frame that was never received, or was forgotten, is not measured.
+        mTracker.onFrameRendered(toPts(3000 * MS), 3050 * MS);
+        mTracker.clear();
+        mTracker.onFrameRendered(toPts(firstCapture), firstCapture + 90 * MS);
+
+        assertEquals(2, mTracker.getDecodeHistogram().getCount());
+        assertEquals(15 * MS, mTracker.getDecodeHistogram().getMeanNanos());
+        assertEquals(2, mTracker.getEndToEndHistogram().getCount());
+        assertEquals(40 * MS, mTracker.getEndToEndHistogram().getMaxNanos());
+    }
+
+    // Records a frame captured at a time on the sink's clock which spends the
+    // given time in each stage.
+    private void sendFrame(long captureTime, long encodeNanos, long networkNanos,
+            long decodeNanos) {
+        final long encodedTime = captureTime + encodeNanos;
+        final long arrivalTime = encodedTime + networkNanos;
+        mTracker.onFrameReceived(toPts(captureTime), encodedTime + SKEW_NANOS, arrivalTime);
+        mTracker.onFrameRendered(toPts(captureTime), arrivalTime + decodeNanos);
+    }
+
+    // Gets the presentation time the source gives a frame captured at a time on
+    // the sink's clock.
+    private static long toPts(long captureTime) {
+        return (captureTime + SKEW_NANOS) / 1000;
+    }
+}
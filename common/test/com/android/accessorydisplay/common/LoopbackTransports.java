@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.fail;
+
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A pair of socket channel transports connected over the loopback interface,
+ * whose messages are dispatched on the Robolectric main looper.
+ */
+final class LoopbackTransports {
+    private static final long TIMEOUT_MILLIS = 20000;
+
+    public final SocketChannelTransport mSource;
+    public final SocketChannelTransport mSink;
+
+    /**
+     * A condition to wait for while running the main looper.
+     */
+    public interface Condition {
+        public boolean isTrue();
+    }
+
+    public LoopbackTransports() throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+            final SocketChannel accepted = server.accept();
+            mSource = new SocketChannelTransport(new TestLogger("source"), client);
+            mSink = new SocketChannelTransport(new TestLogger("sink"), accepted);
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * Starts both transports, writing on their own threads, and waits until
+     * each has received the other's hello.
+     */
+    public void start() {
+        mSource.startWriting();
+        mSink.startWriting();
+        mSource.startReading();
+        mSink.startReading();
+        runUntil(new Condition() {
+            @Override
+            public boolean isTrue() {
+                return mSource.getPeerVersion() == Protocol.VERSION
+                        && mSink.getPeerVersion() == Protocol.VERSION;
+            }
+        });
+    }
+
+    public void close() {
+        mSource.close();
+        mSink.close();
+    }
+
+    /**
+     * Runs the main looper until a condition holds, failing after a timeout.
+     */
+    public static void runUntil(Condition condition) {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (;;) {
+            ShadowLooper.runUiThreadTasks();
+            if (condition.isTrue()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting for the transports");
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+            }
+        }
+    }
+
+    private static final class TestLogger extends Logger {
+        private final String mName;
+
+        public TestLogger(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void log(String message) {
+            System.out.println(mName + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class MessageRingTest {
+    private static final int CAPACITY = Protocol.MAX_ENVELOPE_SIZE;
+
+    @Test
+    public void randomlySplitStreamArrivesIntact() throws Exception {
+        for (boolean direct : new boolean[] { false, true }) {
+            checkStream(new Random(direct ? 2 : 1), direct);
+        }
+    }
+
+    @Test
+    public void oversizeContentIsRejected() {
+        final MessageRing ring = new MessageRing(CAPACITY, false);
+        final ByteBuffer view = ring.beginRead();
+        view.putInt(1);
+        view.putInt(Protocol.MAX_CONTENT_SIZE + 1);
+        try {
+            ring.endRead(Protocol.HEADER_SIZE);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unknownFlagIsRejected() {
+        final MessageRing ring = new MessageRing(CAPACITY, false);
+        final ByteBuffer view = ring.beginRead();
+        view.putInt(1);
+        view.putInt(0x01000000 | 16);
+        try {
+            ring.endRead(Protocol.HEADER_SIZE);
+            fail("Expected IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void fragmentFlagsAreAccepted() throws Exception {
+        final MessageRing ring = new MessageRing(CAPACITY, false);
+        final ByteBuffer view = ring.beginRead();
+        view.putInt(1);
+        view.putInt(Protocol.FLAG_MORE_FRAGMENTS | 4);
+        view.putInt(0);
+        view.putInt(1);
+        view.putInt(Protocol.FLAG_CONTINUATION);
+        assertEquals(2 * Protocol.HEADER_SIZE + 4, ring.endRead(view.position()));
+    }
+
+    @Test
+    public void closeWakesReader() throws Exception {
+        final MessageRing ring = new MessageRing(CAPACITY, false);
+        final Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ex) {
+                }
+                ring.close();
+            }
+        };
+
+        // Fill the ring without releasing anything so that the reader waits.
+        final ByteBuffer view = ring.beginRead();
+        final int contentSize = Protocol.MAX_CONTENT_SIZE;
+        view.putInt(1);
+        view.putInt(contentSize);
+        view.position(view.position() + contentSize);
+        assertEquals(Protocol.MAX_ENVELOPE_SIZE, ring.endRead(view.position()));
+
+        closer.start();
+        assertNull(ring.beginRead());
+        closer.join();
+    }
+
+    private static void checkStream(Random random, boolean direct) throws Exception {
+        final MessageRing ring = new MessageRing(CAPACITY, direct);
+        final byte[] stream = createStream(random, 400);
+        final BlockingQueue<int[]> runs = new ArrayBlockingQueue<int[]>(1024);
+        final Consumer consumer = new Consumer(ring, runs, new Random(random.nextLong()));
+        consumer.start();
+
+        int offset = 0;
+        while (offset < stream.length) {
+            final ByteBuffer view = ring.beginRead();
+            if (view == null) {
+                break; // the consumer failed
+            }
+            final int start = ring.getMessageStart();
+            int count = Math.min(view.remaining(), stream.length - offset);
+            count = Math.min(count, 1 + random.nextInt(random.nextBoolean() ? 64 : 64 * 1024));
+            view.put(stream, offset, count);
+            offset += count;
+            final int end = ring.endRead(count);
+            if (end > start) {
+                runs.put(new int[] { start, end });
+            }
+        }
+        runs.put(new int[] { -1, -1 });
+        consumer.join();
+
+        if (consumer.mFailure != null) {
+            throw new AssertionError(consumer.mFailure);
+        }
+        assertEquals(400, consumer.mMessageCount);
+        assertTrue("The ring never filled up", ring.getWaitCount() > 0);
+    }
+
+    // Builds a stream of messages whose header carries a sequence number in place
+    // of the service and type, with content derived from it.
+    private static byte[] createStream(Random random, int messageCount) {
+        int totalSize = 0;
+        final int[] sizes = new int[messageCount];
+        for (int i = 0; i < messageCount; i++) {
+            final int kind = random.nextInt(10);
+            sizes[i] = kind == 0 ? Protocol.MAX_CONTENT_SIZE - random.nextInt(16)
+                    : kind < 4 ? random.nextInt(Protocol.MAX_CONTENT_SIZE)
+                    : random.nextInt(256);
+            totalSize += Protocol.HEADER_SIZE + sizes[i];
+        }
+        final ByteBuffer stream = ByteBuffer.allocate(totalSize);
+        for (int i = 0; i < messageCount; i++) {
+            stream.putInt(i);
+            stream.putInt(sizes[i]);
+            for (int j = 0; j < sizes[i]; j++) {
+                stream.put(contentByte(i, j));
+            }
+        }
+        return stream.array();
+    }
+
+    private static byte contentByte(int sequence, int index) {
+        return (byte)(sequence * 31 + index);
+    }
+
+    private static final class Consumer extends Thread {
+        private final MessageRing mRing;
+        private final BlockingQueue<int[]> mRuns;
+        private final Random mRandom;
+        private final ByteBuffer mView;
+        public int mMessageCount;
+        public Throwable mFailure;
+
+        public Consumer(MessageRing ring, BlockingQueue<int[]> runs, Random random) {
+            mRing = ring;
+            mRuns = runs;
+            mRandom = random;
+            mView = ring.newView();
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final int[] run = mRuns.take();
+                    if (run[0] < 0) {
+                        return;
+                    }
+                    // Lag behind the reader now and then.
+                    if (mRandom.nextInt(8) == 0) {
+                        Thread.sleep(1);
+                    }
+                    int offset = run[0];
+                    while (offset < run[1]) {
+                        final int sequence = mView.getInt(offset);
+                        final int size = mView.getInt(offset + 4) & Protocol.CONTENT_SIZE_MASK;
+                        assertEquals(mMessageCount, sequence);
+                        for (int j = 0; j < size; j++) {
+                            if (mView.get(offset + Protocol.HEADER_SIZE + j)
+                                    != contentByte(sequence, j)) {
+                                fail("Message " + sequence + " corrupt at " + j);
+                            }
+                        }
+                        offset += Protocol.HEADER_SIZE + size;
+                        mMessageCount += 1;
+                    }
+                    assertEquals(run[1], offset);
+                    mRing.release(run[1]);
+                }
+            } catch (Throwable t) {
+                mFailure = t;
+                mRing.close();
+            }
+        }
+    }
+}
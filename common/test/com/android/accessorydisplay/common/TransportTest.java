@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class TransportTest {
+    private static final int SERVICE_ID = 100;
+
+    private LoopbackTransports mTransports;
+
+    @Before
+    public void setUp() throws Exception {
+        mTransports = new LoopbackTransports();
+        mTransports.start();
+    }
+
+    @After
+    public void tearDown() {
+        mTransports.close();
+    }
+
+    @Test
+    public void largeMessageIsReassembled() throws Exception {
+        final int size = 6 * 1024 * 1024 + 123;
+        final Receiver receiver = new Receiver(0);
+        mTransports.mSink.registerService(SERVICE_ID, receiver);
+
+        final Sender sender = new Sender(new int[] { size, 10, size / 2 });
+        sender.start();
+        waitForMessages(receiver, 3);
+        sender.join();
+
+        assertTrue(sender.mSucceeded);
+        assertEquals(3, receiver.mMessageCount);
+        assertEquals(size + 10 + size / 2, receiver.mByteCount);
+        assertNull(receiver.mFailure, receiver.mFailure);
+    }
+
+    @Test
+    public void largeMessageIsDeliveredInFragments() throws Exception {
+        final int size = 3 * 1024 * 1024 + 45;
+        final FragmentReceiver receiver = new FragmentReceiver();
+        mTransports.mSink.registerService(SERVICE_ID, receiver);
+
+        final Sender sender = new Sender(new int[] { size, 1000 });
+        sender.start();
+        waitForMessages(receiver, 2);
+        sender.join();
+
+        assertTrue(sender.mSucceeded);
+        assertEquals(size + 1000, receiver.mByteCount);
+        assertTrue("Expected several fragments", receiver.mFragmentCount > 10);
+        assertNull(receiver.mFailure, receiver.mFailure);
+    }
+
+    @Test
+    public void slowConsumerStallsSenderWithoutLosingMessages() throws Exception {
+        // Many times the receive window, so the sender must wait for credit.
+        final int[] sizes = new int[120];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = i % 3 == 0 ? 200 * 1024 : i % 3 == 1 ? 16 : 700 * 1024;
+        }
+        final Receiver receiver = new Receiver(5 /*delayMillis*/);
+        mTransports.mSink.registerService(SERVICE_ID, receiver);
+
+        final Sender sender = new Sender(sizes);
+        sender.start();
+        waitForMessages(receiver, sizes.length);
+        sender.join();
+
+        assertTrue(sender.mSucceeded);
+        assertNull(receiver.mFailure, receiver.mFailure);
+        assertTrue("Sender never waited for credit",
+                mTransports.mSource.getCreditStallCount() > 0);
+        assertTrue(mTransports.mSink.getCreditGrantCount() > 0);
+        assertFalse("Sender overran its credit", receiver.mCreditOverrun);
+        assertEquals(0, mTransports.mSource.getRejectedMessageCount());
+    }
+
+    private void waitForMessages(final Receiver receiver, final int count) {
+        LoopbackTransports.runUntil(new LoopbackTransports.Condition() {
+            @Override
+            public boolean isTrue() {
+                return receiver.mFailure != null || receiver.mMessageCount == count;
+            }
+        });
+    }
+
+    private static byte contentByte(int sequence, int index) {
+        return (byte)(index * 7 + sequence);
+    }
+
+    // Sends messages of the given sizes from its own thread, since senders block
+    // while the send queue is full and credit is only granted on the looper.
+    private final class Sender extends Thread {
+        private final int[] mSizes;
+        public volatile boolean mSucceeded;
+
+        public Sender(int[] sizes) {
+            mSizes = sizes;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < mSizes.length; i++) {
+                final ByteBuffer content = ByteBuffer.allocate(mSizes[i]);
+                for (int j = 0; j < mSizes[i]; j++) {
+                    content.put(contentByte(i, j));
+                }
+                content.flip();
+                if (!mTransports.mSource.sendMessage(SERVICE_ID, i, content,
+                        Transport.PRIORITY_VIDEO)) {
+                    return;
+                }
+            }
+            mSucceeded = true;
+        }
+    }
+
+    // Checks that whole messages arrive in order, taking a while over each.
+    private class Receiver implements Transport.Callback {
+        private final long mDelayMillis;
+        public int mMessageCount;
+        public long mByteCount;
+        public boolean mCreditOverrun;
+        public String mFailure;
+
+        public Receiver(long delayMillis) {
+            mDelayMillis = delayMillis;
+        }
+
+        @Override
+        public void onMessageReceived(int service, int what, ByteBuffer content) {
+            if (mTransports.mSource.getSendCreditBytes() < 0
+                    || mTransports.mSource.getSendCreditMessages() < 0) {
+                mCreditOverrun = true;
+            }
+            if (what != mMessageCount) {
+                fail("Expected message " + mMessageCount + " but received " + what);
+            }
+            checkContent(what, content, 0);
+            mMessageCount += 1;
+            mByteCount += content.remaining();
+            if (mDelayMillis != 0) {
+                try {
+                    Thread.sleep(mDelayMillis);
+                } catch (InterruptedException ex) {
+                }
+            }
+        }
+
+        protected void checkContent(int sequence, ByteBuffer content, long offset) {
+            for (int i = content.position(); i < content.limit(); i++) {
+                final byte expected = contentByte(sequence,
+                        (int)(offset + i - content.position()));
+                if (content.get(i) != expected) {
+                    fail("Message " + sequence + " corrupt at "
+                            + (offset + i - content.position()));
+                }
+            }
+        }
+
+        protected void fail(String message) {
+            if (mFailure == null) {
+                mFailure = message;
+            }
+        }
+    }
+
+    // Checks that fragments of large messages arrive in order and add up.
+    private final class FragmentReceiver extends Receiver
+            implements Transport.FragmentCallback {
+        private long mOffset;
+        public int mFragmentCount;
+
+        public FragmentReceiver() {
+            super(0);
+        }
+
+        @Override
+        public void onMessageFragmentReceived(int service, int what, ByteBuffer content,
+                boolean first, boolean last) {
+            mFragmentCount += 1;
+            if (what != mMessageCount) {
+                fail("Expected a fragment of message " + mMessageCount
+                        + " but received one of " + what);
+            }
+            if (first != (mOffset == 0)) {
+                fail("Fragment at " + mOffset + " of message " + what
+                        + (first ? " claims" : " does not claim") + " to be first");
+            }
+            checkContent(what, content, mOffset);
+            mOffset += content.remaining();
+            mByteCount += content.remaining();
+            if (last) {
+                mOffset = 0;
+                mMessageCount += 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,853 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.sink;
+
+import com.android.accessorydisplay.common.AnnexBParser;
+import com.android.accessorydisplay.common.BufferPool;
+import com.android.accessorydisplay.common.FrameLatencyTracker;
+import com.android.accessorydisplay.common.LatencyHistogram;
+import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.Protocol;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodec.CodecException;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames to a surface with an asynchronous codec on its own thread.
+ * <p>
+ * Frames are assembled on the caller's thread into pooled buffers and placed in
+ * a bounded queue, then copied into codec input buffers as the codec makes them
+ * available.  Each input buffer receives exactly one H.264 access unit with flags
+ * that say whether it is a key frame or codec configuration, since some decoders
+ * wait for the rest of an access unit that straddles input buffers.
+ * </p><p>
+ * Decoded frames are rendered as soon as the codec produces them, or at the time
+ * chosen by a {@link JitterBuffer} when smoothing is enabled.  Nothing here waits
+ * on the codec, so the thread that receives content is never held up by decoding.
+ * </p><p>
+ * When the queue is full, a new key frame or codec configuration replaces the
+ * stale frames that are queued, since decoding can restart from it.  Any other
+ * frame is rejected and the caller should wait for the next key frame because
+ * the frames that follow depend on it.
+ * </p><p>
+ * The sequence and picture parameter sets seen in the stream are kept and given
+ * to the next codec created for the same size as its initial configuration, so
+ * a restarted decoder can resume without waiting for them to be sent again.
+ * The time from starting a codec until its first frame is rendered is measured.
+ * </p><p>
+ * Creating a codec can take tens of milliseconds, so {@link #prepare} creates one
+ * ahead of time, such as while the surface is still being laid out, and stopped
+ * codecs are kept in a {@link DecoderPool} to be configured again by the next
+ * call to {@link #start}.  Better still, {@link #setOutputSurface} moves the
+ * running codec to a new surface without interrupting decoding where the
+ * platform allows it.  How often codecs were created, reused or moved and how
+ * long the picture was missing each time are reported.
+ * </p><p>
+ * A codec that reports an error it cannot recover from is replaced, and one
+ * that can recover is reconfigured, before asking for a key frame.
+ * </p><p>
+ * Frames are assembled by one thread at a time, the one that receives content.
+ * The other methods may be called from any thread.
+ * </p>
+ */
+public final class DecodePipeline {
+    /**
+     * Default maximum number of frames waiting for codec input buffers.
+     */
+    public static final int DEFAULT_MAX_QUEUED_FRAMES = 8;
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final int INITIAL_FRAME_SIZE = 64 * 1024;
+
+    // Any message the transport can reassemble must fit, or a large key frame would
+    // be dropped here every time it is sent again.  Buffers grow only as needed.
+    private static final int MAX_FRAME_SIZE = Protocol.MAX_MESSAGE_SIZE;
+
+    // Enough for the input buffers of any codec.
+    private static final int MAX_INPUT_BUFFERS = 64;
+
+    // Stopped codecs kept for reuse.
+    private static final int MAX_POOLED_CODECS = 2;
+
+    private final Logger mLogger;
+    private final FrameLatencyTracker mLatencyTracker;
+    private final Callback mCallback;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final BufferPool mBufferPool;
+
+    // The frame being assembled, only accessed by the thread that receives content.
+    private ByteBuffer mFrameBuffer;
+    private long mFramePtsUs;
+    private int mFrameFlags;
+    private long mFrameEncodedTimeNanos;
+
+    // These fields are guarded by the following lock.
+    private final Object mLock = new Object();
+    private boolean mQuit;
+    private boolean mStarted;
+    private MediaCodec mCodec;
+    private Surface mSurface;
+    private final DecoderPool mDecoderPool = new DecoderPool(MAX_POOLED_CODECS);
+    private int mGeneration;
+    private final Frame[] mQueue;
+    private int mQueueHead;
+    private int mQueueSize;
+    private final int[] mInputIndices = new int[MAX_INPUT_BUFFERS];
+    private int mInputIndexHead;
+    private int mInputIndexCount;
+    private long mSubmittedFrameCount;
+
+    // Splits the frame at the head of the queue into access units as they are fed.
+    private final AnnexBParser mParser = new AnnexBParser();
+    private boolean mParsingHeadFrame;
+
+    // The latest parameter sets, including their start codes, and the size of
+    // the codec they were seen with.
+    private final AnnexBParser mConfigParser = new AnnexBParser();
+    private ByteBuffer mSps;
+    private ByteBuffer mPps;
+    private int mConfigWidth;
+    private int mConfigHeight;
+    private int mCodecWidth;
+    private int mCodecHeight;
+    private boolean mCodecHasConfig;
+
+    // Decides when decoded frames are rendered.
+    private final JitterBuffer mJitterBuffer = new JitterBuffer();
+    private long mRenderedFrameCount;
+    private long mStartTimeNanos;
+
+    // When the picture stopped being updated, or 0 if it is being updated.
+    private long mBlackoutStartTimeNanos;
+
+    // Statistics.
+    private volatile long mDroppedFrameCount;
+    private volatile int mMaxQueueSize;
+    private final LatencyHistogram mQueueTimeHistogram = new LatencyHistogram();
+    private final LatencyHistogram mFirstFrameHistogram = new LatencyHistogram();
+    private final LatencyHistogram mBlackoutHistogram = new LatencyHistogram();
+    private volatile long mCodecCreateCount;
+    private volatile long mCodecReuseCount;
+    private volatile long mSurfaceSwitchCount;
+
+    /**
+     * Callback notified on the decode thread of problems that corrupt the picture.
+     */
+    public interface Callback {
+        /**
+         * Called when a frame could not be decoded, so the picture is corrupt
+         * until the next key frame.
+         */
+        public void onContentLost(String reason);
+
+        /**
+         * Called instead of {@link #onContentLost} when the codec failed and was
+         * replaced, so the picture is missing until the next key frame.
+         *
+         * @param hasCodecConfig True if the new codec was given the stream's
+         * parameter sets, as by {@link DecodePipeline#hasCodecConfig}.
+         */
+        public void onDecoderRestarted(String reason, boolean hasCodecConfig);
+
+        /**
+         * Called when the first frame decoded by a new codec has been rendered.
+         */
+        public void onFirstFrameRendered();
+    }
+
+    public DecodePipeline(Logger logger, FrameLatencyTracker latencyTracker,
+            Callback callback, int maxQueuedFrames) {
+        if (maxQueuedFrames <= 0) {
+            throw new IllegalArgumentException("maxQueuedFrames must be positive: "
+                    + maxQueuedFrames);
+        }
+        mLogger = logger;
+        mLatencyTracker = latencyTracker;
+        mCallback = callback;
+        mQueue = new Frame[maxQueuedFrames];
+        for (int i = 0; i < maxQueuedFrames; i++) {
+            mQueue[i] = new Frame();
+        }
+
+        // One more buffer than the queue holds for the frame being assembled,
+        // so acquiring a buffer never blocks.
+        mBufferPool = new BufferPool(INITIAL_FRAME_SIZE, MAX_FRAME_SIZE, maxQueuedFrames + 1);
+
+        mThread = new HandlerThread("DecodePipeline", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Creates a codec on the decode thread for the next call to {@link #start},
+     * unless one is running or pooled already.
+     */
+    public void prepare() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (mQuit || mCodec != null || mDecoderPool.getSize() != 0) {
+                        return;
+                    }
+                }
+                // Created without holding the lock since it takes a while.
+                final MediaCodec codec;
+                try {
+                    codec = MediaCodec.createDecoderByType(MIME_TYPE);
+                } catch (IOException e) {
+                    mLogger.logError("Could not prepare decoder: " + e);
+                    return;
+                }
+                synchronized (mLock) {
+                    mCodecCreateCount += 1;
+                    if (mQuit) {
+                        // The pool was already cleared for the last time.
+                        codec.release();
+                        return;
+                    }
+                    mDecoderPool.release(codec, 0, 0);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts decoding to a surface, replacing any previous codec.
+     * The codec is created on the decode thread so that its callbacks arrive there.
+     */
+    public void start(Surface surface, final int width, final int height) {
+        final int generation;
+        synchronized (mLock) {
+            stopLocked();
+            mStarted = true;
+            mSurface = surface;
+            generation = mGeneration;
+            mStartTimeNanos = System.nanoTime();
+            mCodecWidth = width;
+            mCodecHeight = height;
+            mCodecHasConfig = mSps != null && mPps != null
+                    && mConfigWidth == width && mConfigHeight == height;
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (generation == mGeneration) {
+                        createCodecLocked(width, height);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops decoding immediately and discards the queued frames.  The surface is
+     * not touched once this method returns.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            stopLocked();
+        }
+    }
+
+    /**
+     * Stops decoding and the decode thread.
+     */
+    public void quit() {
+        synchronized (mLock) {
+            mQuit = true;
+            stopLocked();
+            mDecoderPool.clear();
+        }
+        mThread.quit();
+    }
+
+    /**
+     * Moves decoding to a new surface without stopping the codec, such as when
+     * the view showing it was recreated or resized.  The previous surface is not
+     * touched once this method returns.
+     *
+     * @return True if decoding continues on the new surface, false if the
+     * platform cannot switch surfaces, in which case the caller should
+     * {@link #start} again.
+     */
+    public boolean setOutputSurface(Surface surface, int width, int height) {
+        synchronized (mLock) {
+            if (!mStarted) {
+                return false;
+            }
+            if (surface != mSurface && mCodec != null) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                    return false;
+                }
+                try {
+                    mCodec.setOutputSurface(surface);
+                } catch (IllegalArgumentException e) {
+                    mLogger.log("Decoder cannot switch surfaces: " + e);
+                    return false;
+                } catch (IllegalStateException e) {
+                    mLogger.log("Decoder cannot switch surfaces: " + e);
+                    return false;
+                }
+                mSurfaceSwitchCount += 1;
+                if (mBlackoutStartTimeNanos == 0) {
+                    mBlackoutStartTimeNanos = System.nanoTime();
+                }
+            }
+            // A codec that is still being created picks up the new surface.
+            mSurface = surface;
+            mCodecWidth = width;
+            mCodecHeight = height;
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the codec started last was given the stream's parameter
+     * sets, so it can decode from any key frame or, for streams that refresh
+     * gradually, from any frame.
+     */
+    public boolean hasCodecConfig() {
+        synchronized (mLock) {
+            return mCodecHasConfig;
+        }
+    }
+
+    /**
+     * Sets the jitter buffer mode, such as {@link JitterBuffer#MODE_SMOOTHEST}.
+     */
+    public void setJitterBufferMode(int mode) {
+        synchronized (mLock) {
+            mJitterBuffer.setMode(mode);
+        }
+    }
+
+    /**
+     * Gets the number of decoded frames waiting for their render time.
+     */
+    public int getJitterBufferDepth() {
+        synchronized (mLock) {
+            return mJitterBuffer.getDepth(System.nanoTime());
+        }
+    }
+
+    /**
+     * Starts assembling a frame.  Any frame that was being assembled is discarded.
+     */
+    public void beginFrame(long presentationTimeUs, int flags, long encodedTimeNanos) {
+        abortFrame();
+        mFrameBuffer = mBufferPool.acquire(INITIAL_FRAME_SIZE);
+        mFramePtsUs = presentationTimeUs;
+        mFrameFlags = flags;
+        mFrameEncodedTimeNanos = encodedTimeNanos;
+    }
+
+    /**
+     * Appends content to the frame being assembled.
+     *
+     * @return False if the frame is too large, in which case it is discarded.
+     */
+    public boolean appendToFrame(ByteBuffer content) {
+        if (mFrameBuffer == null) {
+            return false;
+        }
+        if (content == null) {
+            return true;
+        }
+
+        final int needed = mFrameBuffer.position() + content.remaining();
+        if (needed > MAX_FRAME_SIZE) {
+            mLogger.log("Discarding frame larger than " + MAX_FRAME_SIZE + " bytes.");
+            abortFrame();
+            return false;
+        }
+        mFrameBuffer = mBufferPool.grow(mFrameBuffer, needed);
+        mFrameBuffer.put(content);
+        return true;
+    }
+
+    /**
+     * Queues the frame that was assembled for decoding.
+     *
+     * @return False if the frame was dropped because the queue is full or
+     * decoding was stopped.
+     */
+    public boolean endFrame() {
+        final ByteBuffer buffer = mFrameBuffer;
+        if (buffer == null) {
+            return false;
+        }
+        mFrameBuffer = null;
+        buffer.flip();
+
+        synchronized (mLock) {
+            if (!mStarted) {
+                mBufferPool.release(buffer);
+                return false;
+            }
+
+            if (mQueueSize == mQueue.length) {
+                if ((mFrameFlags & (MediaCodec.BUFFER_FLAG_KEY_FRAME
+                        | MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) == 0) {
+                    mBufferPool.release(buffer);
+                    mDroppedFrameCount += 1;
+                    return false;
+                }
+                mDroppedFrameCount += mQueueSize;
+                clearQueueLocked();
+            }
+
+            final Frame frame = mQueue[(mQueueHead + mQueueSize) % mQueue.length];
+            frame.buffer = buffer;
+            frame.presentationTimeUs = mFramePtsUs;
+            frame.flags = mFrameFlags;
+            frame.encodedTimeNanos = mFrameEncodedTimeNanos;
+            frame.arrivalTimeNanos = System.nanoTime();
+            mQueueSize += 1;
+            if (mQueueSize > mMaxQueueSize) {
+                mMaxQueueSize = mQueueSize;
+            }
+
+            if (mInputIndexCount != 0) {
+                mHandler.post(mFeedRunnable);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Discards the frame being assembled, if any.
+     */
+    public void abortFrame() {
+        if (mFrameBuffer != null) {
+            mBufferPool.release(mFrameBuffer);
+            mFrameBuffer = null;
+        }
+    }
+
+    /**
+     * Gets the number of frames that have arrived but have not been rendered yet,
+     * whether they are waiting for an input buffer or inside the codec.
+     */
+    public int getBacklog() {
+        synchronized (mLock) {
+            return mQueueSize + (int)Math.max(0, mSubmittedFrameCount - mRenderedFrameCount);
+        }
+    }
+
+    /**
+     * Gets the number of frames waiting for a codec input buffer.
+     */
+    public int getQueuedFrameCount() {
+        synchronized (mLock) {
+            return mQueueSize;
+        }
+    }
+
+    /**
+     * Gets the largest number of frames that have waited for input buffers at once.
+     */
+    public int getMaxQueuedFrameCount() {
+        return mMaxQueueSize;
+    }
+
+    /**
+     * Gets the number of frames dropped because the queue was full.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Gets the distribution of the time frames waited for a codec input buffer.
+     */
+    public LatencyHistogram getQueueTimeHistogram() {
+        return mQueueTimeHistogram;
+    }
+
+    /**
+     * Gets the distribution of the time from starting a codec until its first
+     * frame was rendered.
+     */
+    public LatencyHistogram getFirstFrameHistogram() {
+        return mFirstFrameHistogram;
+    }
+
+    @Override
+    public String toString() {
+        final String jitterBuffer;
+        synchronized (mLock) {
+            jitterBuffer = mJitterBuffer.toString()
+                    + ", depth=" + mJitterBuffer.getDepth(System.nanoTime());
+        }
+        return "backlog=" + getBacklog()
+                + ", maxQueued=" + mMaxQueueSize
+                + ", dropped=" + mDroppedFrameCount
+                + ", queueTime: " + mQueueTimeHistogram
+                + ", firstFrame: " + mFirstFrameHistogram
+                + ", created=" + mCodecCreateCount
+                + ", reused=" + mCodecReuseCount
+                + ", surfaceSwitches=" + mSurfaceSwitchCount
+                + ", blackout: " + mBlackoutHistogram
+                + ", jitterBuffer: " + jitterBuffer;
+    }
+
+    // Starts a pooled or new codec.  Returns false if none could be started, which
+    // has been reported as lost content.
+    private boolean createCodecLocked(int width, int height) {
+        final long startTime = System.nanoTime();
+        final MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        if (mCodecHasConfig) {
+            format.setByteBuffer("csd-0", mSps.duplicate());
+            format.setByteBuffer("csd-1", mPps.duplicate());
+        }
+
+        MediaCodec codec = mDecoderPool.acquire(width, height);
+        final boolean reused = codec != null;
+        if (reused) {
+            if (startCodecLocked(codec, format)) {
+                mCodecReuseCount += 1;
+            } else {
+                mLogger.log("Could not reuse decoder, creating a new one.");
+                codec = null;
+            }
+        }
+        if (codec == null) {
+            try {
+                codec = MediaCodec.createDecoderByType(MIME_TYPE);
+            } catch (IOException e) {
+                mLogger.logError("Could not create decoder: " + e);
+                mCallback.onContentLost("Decoder could not be created");
+                return false;
+            }
+            mCodecCreateCount += 1;
+            if (!startCodecLocked(codec, format)) {
+                mCallback.onContentLost("Decoder could not be started");
+                return false;
+            }
+        }
+        mCodec = codec;
+        mLogger.log("Decoder " + (reused ? "reused" : "created") + " in "
+                + (System.nanoTime() - startTime) / 1000000 + " ms.");
+        return true;
+    }
+
+    // Configures and starts a codec, releasing it if that fails.
+    private boolean startCodecLocked(MediaCodec codec, MediaFormat format) {
+        try {
+            codec.setCallback(mCodecCallback);
+            codec.configure(format, mSurface, null, 0);
+            codec.start();
+            return true;
+        } catch (IllegalArgumentException e) {
+            mLogger.logError("Could not start decoder: " + e);
+        } catch (IllegalStateException e) {
+            mLogger.logError("Could not start decoder: " + e);
+        }
+        codec.release();
+        return false;
+    }
+
+    private void stopLocked() {
+        mStarted = false;
+        mGeneration += 1;
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+                mDecoderPool.release(mCodec, mCodecWidth, mCodecHeight);
+            } catch (IllegalStateException e) {
+                mLogger.log("Releasing decoder that could not be stopped: " + e);
+                mCodec.release();
+            }
+            mCodec = null;
+            if (mRenderedFrameCount != 0 && mBlackoutStartTimeNanos == 0) {
+                mBlackoutStartTimeNanos = System.nanoTime();
+            }
+        }
+        mSurface = null;
+        mInputIndexCount = 0;
+        mSubmittedFrameCount = 0;
+        mRenderedFrameCount = 0;
+        clearQueueLocked();
+        mLatencyTracker.clear();
+        mJitterBuffer.reset();
+    }
+
+    // Replaces a codec that failed with one that is configured again, keeping the
+    // surface.  A recoverable codec is stopped and reused, any other is released.
+    // Returns false if no codec could be started, which has been reported.
+    private boolean restartCodecLocked(boolean recoverable) {
+        final MediaCodec codec = mCodec;
+        mCodec = null;
+        if (recoverable) {
+            try {
+                codec.stop();
+                mDecoderPool.release(codec, mCodecWidth, mCodecHeight);
+            } catch (IllegalStateException ex) {
+                codec.release();
+            }
+        } else {
+            codec.release();
+        }
+        mLogger.log("Restarting decoder after " + (recoverable
+                ? "a recoverable error." : "a fatal error."));
+
+        if (mRenderedFrameCount != 0 && mBlackoutStartTimeNanos == 0) {
+            mBlackoutStartTimeNanos = System.nanoTime();
+        }
+        mInputIndexCount = 0;
+        mSubmittedFrameCount = 0;
+        mRenderedFrameCount = 0;
+        clearQueueLocked();
+        mLatencyTracker.clear();
+        mJitterBuffer.reset();
+
+        mStartTimeNanos = System.nanoTime();
+        mCodecHasConfig = mSps != null && mPps != null
+                && mConfigWidth == mCodecWidth && mConfigHeight == mCodecHeight;
+        return createCodecLocked(mCodecWidth, mCodecHeight);
+    }
+
+    private void clearQueueLocked() {
+        while (mQueueSize != 0) {
+            removeHeadFrameLocked();
+        }
+    }
+
+    // Copies queued frames into the input buffers the codec has made available,
+    // one access unit per input buffer.
+    private void feedLocked() {
+        while (mCodec != null && mQueueSize != 0 && mInputIndexCount != 0) {
+            final Frame frame = mQueue[mQueueHead];
+            final ByteBuffer buffer = frame.buffer;
+            if (!mParsingHeadFrame) {
+                mParser.reset(buffer);
+                mParsingHeadFrame = true;
+                mQueueTimeHistogram.record(System.nanoTime() - frame.arrivalTimeNanos);
+                if (frame.encodedTimeNanos != 0
+                        && (frame.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mLatencyTracker.onFrameReceived(frame.presentationTimeUs,
+                            frame.encodedTimeNanos, frame.arrivalTimeNanos);
+                }
+            }
+            if (!mParser.nextAccessUnit()) {
+                removeHeadFrameLocked();
+                continue;
+            }
+
+            final int index = mInputIndices[mInputIndexHead];
+            mInputIndexHead = (mInputIndexHead + 1) % MAX_INPUT_BUFFERS;
+            mInputIndexCount -= 1;
+
+            final ByteBuffer input = mCodec.getInputBuffer(index);
+            input.clear();
+            final int start = mParser.getAccessUnitStart();
+            final int end = mParser.getAccessUnitEnd();
+            final int size = end - start;
+            if (size > input.remaining()) {
+                // Give the buffer back empty and drop the rest of the frame.
+                mCodec.queueInputBuffer(index, 0, 0, frame.presentationTimeUs, 0);
+                removeHeadFrameLocked();
+                mDroppedFrameCount += 1;
+                mCallback.onContentLost("Access unit of " + size
+                        + " bytes does not fit in a codec input buffer");
+                continue;
+            }
+
+            final int limit = buffer.limit();
+            buffer.limit(end);
+            buffer.position(start);
+            input.put(buffer);
+            buffer.limit(limit);
+
+            final int flags = getAccessUnitFlags(frame.flags, mParser.getAccessUnitFlags());
+            if ((flags & (MediaCodec.BUFFER_FLAG_KEY_FRAME
+                    | MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) != 0) {
+                saveParameterSetsLocked(buffer, start, end);
+            }
+            mCodec.queueInputBuffer(index, 0, size, frame.presentationTimeUs, flags);
+            if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                mSubmittedFrameCount += 1;
+            }
+        }
+    }
+
+    // Keeps copies of the parameter sets in an access unit.
+    private void saveParameterSetsLocked(ByteBuffer buffer, int start, int end) {
+        final ByteBuffer accessUnit = buffer.duplicate();
+        accessUnit.limit(end);
+        accessUnit.position(start);
+        mConfigParser.reset(accessUnit);
+
+        boolean more = mConfigParser.nextNalUnit();
+        while (more) {
+            final int type = mConfigParser.getNalType();
+            final int offset = mConfigParser.getNalOffset();
+            more = mConfigParser.nextNalUnit();
+            if (type == AnnexBParser.NAL_SPS || type == AnnexBParser.NAL_PPS) {
+                final int nalEnd = more ? mConfigParser.getNalOffset() : end;
+                final ByteBuffer nal = accessUnit.duplicate();
+                nal.limit(nalEnd);
+                nal.position(offset);
+                if (type == AnnexBParser.NAL_SPS) {
+                    mSps = copy(mSps, nal);
+                } else {
+                    mPps = copy(mPps, nal);
+                }
+                mConfigWidth = mCodecWidth;
+                mConfigHeight = mCodecHeight;
+            }
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer target, ByteBuffer source) {
+        if (target == null || target.capacity() < source.remaining()) {
+            target = ByteBuffer.allocate(source.remaining());
+        }
+        target.clear();
+        target.put(source);
+        target.flip();
+        return target;
+    }
+
+    private void removeHeadFrameLocked() {
+        final Frame frame = mQueue[mQueueHead];
+        mBufferPool.release(frame.buffer);
+        frame.buffer = null;
+        mQueueHead = (mQueueHead + 1) % mQueue.length;
+        mQueueSize -= 1;
+        mParsingHeadFrame = false;
+    }
+
+    // Combines the flags the frame was sent with and those found by parsing
+    // one of its access units.  A frame sent as codec configuration stays so.
+    private static int getAccessUnitFlags(int frameFlags, int accessUnitFlags) {
+        int flags = frameFlags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        if ((accessUnitFlags & AnnexBParser.FLAG_KEY_FRAME) != 0) {
+            flags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+        }
+        if ((accessUnitFlags & AnnexBParser.FLAG_CODEC_CONFIG) != 0) {
+            flags |= MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+        }
+        return flags;
+    }
+
+    private final Runnable mFeedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                feedLocked();
+            }
+        }
+    };
+
+    private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (mLock) {
+                if (codec != mCodec || mInputIndexCount == MAX_INPUT_BUFFERS) {
+                    return;
+                }
+                mInputIndices[(mInputIndexHead + mInputIndexCount) % MAX_INPUT_BUFFERS] = index;
+                mInputIndexCount += 1;
+                feedLocked();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+            synchronized (mLock) {
+                if (codec != mCodec) {
+                    return;
+                }
+                if (mRenderedFrameCount == 0) {
+                    final long elapsed = System.nanoTime() - mStartTimeNanos;
+                    mFirstFrameHistogram.record(elapsed);
+                    mLogger.log("First frame decoded " + elapsed / 1000000
+                            + " ms after the decoder was started.");
+                    mCallback.onFirstFrameRendered();
+                }
+                mRenderedFrameCount += 1;
+                final long renderTime = mJitterBuffer.schedule(
+                        info.presentationTimeUs, System.nanoTime());
+                if (renderTime == JitterBuffer.SKIP) {
+                    mCodec.releaseOutputBuffer(index, false /*render*/);
+                } else if (renderTime == JitterBuffer.RENDER_NOW) {
+                    mCodec.releaseOutputBuffer(index, true /*render*/);
+                    mLatencyTracker.onFrameRendered(info.presentationTimeUs);
+                } else {
+                    mCodec.releaseOutputBuffer(index, renderTime);
+                    mLatencyTracker.onFrameRendered(info.presentationTimeUs, renderTime);
+                }
+                if (renderTime != JitterBuffer.SKIP && mBlackoutStartTimeNanos != 0) {
+                    final long blackout = System.nanoTime() - mBlackoutStartTimeNanos;
+                    mBlackoutStartTimeNanos = 0;
+                    mBlackoutHistogram.record(blackout);
+                    mLogger.log("Picture restored after " + blackout / 1000000
+                            + " ms, blackout " + mBlackoutHistogram + ".");
+                }
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, CodecException e) {
+            final boolean hasCodecConfig;
+            synchronized (mLock) {
+                if (codec != mCodec) {
+                    return;
+                }
+                mLogger.logError("Decoder error: " + e);
+                if (e.isTransient()) {
+                    mCallback.onContentLost("Decoder reported a transient error");
+                    return;
+                }
+                if (!restartCodecLocked(e.isRecoverable())) {
+                    return;
+                }
+                hasCodecConfig = mCodecHasConfig;
+            }
+            mCallback.onDecoderRestarted("Decoder was restarted after an error",
+                    hasCodecConfig);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            mLogger.log("Decoder output format changed: " + format);
+        }
+    };
+
+    private static final class Frame {
+        public ByteBuffer buffer;
+        public long presentationTimeUs;
+        public int flags;
+        public long encodedTimeNanos;
+        public long arrivalTimeNanos;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.sink;
+
+import android.media.MediaCodec;
+
+/**
+ * Keeps stopped decoders so that they can be configured again instead of
+ * allocating new ones, which can take tens of milliseconds.
+ * <p>
+ * Each decoder is remembered with the resolution it last decoded and handed out
+ * for the same resolution first, since some decoders allocate their resources
+ * by size.  The oldest decoder is released when the pool is full.
+ * </p><p>
+ * This object is not thread-safe.
+ * </p>
+ */
+public final class DecoderPool {
+    private final MediaCodec[] mCodecs;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private int mSize;
+
+    public DecoderPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        mCodecs = new MediaCodec[maxSize];
+        mWidths = new int[maxSize];
+        mHeights = new int[maxSize];
+    }
+
+    /**
+     * Takes a decoder from the pool, preferring one that last decoded the given
+     * resolution.
+     *
+     * @return A stopped decoder, or null if the pool is empty.
+     */
+    public MediaCodec acquire(int width, int height) {
+        if (mSize == 0) {
+            return null;
+        }
+        int index = mSize - 1;
+        for (int i = mSize - 1; i >= 0; i--) {
+            if (mWidths[i] == width && mHeights[i] == height) {
+                index = i;
+                break;
+            }
+        }
+        final MediaCodec codec = mCodecs[index];
+        removeAt(index);
+        return codec;
+    }
+
+    /**
+     * Puts a stopped decoder in the pool.
+     *
+     * @param codec The decoder, which must have been stopped.
+     * @param width The width it last decoded, or 0 if none.
+     * @param height The height it last decoded, or 0 if none.
+     */
+    public void release(MediaCodec codec, int width, int height) {
+        if (mSize == mCodecs.length) {
+            mCodecs[0].release();
+            removeAt(0);
+        }
+        mCodecs[mSize] = codec;
+        mWidths[mSize] = width;
+        mHeights[mSize] = height;
+        mSize += 1;
+    }
+
+    /**
+     * Gets the number of decoders in the pool.
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Releases every decoder in the pool.
+     */
+    public void clear() {
+        while (mSize != 0) {
+            mCodecs[mSize - 1].release();
+            removeAt(mSize - 1);
+        }
+    }
+
+    private void removeAt(int index) {
+        mSize -= 1;
+        for (int i = index; i < mSize; i++) {
+            mCodecs[i] = mCodecs[i + 1];
+            mWidths[i] = mWidths[i + 1];
+            mHeights[i] = mHeights[i + 1];
+        }
+        mCodecs[mSize] = null;
+    }
+}
@@ -16,45 +16,208 @@
 
 package com.android.accessorydisplay.sink;
 
+import com.android.accessorydisplay.common.AnnexBParser;
+import com.android.accessorydisplay.common.Clock;
+import com.android.accessorydisplay.common.ClockSyncService;
+import com.android.accessorydisplay.common.FrameHeader;
+import com.android.accessorydisplay.common.FrameLatencyTracker;
+import com.android.accessorydisplay.common.LatencyHistogram;
 import com.android.accessorydisplay.common.Protocol;
 import com.android.accessorydisplay.common.Service;
+import com.android.accessorydisplay.common.StartupTimer;
 import com.android.accessorydisplay.common.Transport;
 
 import android.content.Context;
+import android.content.Intent;
 import android.graphics.Rect;
 import android.media.MediaCodec;
-import android.media.MediaCodec.BufferInfo;
-import android.media.MediaFormat;
 import android.os.Handler;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
-public class DisplaySinkService extends Service implements SurfaceHolder.Callback {
-    private final ByteBuffer mBuffer = ByteBuffer.allocate(12);
+public class DisplaySinkService extends Service
+        implements SurfaceHolder.Callback, Transport.FragmentCallback {
+    /**
+     * String extra naming the jitter buffer mode, "lowest-latency" or "smoothest".
+     */
+    public static final String EXTRA_JITTER_BUFFER_MODE =
+            "com.android.accessorydisplay.sink.extra.JITTER_BUFFER_MODE";
+
+    private static final long FEEDBACK_INTERVAL_NANOS = 500 * 1000000L;
+
+    // Ask the source for another key frame if none has arrived after this long.
+    private static final long KEYFRAME_REQUEST_RETRY_NANOS = 1000 * 1000000L;
+
+    private static final long LATENCY_REPORT_INTERVAL_NANOS = 10 * 1000000000L;
+
+    // Gaps between frames longer than this mean the content stopped changing,
+    // so they say nothing about how well the link is keeping up.
+    private static final long IDLE_GAP_NANOS = 200 * 1000000L;
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(16);
+    private final ByteBuffer mFeedbackBuffer = ByteBuffer.allocate(12);
     private final Handler mTransportHandler;
     private final int mDensityDpi;
+    private final ClockSyncService mClockSync;
 
     private SurfaceView mSurfaceView;
 
     // These fields are guarded by the following lock.
-    // This is to ensure that the surface lifecycle is respected.  Although decoding
-    // happens on the transport thread, we are not allowed to access the surface after
-    // it is destroyed by the UI thread so we need to stop the codec immediately.
+    // This is to ensure that the surface lifecycle is respected.  Decoding happens
+    // on the decode pipeline's own thread, but we are not allowed to access the
+    // surface after it is destroyed by the UI thread, so the pipeline must be
+    // stopped before the surface is destroyed.
     private final Object mSurfaceAndCodecLock = new Object();
     private Surface mSurface;
     private int mSurfaceWidth;
     private int mSurfaceHeight;
-    private MediaCodec mCodec;
-    private BufferInfo mCodecBufferInfo;
+    private final DecodePipeline mDecodePipeline;
+
+    // Times connecting, or restarting the decoder, until the first frame is shown.
+    private final StartupTimer mStartupTimer;
+
+    // The frame being received, which the decode pipeline assembles from the
+    // fragments of a message so that it is still decoded as one unit.
+    private long mFramePtsUs;
+    private int mFrameFlags;
+    private long mFrameEncodedTimeNanos;
+
+    // The header of the frame being received when the source sends frame headers,
+    // or a parser to look inside bare frames when it does not, and the sequence
+    // number expected for the next frame.
+    private final FrameHeader mFrameHeader = new FrameHeader();
+    private final AnnexBParser mFrameParser = new AnnexBParser();
+    private boolean mHaveExpectedSequence;
+    private int mExpectedSequence;
+    private long mLostFrameCount;
+    private long mHeartbeatCount;
+
+    // Once content has been lost, or the codec has been created, everything up to
+    // the next key frame is discarded since it cannot be decoded.  Streams that
+    // use intra refresh can instead be decoded from any frame once the codec has
+    // its configuration, and heal by themselves after losing content.
+    private boolean mWaitingForKeyFrame;
+    private boolean mIntraRefreshStream;
+    private boolean mHaveCodecConfig;
+    private boolean mDiscardingMessage;
+    private long mDamageTimeNanos;
+    private long mLastKeyFrameRequestTimeNanos;
+    private final LatencyHistogram mRecoveryTimeHistogram = new LatencyHistogram();
+
+    // Per-frame latency from capture on the source until rendering.
+    private final FrameLatencyTracker mLatencyTracker;
+    private long mLastLatencyReportTimeNanos;
+
+    // Receive statistics reported to the source, only accessed on the transport thread.
+    private long mFeedbackStartTimeNanos;
+    private long mReceivedBytes;
+    private long mLastArrivalTimeNanos;
+    private long mLastInterArrivalNanos;
+    private long mJitterNanos;
 
     public DisplaySinkService(Context context, Transport transport, int densityDpi) {
         super(context, transport, Protocol.DisplaySinkService.ID);
         mTransportHandler = transport.getHandler();
         mDensityDpi = densityDpi;
+        mClockSync = new ClockSyncService(context, transport, Clock.SYSTEM);
+        mLatencyTracker = new FrameLatencyTracker(mClockSync);
+        mDecodePipeline = new DecodePipeline(getLogger(), mLatencyTracker,
+                new DecodePipeline.Callback() {
+                    @Override
+                    public void onContentLost(final String reason) {
+                        mTransportHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (mSurfaceAndCodecLock) {
+                                    if (mSurface != null) {
+                                        onContentLostLocked(reason);
+                                    }
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onDecoderRestarted(final String reason,
+                            final boolean hasCodecConfig) {
+                        mTransportHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (mSurfaceAndCodecLock) {
+                                    // The new codec only knows the parameter sets
+                                    // it was configured with.
+                                    mHaveCodecConfig = hasCodecConfig;
+                                    if (mSurface != null) {
+                                        onContentLostLocked(reason);
+                                    }
+                                }
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFirstFrameRendered() {
+                        mStartupTimer.finish("first frame rendered");
+                    }
+                }, DecodePipeline.DEFAULT_MAX_QUEUED_FRAMES);
+        mStartupTimer = new StartupTimer(getLogger(), "Display startup");
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        mClockSync.start();
+
+        // Create the decoder while the surface and the handshake are in flight.
+        mStartupTimer.begin();
+        mDecodePipeline.prepare();
+    }
+
+    @Override
+    public void stop() {
+        mClockSync.stop();
+        super.stop();
+        mDecodePipeline.quit();
+    }
+
+    /**
+     * Gets the per-frame latency statistics.
+     */
+    public FrameLatencyTracker getLatencyTracker() {
+        return mLatencyTracker;
+    }
+
+    /**
+     * Chooses between rendering frames as soon as they are decoded, which is the
+     * default, and pacing them with a jitter buffer to smooth out stutter.
+     *
+     * @param mode The mode, such as {@link JitterBuffer#MODE_SMOOTHEST}.
+     */
+    public void setJitterBufferMode(int mode) {
+        mDecodePipeline.setJitterBufferMode(mode);
+    }
+
+    /**
+     * Applies the options found in an intent's extras, such as
+     * {@link #EXTRA_JITTER_BUFFER_MODE}, for example:
+     * <pre>
+     * adb shell am start -n com.android.accessorydisplay.sink/.SinkTcpActivity \
+     *         --es com.android.accessorydisplay.sink.extra.JITTER_BUFFER_MODE smoothest
+     * </pre>
+     * Options that are missing keep their defaults.
+     */
+    public void applyIntentExtras(Intent intent) {
+        final String modeName = intent.getStringExtra(EXTRA_JITTER_BUFFER_MODE);
+        if (modeName != null) {
+            try {
+                setJitterBufferMode(JitterBuffer.modeFromName(modeName));
+            } catch (IllegalArgumentException ex) {
+                getLogger().logError(ex.getMessage() + ", keeping the default mode.");
+            }
+        }
     }
 
     public void setSurfaceView(final SurfaceView surfaceView) {
@@ -96,9 +259,28 @@ public class DisplaySinkService extends Service implements SurfaceHolder.Callbac
             }
 
             case Protocol.DisplaySinkService.MSG_CONTENT: {
-                decode(content);
+                updateReceiveStats(content, true);
+                decode(content, true, true);
                 break;
             }
+
+            case Protocol.DisplaySinkService.MSG_HEARTBEAT: {
+                if (content != null && content.remaining() >= 4) {
+                    handleHeartbeat(content.getInt());
+                }
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void onMessageFragmentReceived(int service, int what, ByteBuffer content,
+            boolean first, boolean last) {
+        // Hand fragments straight to the decode pipeline instead of waiting
+        // for large frames to be reassembled.
+        if (what == Protocol.DisplaySinkService.MSG_CONTENT) {
+            updateReceiveStats(content, last);
+            decode(content, first, last);
         }
     }
 
@@ -136,28 +318,65 @@ public class DisplaySinkService extends Service implements SurfaceHolder.Callbac
                 return;
             }
 
+            // Keep decoding on the new surface if possible, in which case the
+            // source only needs to hear about it if the size changed.
+            if (mSurface != null && surface != null
+                    && mDecodePipeline.setOutputSurface(surface, width, height)) {
+                getLogger().log("Decoder moved to " + width + "x" + height + " surface.");
+                final boolean sizeChanged = mSurfaceWidth != width || mSurfaceHeight != height;
+                mSurface = surface;
+                mSurfaceWidth = width;
+                mSurfaceHeight = height;
+                if (sizeChanged) {
+                    mTransportHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendSinkStatus();
+                        }
+                    });
+                }
+                return;
+            }
+
+            if (mSurface != null) {
+                mDecodePipeline.stop();
+                getLogger().log("Decoder stopped, frame latency " + mLatencyTracker
+                        + ", decode pipeline " + mDecodePipeline + ".");
+            }
+
             mSurface = surface;
             mSurfaceWidth = width;
             mSurfaceHeight = height;
 
-            if (mCodec != null) {
-                mCodec.stop();
-                mCodec = null;
-                mCodecBufferInfo = null;
-            }
-
             if (mSurface != null) {
-                MediaFormat format = MediaFormat.createVideoFormat(
-                        "video/avc", mSurfaceWidth, mSurfaceHeight);
-                try {
-                    mCodec = MediaCodec.createDecoderByType("video/avc");
-                } catch (IOException e) {
-                    throw new RuntimeException(
-                            "failed to create video/avc decoder", e);
+                if (!mStartupTimer.isRunning()) {
+                    mStartupTimer.begin();
                 }
-                mCodec.configure(format, mSurface, null, 0);
-                mCodec.start();
-                mCodecBufferInfo = new BufferInfo();
+                mStartupTimer.mark("surface ready");
+                mDecodePipeline.start(mSurface, mSurfaceWidth, mSurfaceHeight);
+
+                // The new codec needs a key frame before it can decode anything,
+                // unless it already has its configuration and the stream refreshes
+                // gradually, and the rest of any frame that was being received
+                // is useless.
+                mWaitingForKeyFrame = true;
+                mHaveCodecConfig = mDecodePipeline.hasCodecConfig();
+                mDiscardingMessage = true;
+                mDamageTimeNanos = System.nanoTime();
+                mLastKeyFrameRequestTimeNanos = 0;
+                mHaveExpectedSequence = false;
+                mTransportHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // From protocol version 4 the source replays what the
+                        // decoder needs when the sink announces itself below.
+                        synchronized (mSurfaceAndCodecLock) {
+                            if (mWaitingForKeyFrame && getTransport().getPeerVersion() < 4) {
+                                requestKeyFrameLocked("Decoder was created");
+                            }
+                        }
+                    }
+                });
             }
 
             mTransportHandler.post(new Runnable() {
@@ -169,71 +388,222 @@ public class DisplaySinkService extends Service implements SurfaceHolder.Callbac
         }
     }
 
-    private void decode(ByteBuffer content) {
-        if (content == null) {
-            return;
-        }
+    private void decode(ByteBuffer content, boolean startOfMessage, boolean endOfMessage) {
         synchronized (mSurfaceAndCodecLock) {
-            if (mCodec == null) {
+            if (mSurface == null) {
                 return;
             }
 
-            while (content.hasRemaining()) {
-                if (!provideCodecInputLocked(content)) {
-                    getLogger().log("Dropping content because there are no available buffers.");
+            if (startOfMessage) {
+                if (!startFrameLocked(content)) {
                     return;
                 }
+                if (mWaitingForKeyFrame && !mDiscardingMessage
+                        && (mFrameFlags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    final long recoveryTimeNanos = System.nanoTime() - mDamageTimeNanos;
+                    mRecoveryTimeHistogram.record(recoveryTimeNanos);
+                    mWaitingForKeyFrame = false;
+                    mStartupTimer.mark("first frame received");
+                    getLogger().log("Resumed decoding at "
+                            + ((mFrameFlags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0
+                                    ? "key frame" : "intra refresh frame")
+                            + " after " + recoveryTimeNanos / 1000000 + " ms, recovery time "
+                            + mRecoveryTimeHistogram + ".");
+                }
+            }
+            if (mDiscardingMessage) {
+                if (System.nanoTime() - mLastKeyFrameRequestTimeNanos
+                        > KEYFRAME_REQUEST_RETRY_NANOS) {
+                    requestKeyFrameLocked("Still waiting for a key frame");
+                }
+                return;
+            }
 
-                consumeCodecOutputLocked();
+            if (startOfMessage) {
+                mDecodePipeline.beginFrame(mFramePtsUs, mFrameFlags, mFrameEncodedTimeNanos);
+            }
+            if (!mDecodePipeline.appendToFrame(content)) {
+                onContentLostLocked("Frame could not be buffered");
+                return;
+            }
+            if (endOfMessage && !mDecodePipeline.endFrame()) {
+                onContentLostLocked("Decode queue is full");
             }
         }
     }
 
-    private boolean provideCodecInputLocked(ByteBuffer content) {
-        final int index = mCodec.dequeueInputBuffer(40000);
-        if (index < 0) {
-            return false;
-        }
+    // Reads the frame header, if the source sends one, and decides whether the
+    // frame can be decoded.  Returns false if the frame must be discarded.
+    private boolean startFrameLocked(ByteBuffer content) {
+        mFramePtsUs = 0;
+        mFrameFlags = 0;
+        mFrameEncodedTimeNanos = 0;
 
-        final ByteBuffer buffer = mCodec.getInputBuffer(index);
-        final int capacity = buffer.capacity();
-        buffer.clear();
-        if (content.remaining() <= capacity) {
-            buffer.put(content);
+        if (getTransport().getPeerVersion() < 2) {
+            // Old sources send bare frames so look inside them instead.
+            if (content != null && mFrameParser.containsKeyFrame(content)) {
+                mFrameFlags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
         } else {
-            final int limit = content.limit();
-            content.limit(content.position() + capacity);
-            buffer.put(content);
-            content.limit(limit);
+            if (!mFrameHeader.wrap(content)) {
+                onContentLostLocked("Received content with an invalid frame header");
+                return false;
+            }
+            content.position(content.position() + mFrameHeader.getSize());
+
+            final int sequence = mFrameHeader.getSequence();
+            if (mHaveExpectedSequence && sequence != mExpectedSequence) {
+                final int lost = sequence - mExpectedSequence;
+                mLostFrameCount += lost > 0 ? lost : 1;
+                getLogger().log("Expected frame " + mExpectedSequence + " but received "
+                        + sequence + ", " + mLostFrameCount + " frames lost so far.");
+                mExpectedSequence = sequence + 1;
+                if (!mFrameHeader.isKeyFrame() && !mFrameHeader.isCodecConfig()
+                        && !mFrameHeader.isIntraRefresh()) {
+                    onContentLostLocked("Frames were lost");
+                    return false;
+                }
+            }
+            mHaveExpectedSequence = true;
+            mExpectedSequence = sequence + 1;
+
+            mFramePtsUs = mFrameHeader.getPresentationTimeUs();
+            mFrameEncodedTimeNanos = mFrameHeader.getEncodedTimeNanos();
+            if (mFrameHeader.isKeyFrame()) {
+                mFrameFlags |= MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            }
+            if (mFrameHeader.isCodecConfig()) {
+                mFrameFlags |= MediaCodec.BUFFER_FLAG_CODEC_CONFIG;
+            }
+            mIntraRefreshStream = mFrameHeader.isIntraRefresh();
+        }
+
+        // Codec configuration is needed to decode the frames that follow so it is
+        // never discarded.  Key frames carry their configuration with them.
+        final boolean hasCodecConfig = (mFrameFlags & (MediaCodec.BUFFER_FLAG_KEY_FRAME
+                | MediaCodec.BUFFER_FLAG_CODEC_CONFIG)) != 0;
+        mDiscardingMessage = mWaitingForKeyFrame && !hasCodecConfig
+                && !(mIntraRefreshStream && mHaveCodecConfig);
+        if (hasCodecConfig) {
+            mHaveCodecConfig = true;
         }
-        buffer.flip();
-        mCodec.queueInputBuffer(index, 0, buffer.limit(), 0, 0);
         return true;
     }
 
-    private void consumeCodecOutputLocked() {
-        for (;;) {
-            final int index = mCodec.dequeueOutputBuffer(mCodecBufferInfo, 40000);
-            if (index >= 0) {
-                mCodec.releaseOutputBuffer(index, true /*render*/);
-            } else if (index != MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                break;
+    // The source is idle and the last frame stays on screen.  All frames up to
+    // the sequence number in the heartbeat should have arrived by now, so a
+    // mismatch means the last frames before the source went idle were lost and
+    // would otherwise go unnoticed until the content changes again.
+    private void handleHeartbeat(int nextSequence) {
+        synchronized (mSurfaceAndCodecLock) {
+            mHeartbeatCount += 1;
+            if (mSurface == null || !mHaveExpectedSequence
+                    || nextSequence == mExpectedSequence) {
+                return;
             }
+            final int lost = nextSequence - mExpectedSequence;
+            mLostFrameCount += lost > 0 ? lost : 1;
+            mExpectedSequence = nextSequence;
+            onContentLostLocked("Frames were lost before the source went idle");
+        }
+    }
+
+    // Discards the rest of the current frame and waits for the next key frame
+    // since the frames that follow refer to the one that was lost, unless the
+    // stream refreshes itself.
+    private void onContentLostLocked(String reason) {
+        mDecodePipeline.abortFrame();
+        mDiscardingMessage = true;
+        if (mIntraRefreshStream && mHaveCodecConfig) {
+            getLogger().log(reason + ", continuing until intra refresh repairs the picture.");
+            return;
+        }
+        if (!mWaitingForKeyFrame) {
+            mWaitingForKeyFrame = true;
+            mDamageTimeNanos = System.nanoTime();
+        }
+        requestKeyFrameLocked(reason);
+    }
+
+    private void requestKeyFrameLocked(String reason) {
+        getLogger().log(reason + ", sending MSG_REQUEST_KEYFRAME.");
+        mLastKeyFrameRequestTimeNanos = System.nanoTime();
+        sendMessage(Protocol.DisplaySourceService.ID,
+                Protocol.DisplaySourceService.MSG_REQUEST_KEYFRAME, null);
+    }
+
+    private void updateReceiveStats(ByteBuffer content, boolean endOfFrame) {
+        if (content != null) {
+            mReceivedBytes += content.remaining();
+        }
+        if (!endOfFrame) {
+            return;
+        }
+
+        // Smooth the variation between successive inter-arrival times.  Time spent
+        // idle counts toward neither the jitter nor the receive rate.
+        final long now = System.nanoTime();
+        if (mLastArrivalTimeNanos != 0) {
+            final long interArrival = now - mLastArrivalTimeNanos;
+            if (interArrival > IDLE_GAP_NANOS) {
+                mLastInterArrivalNanos = 0;
+                if (mFeedbackStartTimeNanos != 0) {
+                    mFeedbackStartTimeNanos += interArrival;
+                }
+            } else {
+                if (mLastInterArrivalNanos != 0) {
+                    mJitterNanos += (Math.abs(interArrival - mLastInterArrivalNanos)
+                            - mJitterNanos) / 16;
+                }
+                mLastInterArrivalNanos = interArrival;
+            }
+        }
+        mLastArrivalTimeNanos = now;
+
+        if (mFeedbackStartTimeNanos == 0) {
+            mFeedbackStartTimeNanos = now;
+        } else if (now - mFeedbackStartTimeNanos >= FEEDBACK_INTERVAL_NANOS) {
+            sendFeedback(now);
+        }
+    }
+
+    private void sendFeedback(long now) {
+        final long elapsed = now - mFeedbackStartTimeNanos;
+        final int receiveRate = (int)Math.min(Integer.MAX_VALUE,
+                mReceivedBytes * 8 * 1000000000L / elapsed);
+        final int backlog = mDecodePipeline.getBacklog();
+        mFeedbackStartTimeNanos = now;
+        mReceivedBytes = 0;
+
+        mFeedbackBuffer.clear();
+        mFeedbackBuffer.putInt(receiveRate);
+        mFeedbackBuffer.putInt(backlog);
+        mFeedbackBuffer.putInt((int)(mJitterNanos / 1000));
+        mFeedbackBuffer.flip();
+        sendMessage(Protocol.DisplaySourceService.ID,
+                Protocol.DisplaySourceService.MSG_SINK_FEEDBACK, mFeedbackBuffer);
+
+        if (now - mLastLatencyReportTimeNanos >= LATENCY_REPORT_INTERVAL_NANOS) {
+            mLastLatencyReportTimeNanos = now;
+            getLogger().log("Frame latency " + mLatencyTracker + ", clock offset "
+                    + mClockSync.getOffsetNanos() / 1000 + "us, heartbeats "
+                    + mHeartbeatCount + ", decode pipeline " + mDecodePipeline + ".");
         }
     }
 
     private void sendSinkStatus() {
         synchronized (mSurfaceAndCodecLock) {
-            if (mCodec != null) {
+            if (mSurface != null) {
                 mBuffer.clear();
                 mBuffer.putInt(mSurfaceWidth);
                 mBuffer.putInt(mSurfaceHeight);
                 mBuffer.putInt(mDensityDpi);
+                mBuffer.putInt(Protocol.DisplaySourceService.SINK_FLAG_INTRA_REFRESH);
                 mBuffer.flip();
-                getTransport().sendMessage(Protocol.DisplaySourceService.ID,
+                sendMessage(Protocol.DisplaySourceService.ID,
                         Protocol.DisplaySourceService.MSG_SINK_AVAILABLE, mBuffer);
             } else {
-                getTransport().sendMessage(Protocol.DisplaySourceService.ID,
+                sendMessage(Protocol.DisplaySourceService.ID,
                         Protocol.DisplaySourceService.MSG_SINK_NOT_AVAILABLE, null);
             }
         }
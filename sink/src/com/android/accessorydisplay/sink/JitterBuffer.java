@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.sink;
+
+/**
+ * Chooses when to render each decoded frame so that variation in network and
+ * decoding delay does not show up as stutter.
+ * <p>
+ * Frames are scheduled at their presentation time plus a playout delay.  The
+ * delay is the smallest transit time seen recently, which absorbs the offset
+ * between the source's clock and ours without synchronizing them, plus a target
+ * that adapts to the measured variation in transit time.  The smallest transit
+ * time is taken over a sliding window so that the schedule follows clock drift
+ * and changes in the route rather than staying pinned to one lucky frame.
+ * </p><p>
+ * A frame that arrives after its scheduled time is rendered at once, unless it
+ * is so late that the buffer has fallen behind, in which case it is skipped so
+ * that latency shrinks back to the target.  Skipping a decoded frame does not
+ * harm later ones.  A frame that arrives implausibly early is pulled in.  The
+ * first frame after the source was idle is never skipped, since the picture it
+ * brings may not be replaced for a long time.
+ * </p><p>
+ * In {@link #MODE_LOWEST_LATENCY} frames are rendered as soon as they are
+ * decoded, as if there were no jitter buffer.  So are frames whose presentation
+ * time is zero, since sources that predate frame headers send no timestamps.
+ * </p><p>
+ * This class has no Android dependencies and is not thread-safe.
+ * </p>
+ */
+public final class JitterBuffer {
+    /**
+     * Render frames as soon as they are decoded.
+     */
+    public static final int MODE_LOWEST_LATENCY = 0;
+
+    /**
+     * Delay frames by an adaptive target to render them evenly.
+     */
+    public static final int MODE_SMOOTHEST = 1;
+
+    /**
+     * Returned by {@link #schedule} to render a frame immediately.
+     */
+    public static final long RENDER_NOW = 0;
+
+    /**
+     * Returned by {@link #schedule} to drop a frame without rendering it.
+     */
+    public static final long SKIP = -1;
+
+    private static final long MIN_TARGET_DELAY_NANOS = 10 * 1000000L;
+    private static final long MAX_TARGET_DELAY_NANOS = 150 * 1000000L;
+
+    // Skip frames that are later than this beyond their scheduled time.
+    private static final long SKIP_THRESHOLD_NANOS = 50 * 1000000L;
+
+    // Frames scheduled further ahead than this are pulled in.
+    private static final long MAX_EARLY_NANOS = MAX_TARGET_DELAY_NANOS * 2;
+
+    // The window over which the smallest transit time is taken.
+    private static final int WINDOW_FRAMES = 120;
+
+    // Enough to hold every frame waiting on the surface.
+    private static final int MAX_SCHEDULED_FRAMES = 16;
+
+    // Frames further apart than this mean the source was idle in between.
+    private static final long IDLE_GAP_US = 200 * 1000L;
+
+    private int mMode = MODE_LOWEST_LATENCY;
+
+    // The smallest transit time in the last complete window and the current one.
+    private boolean mHaveBaseTransit;
+    private long mBaseTransitNanos;
+    private long mWindowMinTransitNanos;
+    private int mWindowFrames;
+
+    // Smoothed transit time in excess of the base and its mean deviation.
+    private long mExcessNanos;
+    private long mExcessDeviationNanos;
+    private long mTargetDelayNanos = MIN_TARGET_DELAY_NANOS;
+
+    private boolean mSkippedLastFrame;
+    private long mLastPresentationTimeUs;
+
+    // Render times of recently scheduled frames, used as a ring.
+    private final long[] mScheduledTimesNanos = new long[MAX_SCHEDULED_FRAMES];
+    private int mNextScheduledSlot;
+
+    // Statistics.
+    private long mScheduledFrameCount;
+    private long mLateFrameCount;
+    private long mEarlyFrameCount;
+    private long mSkippedFrameCount;
+
+    /**
+     * Gets the mode with the given name, "lowest-latency" or "smoothest".
+     *
+     * @throws IllegalArgumentException if there is no such mode.
+     */
+    public static int modeFromName(String name) {
+        if ("lowest-latency".equals(name)) {
+            return MODE_LOWEST_LATENCY;
+        }
+        if ("smoothest".equals(name)) {
+            return MODE_SMOOTHEST;
+        }
+        throw new IllegalArgumentException("Unknown jitter buffer mode: " + name);
+    }
+
+    /**
+     * Sets the mode, such as {@link #MODE_SMOOTHEST}, and starts over.
+     */
+    public void setMode(int mode) {
+        if (mode != MODE_LOWEST_LATENCY && mode != MODE_SMOOTHEST) {
+            throw new IllegalArgumentException("Invalid jitter buffer mode: " + mode);
+        }
+        mMode = mode;
+        reset();
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * Forgets the timing of previous frames, such as when the stream restarts.
+     */
+    public void reset() {
+        mHaveBaseTransit = false;
+        mWindowFrames = 0;
+        mExcessNanos = 0;
+        mExcessDeviationNanos = 0;
+        mTargetDelayNanos = MIN_TARGET_DELAY_NANOS;
+        mSkippedLastFrame = false;
+        mLastPresentationTimeUs = 0;
+        for (int i = 0; i < MAX_SCHEDULED_FRAMES; i++) {
+            mScheduledTimesNanos[i] = 0;
+        }
+    }
+
+    /**
+     * Decides when to render a decoded frame.
+     *
+     * @param presentationTimeUs The presentation time of the frame on the source's clock.
+     * @param nowNanos The current time on the local monotonic clock.
+     * @return The local time at which to render the frame, {@link #RENDER_NOW}
+     * or {@link #SKIP}.
+     */
+    public long schedule(long presentationTimeUs, long nowNanos) {
+        if (mMode == MODE_LOWEST_LATENCY || presentationTimeUs == 0) {
+            return RENDER_NOW;
+        }
+
+        final long transit = nowNanos - presentationTimeUs * 1000;
+        updateTransit(transit);
+        final boolean afterIdle = mLastPresentationTimeUs != 0
+                && presentationTimeUs - mLastPresentationTimeUs > IDLE_GAP_US;
+        mLastPresentationTimeUs = presentationTimeUs;
+
+        long renderTime = presentationTimeUs * 1000 + mBaseTransitNanos + mTargetDelayNanos;
+        if (renderTime < nowNanos) {
+            if (nowNanos - renderTime > SKIP_THRESHOLD_NANOS && !mSkippedLastFrame
+                    && !afterIdle) {
+                // Never skip two frames in a row so the picture keeps moving.
+                mSkippedLastFrame = true;
+                mSkippedFrameCount += 1;
+                return SKIP;
+            }
+            mLateFrameCount += 1;
+            renderTime = nowNanos;
+        } else if (renderTime - nowNanos > MAX_EARLY_NANOS) {
+            mEarlyFrameCount += 1;
+            renderTime = nowNanos + mTargetDelayNanos;
+        }
+        mSkippedLastFrame = false;
+        mScheduledFrameCount += 1;
+
+        mScheduledTimesNanos[mNextScheduledSlot] = renderTime;
+        mNextScheduledSlot = (mNextScheduledSlot + 1) % MAX_SCHEDULED_FRAMES;
+        return renderTime;
+    }
+
+    /**
+     * Gets the number of scheduled frames that are still waiting to be rendered.
+     */
+    public int getDepth(long nowNanos) {
+        int depth = 0;
+        for (int i = 0; i < MAX_SCHEDULED_FRAMES; i++) {
+            if (mScheduledTimesNanos[i] > nowNanos) {
+                depth += 1;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * Gets the delay added on top of the smallest transit time in nanoseconds.
+     */
+    public long getTargetDelayNanos() {
+        return mTargetDelayNanos;
+    }
+
+    /**
+     * Gets the number of frames that were scheduled to be rendered.
+     */
+    public long getScheduledFrameCount() {
+        return mScheduledFrameCount;
+    }
+
+    /**
+     * Gets the number of frames that were rendered late.
+     */
+    public long getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    /**
+     * Gets the number of frames that were so early they had to be pulled in.
+     */
+    public long getEarlyFrameCount() {
+        return mEarlyFrameCount;
+    }
+
+    /**
+     * Gets the number of frames that were skipped to catch up.
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    @Override
+    public String toString() {
+        return "mode=" + mMode
+                + ", targetDelay=" + mTargetDelayNanos / 1000 + "us"
+                + ", scheduled=" + mScheduledFrameCount
+                + ", late=" + mLateFrameCount
+                + ", early=" + mEarlyFrameCount
+                + ", skipped=" + mSkippedFrameCount;
+    }
+
+    private void updateTransit(long transit) {
+        if (!mHaveBaseTransit) {
+            mHaveBaseTransit = true;
+            mBaseTransitNanos = transit;
+            mWindowMinTransitNanos = transit;
+            mWindowFrames = 0;
+        }
+
+        // The base follows the window minimum up, but follows any new minimum
+        // down at once since that means frames can be rendered sooner.
+        if (transit < mBaseTransitNanos) {
+            mBaseTransitNanos = transit;
+        }
+        if (mWindowFrames == 0 || transit < mWindowMinTransitNanos) {
+            mWindowMinTransitNanos = transit;
+        }
+        mWindowFrames += 1;
+        if (mWindowFrames == WINDOW_FRAMES) {
+            mBaseTransitNanos = mWindowMinTransitNanos;
+            mWindowFrames = 0;
+        }
+
+        // Aim for the smoothed excess plus a few mean deviations.
+        final long excess = transit - mBaseTransitNanos;
+        mExcessNanos += (excess - mExcessNanos) / 16;
+        mExcessDeviationNanos += (Math.abs(excess - mExcessNanos) - mExcessDeviationNanos) / 16;
+        mTargetDelayNanos = Math.max(MIN_TARGET_DELAY_NANOS, Math.min(MAX_TARGET_DELAY_NANOS,
+                mExcessNanos + 3 * mExcessDeviationNanos));
+    }
+}
@@ -229,6 +229,7 @@ public class SinkActivity extends Activity {
                 if (mProtocolVersion >= 2) {
                     registerHid();
                 }
+                mTransport.startWriting();
                 startServices();
                 mTransport.startReading();
                 return;
@@ -404,6 +405,7 @@ public class SinkActivity extends Activity {
     private void startServices() {
         mDisplaySinkService = new DisplaySinkService(this, mTransport,
                 getResources().getConfiguration().densityDpi);
+        mDisplaySinkService.applyIntentExtras(getIntent());
         mDisplaySinkService.start();
 
         if (mAttached) {
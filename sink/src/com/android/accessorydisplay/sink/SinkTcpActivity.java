@@ -3,12 +3,14 @@ package com.android.accessorydisplay.sink;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 
 import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.SocketChannelTransport;
 
 import android.app.Activity;
 import android.net.ConnectivityManager;
@@ -30,7 +32,7 @@ public class SinkTcpActivity extends Activity {
     private Logger mLogger;
 
     private boolean mConnected;
-    private SinkTcpTransport mTransport;
+    private SocketChannelTransport mTransport;
 
     private boolean mAttached;
     private DisplaySinkService mDisplaySinkService;
@@ -54,7 +56,8 @@ public class SinkTcpActivity extends Activity {
         mLogger.log("IP Address : " + getDefaultIpAddress());
         mLogger.log("Waiting for accessory display source to be connected via TCP...");
 		try {
-			mServerSocket = new ServerSocket(1234);
+			mServerChannel = ServerSocketChannel.open();
+			mServerChannel.socket().bind(new InetSocketAddress(1234));
 	        mAcceptor.start();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -92,7 +95,7 @@ public class SinkTcpActivity extends Activity {
 			protected Void doInBackground(Void... params) {
 		        if (mConnected) disconnect();
 		        try {
-		            if (mServerSocket != null) mServerSocket.close();
+		            if (mServerChannel != null) mServerChannel.close();
 		        } catch (IOException e) {
 					e.printStackTrace();
 		        }
@@ -107,15 +110,15 @@ public class SinkTcpActivity extends Activity {
 		super.onPause();
 	}
      
-    ServerSocket mServerSocket;
+    ServerSocketChannel mServerChannel;
     Thread mAcceptor = new Thread() {
         @Override
         public void run() {
             while (true) {
-                Socket client = null;
+                SocketChannel client = null;
                 try {
-                    client = mServerSocket.accept();
-                } catch (SocketException e) {
+                    client = mServerChannel.accept();
+                } catch (ClosedChannelException e) {
                 	mLogger.log("ServerSocket was closed, exiting");
                     break;
                 } catch (IOException e) {
@@ -129,14 +132,15 @@ public class SinkTcpActivity extends Activity {
         }    	
     };
     
-    private void connect(final Socket socket) {
+    private void connect(final SocketChannel channel) {
         mLogger.log("Connecting to TCP source");
         if (mConnected) disconnect();
 		SinkTcpActivity.this.runOnUiThread(new Runnable() {
 			@Override
 			public void run() {
-				mTransport = new SinkTcpTransport(mLogger, socket);
+				mTransport = new SocketChannelTransport(mLogger, channel);
 				mConnected = true;
+				mTransport.startWriting();
 				startServices();
 				mTransport.startReading();
 			}
@@ -156,6 +160,7 @@ public class SinkTcpActivity extends Activity {
     private void startServices() {
         mDisplaySinkService = new DisplaySinkService(this, mTransport,
                 getResources().getConfiguration().densityDpi);
+        mDisplaySinkService.applyIntentExtras(getIntent());
         mDisplaySinkService.start();
 
         if (mAttached) {
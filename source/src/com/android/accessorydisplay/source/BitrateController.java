@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+/**
+ * Chooses the encoder bitrate from the feedback reported by the sink.
+ * <p>
+ * The controller uses additive increase and multiplicative decrease.  The link is
+ * considered congested when the sink's decode backlog grows, when inter-arrival
+ * jitter is both high and still rising, or when frames had to be dropped before
+ * they could be sent.  Congestion cuts the bitrate by a constant factor and holds
+ * it there for a few reports.  Otherwise the bitrate creeps back up towards the
+ * ceiling, but only while the stream is actually using most of it, so a static
+ * screen does not inflate the target.
+ * </p><p>
+ * This class has no Android dependencies and is not thread-safe.
+ * </p>
+ */
+public final class BitrateController {
+    private static final float DECREASE_FACTOR = 0.7f;
+    private static final float INCREASE_FRACTION_OF_CEILING = 0.05f;
+    private static final int HOLD_REPORTS_AFTER_DECREASE = 2;
+    private static final int MAX_BACKLOG_FRAMES = 3;
+    private static final int MAX_JITTER_US = 20000;
+
+    private final int mFloor;
+    private final int mCeiling;
+    private final int mIncreaseStep;
+
+    private int mBitrate;
+    private int mHoldReports;
+    private int mLastJitterUs;
+
+    // Statistics.
+    private long mIncreaseCount;
+    private long mDecreaseCount;
+
+    /**
+     * Creates a bitrate controller.
+     *
+     * @param initialBitrate The initial bitrate in bits per second, which is
+     * clamped to the floor and ceiling.
+     * @param floor The minimum bitrate in bits per second.
+     * @param ceiling The maximum bitrate in bits per second.
+     */
+    public BitrateController(int initialBitrate, int floor, int ceiling) {
+        if (floor <= 0 || ceiling < floor) {
+            throw new IllegalArgumentException("Invalid bitrate range: "
+                    + floor + " to " + ceiling);
+        }
+        mFloor = floor;
+        mCeiling = ceiling;
+        mIncreaseStep = Math.max(1, (int)(ceiling * INCREASE_FRACTION_OF_CEILING));
+        mBitrate = Math.max(floor, Math.min(initialBitrate, ceiling));
+    }
+
+    /**
+     * Gets the current target bitrate in bits per second.
+     */
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    /**
+     * Updates the target bitrate from a feedback report.
+     *
+     * @param receiveRate The rate at which the sink received content in bits per second.
+     * @param decodeBacklog The number of frames waiting to be decoded by the sink.
+     * @param jitterUs The inter-arrival jitter measured by the sink in microseconds.
+     * @param framesDropped True if the source dropped frames since the last report.
+     * @return The new target bitrate in bits per second.
+     */
+    public int onFeedback(int receiveRate, int decodeBacklog, int jitterUs,
+            boolean framesDropped) {
+        final boolean jitterRising = jitterUs > MAX_JITTER_US && jitterUs > mLastJitterUs;
+        mLastJitterUs = jitterUs;
+
+        if (framesDropped || decodeBacklog > MAX_BACKLOG_FRAMES || jitterRising) {
+            final int bitrate = Math.max(mFloor, (int)(mBitrate * DECREASE_FACTOR));
+            if (bitrate < mBitrate) {
+                mBitrate = bitrate;
+                mDecreaseCount += 1;
+            }
+            mHoldReports = HOLD_REPORTS_AFTER_DECREASE;
+        } else if (mHoldReports > 0) {
+            mHoldReports -= 1;
+        } else if (receiveRate >= mBitrate / 2 && mBitrate < mCeiling) {
+            mBitrate = Math.min(mCeiling, mBitrate + mIncreaseStep);
+            mIncreaseCount += 1;
+        }
+        return mBitrate;
+    }
+
+    /**
+     * Gets the number of times the bitrate was increased.
+     */
+    public long getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    /**
+     * Gets the number of times the bitrate was decreased.
+     */
+    public long getDecreaseCount() {
+        return mDecreaseCount;
+    }
+}
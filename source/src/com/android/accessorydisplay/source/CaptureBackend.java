@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import android.view.Surface;
+
+/**
+ * Produces the content that an {@link EncodingEngine} encodes by drawing on the
+ * encoder's input surface.
+ * <p>
+ * The methods are called on encoder threads, one at a time: {@link #start} is
+ * followed by any number of calls to {@link #resize} as encoders are replaced,
+ * then by {@link #stop}.
+ * </p>
+ */
+public interface CaptureBackend {
+    /**
+     * Starts drawing on a surface.
+     *
+     * @param surface The encoder's input surface.
+     * @param width The width of the content in pixels.
+     * @param height The height of the content in pixels.
+     * @param densityDpi The density of the sink's display.
+     */
+    public void start(Surface surface, int width, int height, int densityDpi);
+
+    /**
+     * Moves drawing to a new surface, such as that of an encoder for a new size,
+     * without stopping.  Nothing may draw on the previous surface once this
+     * method returns.
+     *
+     * @param surface The new encoder's input surface.
+     * @param width The new width of the content in pixels.
+     * @param height The new height of the content in pixels.
+     * @param densityDpi The density of the sink's display.
+     */
+    public void resize(Surface surface, int width, int height, int densityDpi);
+
+    /**
+     * Stops drawing.  Nothing may draw on the surface once this method returns.
+     */
+    public void stop();
+}
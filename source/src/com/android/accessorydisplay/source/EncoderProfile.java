@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecCapabilities;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecInfo.EncoderCapabilities;
+import android.media.MediaCodecInfo.VideoCapabilities;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * A named set of encoder settings that trades latency against bandwidth.
+ * <p>
+ * Each profile declares what it would like from the encoder and
+ * {@link #createFormat} asks for only the parts that the encoder says it
+ * supports, so every profile works on every device, just less well on some.
+ * Settings that have no capability to probe are only set on platform versions
+ * that define them, since older encoders may reject keys they do not know.
+ * </p><p>
+ * Profiles are immutable.
+ * </p>
+ */
+public final class EncoderProfile {
+    // Defined as CodecProfileLevel.AVCProfileConstrainedBaseline from API 27.
+    private static final int AVC_PROFILE_CONSTRAINED_BASELINE = 0x10000;
+
+    // Defined as MediaFormat.KEY_LATENCY and KEY_MAX_B_FRAMES from API 30 and 29.
+    private static final String KEY_LATENCY = "latency";
+    private static final String KEY_MAX_B_FRAMES = "max-bframes";
+
+    // Negative intervals mean no periodic key frames from API 25, so use an hour
+    // before that.
+    private static final int NO_PERIODIC_I_FRAME_INTERVAL = 3600;
+
+    // With a variable frame rate, a still picture is only encoded again this often
+    // in case the sink missed it.
+    private static final long SAFETY_REFRESH_US = 1000000;
+
+    /**
+     * Gets frames to the sink as soon as possible: constrained baseline without
+     * B-frames, constant bitrate so no frame is much larger than the next, and
+     * the encoder running at realtime priority as fast as it can.
+     */
+    public static final EncoderProfile LOW_LATENCY = new EncoderProfile("low-latency")
+            .setFrameRate(60)
+            .setIFrameInterval(10)
+            .setAvcProfiles(AVC_PROFILE_CONSTRAINED_BASELINE, CodecProfileLevel.AVCProfileBaseline)
+            .setBitrateMode(EncoderCapabilities.BITRATE_MODE_CBR)
+            .setRealtime(true)
+            .setLowLatency(true)
+            .setRepeatPreviousFrameAfterUs(100000);
+
+    /**
+     * Compresses better than {@link #LOW_LATENCY} at the cost of a little
+     * latency, without B-frames.  This is the default.
+     */
+    public static final EncoderProfile BALANCED = new EncoderProfile("balanced")
+            .setFrameRate(30)
+            .setIFrameInterval(10)
+            .setAvcProfiles(CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCProfileMain,
+                    CodecProfileLevel.AVCProfileBaseline)
+            .setBitrateMode(EncoderCapabilities.BITRATE_MODE_VBR)
+            .setRealtime(true)
+            .setRepeatPreviousFrameAfterUs(200000);
+
+    /**
+     * Uses as little bandwidth as possible for slow links, at a lower frame rate
+     * and bitrate with whatever the encoder does best.
+     */
+    public static final EncoderProfile BANDWIDTH_SAVER = new EncoderProfile("bandwidth-saver")
+            .setFrameRate(15)
+            .setIFrameInterval(30)
+            .setAvcProfiles(CodecProfileLevel.AVCProfileHigh, CodecProfileLevel.AVCProfileMain,
+                    CodecProfileLevel.AVCProfileBaseline)
+            .setBitrateMode(EncoderCapabilities.BITRATE_MODE_VBR)
+            .setBitrateScale(0.5f)
+            .setAllowBFrames(true)
+            .setRepeatPreviousFrameAfterUs(500000);
+
+    private final String mName;
+    private int mFrameRate;
+    private int mIFrameInterval;
+    private int[] mAvcProfiles = new int[0];
+    private int mBitrateMode = -1;
+    private float mBitrateScale = 1.0f;
+    private boolean mRealtime;
+    private boolean mLowLatency;
+    private boolean mAllowBFrames;
+    private long mRepeatPreviousFrameAfterUs;
+
+    private EncoderProfile(String name) {
+        mName = name;
+    }
+
+    /**
+     * Gets the profile with the given name.
+     *
+     * @throws IllegalArgumentException if there is no such profile.
+     */
+    public static EncoderProfile fromName(String name) {
+        for (EncoderProfile profile : new EncoderProfile[] {
+                LOW_LATENCY, BALANCED, BANDWIDTH_SAVER }) {
+            if (profile.mName.equals(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown encoder profile: " + name);
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Gets the factor applied to the session's bitrates.
+     */
+    public float getBitrateScale() {
+        return mBitrateScale;
+    }
+
+    /**
+     * Creates an encoder format for this profile.
+     *
+     * @param codecInfo The encoder that will be configured, or null if unknown,
+     * in which case only the settings every encoder understands are used.
+     * @param mimeType The mime type to encode.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @param bitrate The initial bitrate in bits per second.
+     * @param intraRefreshPeriod The number of frames over which to refresh the
+     * picture gradually instead of sending periodic key frames, or 0 for key frames.
+     * The caller must check {@link #supportsIntraRefresh} first.
+     * @param variableFrameRate True to only encode frames when the content changes,
+     * apart from a rare safety refresh, instead of repeating still pictures as
+     * often as the profile would.
+     * @return The format.
+     */
+    public MediaFormat createFormat(MediaCodecInfo codecInfo, String mimeType,
+            int width, int height, int bitrate, int intraRefreshPeriod,
+            boolean variableFrameRate) {
+        final MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger("prepend-sps-pps-to-idr-frames", 1);
+        if (intraRefreshPeriod > 0) {
+            // Key frames are only sent when asked for.
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, intraRefreshPeriod);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                    Build.VERSION.SDK_INT > Build.VERSION_CODES.N
+                            ? -1 : NO_PERIODIC_I_FRAME_INTERVAL);
+        } else {
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameInterval);
+        }
+        if (variableFrameRate) {
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, SAFETY_REFRESH_US);
+        } else if (mRepeatPreviousFrameAfterUs > 0) {
+            format.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER,
+                    mRepeatPreviousFrameAfterUs);
+        }
+
+        final CodecCapabilities caps = codecInfo != null
+                ? codecInfo.getCapabilitiesForType(mimeType) : null;
+        if (caps != null) {
+            final EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+            if (mBitrateMode >= 0 && encoderCaps != null
+                    && encoderCaps.isBitrateModeSupported(mBitrateMode)) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode);
+            }
+
+            // The level must accompany the profile or some encoders ignore both.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                final CodecProfileLevel profileLevel = findProfileLevel(caps);
+                if (profileLevel != null) {
+                    format.setInteger(MediaFormat.KEY_PROFILE, profileLevel.profile);
+                    format.setInteger(MediaFormat.KEY_LEVEL, profileLevel.level);
+                }
+            }
+
+            if (mRealtime && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                format.setInteger(MediaFormat.KEY_PRIORITY, 0);
+
+                // Run the encoder faster than the frame rate if it can, so each
+                // frame spends less time in it.
+                final VideoCapabilities videoCaps = caps.getVideoCapabilities();
+                final int operatingRate = mFrameRate * 2;
+                if (videoCaps != null
+                        && videoCaps.areSizeAndRateSupported(width, height, operatingRate)) {
+                    format.setInteger(MediaFormat.KEY_OPERATING_RATE, operatingRate);
+                }
+            }
+        }
+
+        if (mLowLatency && Build.VERSION.SDK_INT >= 30) {
+            format.setInteger(KEY_LATENCY, 1);
+        }
+        if (!mAllowBFrames && Build.VERSION.SDK_INT >= 29) {
+            format.setInteger(KEY_MAX_B_FRAMES, 0);
+        }
+        return format;
+    }
+
+    /**
+     * Returns true if an encoder can refresh the picture gradually.
+     */
+    public static boolean supportsIntraRefresh(MediaCodecInfo codecInfo, String mimeType) {
+        if (codecInfo == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return false;
+        }
+        final CodecCapabilities caps = codecInfo.getCapabilitiesForType(mimeType);
+        return caps != null && caps.isFeatureSupported(CodecCapabilities.FEATURE_IntraRefresh);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+    // Finds the most preferred profile the encoder supports at its highest level.
+    private CodecProfileLevel findProfileLevel(CodecCapabilities caps) {
+        if (caps.profileLevels == null) {
+            return null;
+        }
+        for (int avcProfile : mAvcProfiles) {
+            CodecProfileLevel best = null;
+            for (CodecProfileLevel profileLevel : caps.profileLevels) {
+                if (profileLevel.profile == avcProfile
+                        && (best == null || profileLevel.level > best.level)) {
+                    best = profileLevel;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    private EncoderProfile setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+        return this;
+    }
+
+    private EncoderProfile setIFrameInterval(int iFrameInterval) {
+        mIFrameInterval = iFrameInterval;
+        return this;
+    }
+
+    private EncoderProfile setAvcProfiles(int... avcProfiles) {
+        mAvcProfiles = avcProfiles;
+        return this;
+    }
+
+    private EncoderProfile setBitrateMode(int bitrateMode) {
+        mBitrateMode = bitrateMode;
+        return this;
+    }
+
+    private EncoderProfile setBitrateScale(float bitrateScale) {
+        mBitrateScale = bitrateScale;
+        return this;
+    }
+
+    private EncoderProfile setRealtime(boolean realtime) {
+        mRealtime = realtime;
+        return this;
+    }
+
+    private EncoderProfile setLowLatency(boolean lowLatency) {
+        mLowLatency = lowLatency;
+        return this;
+    }
+
+    private EncoderProfile setAllowBFrames(boolean allowBFrames) {
+        mAllowBFrames = allowBFrames;
+        return this;
+    }
+
+    private EncoderProfile setRepeatPreviousFrameAfterUs(long repeatPreviousFrameAfterUs) {
+        mRepeatPreviousFrameAfterUs = repeatPreviousFrameAfterUs;
+        return this;
+    }
+}
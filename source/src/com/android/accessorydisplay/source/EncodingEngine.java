@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import com.android.accessorydisplay.common.LatencyHistogram;
+import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.Protocol;
+import com.android.accessorydisplay.common.StartupTimer;
+import com.android.accessorydisplay.common.Transport;
+
+import android.media.MediaCodec.CodecException;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.view.Surface;
+
+/**
+ * Encodes the content of a {@link CaptureBackend} and streams it to the sink.
+ * <p>
+ * The engine owns everything between the capture backend and the transport: the
+ * encoder configuration, the encoder itself, the decisions about which frames to
+ * send, the bitrate chosen from the sink's feedback and the statistics about all
+ * of these.  Each session started with {@link #start} gets a new encoder sized
+ * for the sink and configured by the current {@link EncoderProfile}.
+ * </p><p>
+ * When intra refresh is enabled, the sink says it can start decoding without a
+ * key frame and the encoder supports it, the picture is refreshed gradually over
+ * a second instead of with periodic key frames, which are many times larger than
+ * other frames and stall the link while they are sent.  Otherwise the stream
+ * falls back to periodic key frames.
+ * </p><p>
+ * To get the first frame out sooner, {@link #prepare} creates and configures an
+ * encoder for the size of the previous sink while the handshake is in flight.
+ * The session uses it if the sink turns out to be the same size and replaces it
+ * otherwise.  The time each phase of starting a session took is logged.
+ * </p><p>
+ * A new session, such as for a sink that changed size, does not stop the backend.
+ * The previous encoder keeps running until the new one is ready, then the backend
+ * is resized onto the new encoder's surface and only the previous encoder is
+ * released, so the virtual display and anything shown on it survive.  The time
+ * from the new size arriving until the first frame at that size is sent is
+ * measured.
+ * </p><p>
+ * An encoder that fails is replaced by a new session of the same size in the same
+ * way, so the backend moves onto the new encoder instead of drawing on a dead one.
+ * </p><p>
+ * By default the stream has a variable frame rate: frames are only encoded when
+ * the content changes, with a safety refresh of a still picture once a second,
+ * and heartbeats tell the sink that the stream is idle in between.  Otherwise
+ * still pictures are repeated as often as the profile asks.
+ * </p><p>
+ * This object is only intended to be used by the thread that receives messages
+ * from the sink.
+ * </p>
+ */
+public final class EncodingEngine {
+    private static final String MIME_TYPE = "video/avc";
+
+    // The sink the next session is prepared for, which is the one of the last
+    // session in this process or a common size before there was one.  Only
+    // accessed by the thread that receives messages.
+    private static int sLastWidth = 1280;
+    private static int sLastHeight = 720;
+    private static int sLastSinkFlags = Protocol.DisplaySourceService.SINK_FLAG_INTRA_REFRESH;
+
+    private final Transport mTransport;
+    private final Logger mLogger;
+    private final CaptureBackend mBackend;
+    private final int mBitrate;
+    private final int mMinBitrate;
+    private final int mMaxBitrate;
+    private final StartupTimer mStartupTimer;
+    private EncoderProfile mProfile = EncoderProfile.BALANCED;
+    private boolean mIntraRefreshEnabled = true;
+    private boolean mVariableFrameRate = true;
+    private boolean mGopCacheEnabled;
+    private MediaCodecInfo mCodecInfo;
+    private boolean mCodecInfoKnown;
+
+    private int mWidth;
+    private int mHeight;
+    private int mDensityDpi;
+    private int mSinkFlags;
+    private boolean mIntraRefresh;
+    private StreamingEncoder mEncoder;
+    private Session mSession;
+    private Session mPreparedSession;
+
+    // The session whose encoder the backend draws on.  Sessions take the backend
+    // over on their own encoder threads, so this is guarded by the lock.
+    private final Object mBackendLock = new Object();
+    private Session mBackendSession;
+    private BitrateController mBitrateController;
+    private long mLastDroppedFrameCount;
+    private final LatencyHistogram mResizeLatencyHistogram = new LatencyHistogram();
+    private int mEncoderFailureCount;
+
+    /**
+     * Creates an encoding engine.
+     *
+     * @param transport The transport used to send frames.
+     * @param backend The backend that draws the content to encode.
+     * @param bitrate The initial bitrate in bits per second.
+     * @param minBitrate The lowest bitrate the sink's feedback may choose.
+     * @param maxBitrate The highest bitrate the sink's feedback may choose.
+     */
+    public EncodingEngine(Transport transport, CaptureBackend backend,
+            int bitrate, int minBitrate, int maxBitrate) {
+        mTransport = transport;
+        mLogger = transport.getLogger();
+        mBackend = backend;
+        mBitrate = bitrate;
+        mMinBitrate = minBitrate;
+        mMaxBitrate = maxBitrate;
+        mStartupTimer = new StartupTimer(mLogger, "Stream startup");
+    }
+
+    /**
+     * Sets the encoder profile, restarting the running session if it changes.
+     */
+    public void setProfile(EncoderProfile profile) {
+        if (profile == null) {
+            throw new IllegalArgumentException("profile must not be null");
+        }
+        if (mProfile != profile) {
+            mProfile = profile;
+            if (mEncoder != null) {
+                start(mWidth, mHeight, mDensityDpi, mSinkFlags);
+            }
+        }
+    }
+
+    public EncoderProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Enables gradual intra refresh where both the sink and the encoder support it,
+     * restarting the running session if it changes.
+     */
+    public void setIntraRefreshEnabled(boolean enabled) {
+        if (mIntraRefreshEnabled != enabled) {
+            mIntraRefreshEnabled = enabled;
+            if (mEncoder != null) {
+                start(mWidth, mHeight, mDensityDpi, mSinkFlags);
+            }
+        }
+    }
+
+    /**
+     * Chooses between only encoding frames when the content changes, which is
+     * the default, and repeating still pictures at the rate of the profile,
+     * restarting the running session if it changes.
+     */
+    public void setVariableFrameRate(boolean variableFrameRate) {
+        if (mVariableFrameRate != variableFrameRate) {
+            mVariableFrameRate = variableFrameRate;
+            if (mEncoder != null) {
+                start(mWidth, mHeight, mDensityDpi, mSinkFlags);
+            }
+        }
+    }
+
+    /**
+     * Chooses whether the frames since the last sync frame are cached so that a
+     * rejoining sink can be sent them instead of a new key frame, restarting the
+     * running session if it changes.  Off by default since every frame is copied,
+     * and never done for streams that refresh gradually.
+     */
+    public void setGopCacheEnabled(boolean enabled) {
+        if (mGopCacheEnabled != enabled) {
+            mGopCacheEnabled = enabled;
+            if (mEncoder != null) {
+                start(mWidth, mHeight, mDensityDpi, mSinkFlags);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the running session refreshes the picture gradually.
+     */
+    public boolean isIntraRefresh() {
+        return mIntraRefresh;
+    }
+
+    /**
+     * Prepares an encoder for the size of the last sink, such as while waiting to
+     * hear from the sink, and starts timing the startup.  Does nothing else if a
+     * session is running or an encoder is already prepared.
+     */
+    public void prepare() {
+        mStartupTimer.begin();
+        if (mEncoder != null || mPreparedSession != null) {
+            return;
+        }
+
+        mLogger.log("Preparing encoder for " + sLastWidth + "x" + sLastHeight + ".");
+        mPreparedSession = new Session(sLastWidth, sLastHeight,
+                chooseIntraRefresh(sLastSinkFlags, false));
+        mPreparedSession.encoder.prepare();
+    }
+
+    /**
+     * Starts streaming content of the given size, replacing any previous session.
+     *
+     * @param width The width of the sink in pixels.
+     * @param height The height of the sink in pixels.
+     * @param densityDpi The density of the sink.
+     * @param sinkFlags The flags the sink sent, such as
+     * {@link Protocol.DisplaySourceService#SINK_FLAG_INTRA_REFRESH}.
+     */
+    public void start(int width, int height, int densityDpi, int sinkFlags) {
+        final long startTime = System.nanoTime();
+        replaceSession();
+        if (!mStartupTimer.isRunning()) {
+            mStartupTimer.begin();
+        }
+        mStartupTimer.mark("sink available");
+
+        mWidth = width;
+        mHeight = height;
+        mDensityDpi = densityDpi;
+        mSinkFlags = sinkFlags;
+
+        final float scale = mProfile.getBitrateScale();
+        final int maxBitrate = Math.max(mMinBitrate, (int)(mMaxBitrate * scale));
+        mBitrateController = new BitrateController((int)(mBitrate * scale),
+                mMinBitrate, maxBitrate);
+        mLastDroppedFrameCount = 0;
+
+        mIntraRefresh = chooseIntraRefresh(sinkFlags, true);
+        Session session = mPreparedSession;
+        mPreparedSession = null;
+        if (session != null && !session.matches(width, height, mIntraRefresh)) {
+            mLogger.log("Discarding encoder prepared for "
+                    + session.width + "x" + session.height + ".");
+            session.encoder.quit();
+            session = null;
+        }
+        final boolean prepared = session != null;
+        if (!prepared) {
+            session = new Session(width, height, mIntraRefresh);
+        }
+        session.densityDpi = densityDpi;
+        session.startTimeNanos = startTime;
+
+        final MediaCodecInfo codecInfo = getCodecInfo();
+        mLogger.log("Encoding " + width + "x" + height + " with the " + mProfile
+                + " profile" + (codecInfo != null ? " on " + codecInfo.getName() : "")
+                + (mIntraRefresh ? " using intra refresh" : "")
+                + (prepared ? " with the prepared encoder." : "."));
+        mSession = session;
+        mEncoder = session.encoder;
+        mEncoder.start();
+
+        sLastWidth = width;
+        sLastHeight = height;
+        sLastSinkFlags = sinkFlags;
+    }
+
+    /**
+     * Stops streaming and releases any prepared encoder.
+     */
+    public void stop() {
+        final Session backendSession;
+        synchronized (mBackendLock) {
+            backendSession = mBackendSession;
+            if (backendSession != null) {
+                backendSession.retired = true;
+            }
+            if (mSession != null) {
+                mSession.retired = true;
+            }
+        }
+        if (backendSession != null && backendSession != mSession) {
+            backendSession.encoder.quit();
+        }
+        if (mEncoder != null) {
+            mLogger.log("Stopping stream: " + this);
+            mEncoder.quit();
+            mEncoder = null;
+            mSession = null;
+        }
+        if (mPreparedSession != null) {
+            mPreparedSession.encoder.quit();
+            mPreparedSession = null;
+        }
+        mStartupTimer.cancel();
+    }
+
+    /**
+     * Returns true if a session is running.
+     */
+    public boolean isStarted() {
+        return mEncoder != null;
+    }
+
+    /**
+     * Asks the encoder for a sync frame, such as when the sink lost content.
+     */
+    public void requestSyncFrame() {
+        if (mEncoder != null) {
+            mEncoder.requestSyncFrame();
+        }
+    }
+
+    /**
+     * Brings a sink that restarted its decoder up to date with the running
+     * session without waiting for the next key frame.
+     */
+    public void replayCache() {
+        if (mEncoder != null) {
+            mEncoder.replayCache();
+        }
+    }
+
+    /**
+     * Adjusts the bitrate to the feedback reported by the sink.
+     */
+    public void onSinkFeedback(int receiveRate, int decodeBacklog, int jitterUs) {
+        if (mEncoder == null) {
+            return;
+        }
+
+        final long droppedFrameCount = mEncoder.getDroppedFrameCount();
+        final boolean framesDropped = droppedFrameCount != mLastDroppedFrameCount;
+        mLastDroppedFrameCount = droppedFrameCount;
+
+        final int oldBitrate = mBitrateController.getBitrate();
+        final int bitrate = mBitrateController.onFeedback(
+                receiveRate, decodeBacklog, jitterUs, framesDropped);
+        if (bitrate != oldBitrate) {
+            mLogger.log("Changing bitrate to " + bitrate + ": receiveRate=" + receiveRate
+                    + ", decodeBacklog=" + decodeBacklog + ", jitterUs=" + jitterUs
+                    + ", framesDropped=" + framesDropped);
+            mEncoder.setBitrate(bitrate);
+        }
+    }
+
+    // Leaves the running session to be stopped by the next one once that has taken
+    // over the backend.  A session that never got the backend is stopped now.
+    private void replaceSession() {
+        if (mEncoder == null) {
+            return;
+        }
+
+        mLogger.log("Replacing stream: " + this);
+        final boolean hasBackend;
+        synchronized (mBackendLock) {
+            hasBackend = mBackendSession == mSession;
+            if (!hasBackend) {
+                mSession.retired = true;
+            }
+        }
+        if (!hasBackend) {
+            mEncoder.quit();
+        }
+        mEncoder = null;
+        mSession = null;
+    }
+
+    // Replaces a session whose encoder failed.
+    private void handleEncoderFailed(Session session) {
+        if (session == mPreparedSession) {
+            mLogger.log("Discarding prepared encoder that failed.");
+            mPreparedSession.encoder.quit();
+            mPreparedSession = null;
+        } else if (session == mSession) {
+            mEncoderFailureCount += 1;
+            mLogger.log("Restarting stream after encoder failure "
+                    + mEncoderFailureCount + ".");
+            start(mWidth, mHeight, mDensityDpi, mSinkFlags);
+        }
+    }
+
+    // Decides whether a session for a sink can use intra refresh.
+    private boolean chooseIntraRefresh(int sinkFlags, boolean log) {
+        if (!mIntraRefreshEnabled) {
+            return false;
+        }
+        if ((sinkFlags & Protocol.DisplaySourceService.SINK_FLAG_INTRA_REFRESH) == 0) {
+            if (log) {
+                mLogger.log("Sink cannot start without a key frame, "
+                        + "using periodic key frames instead of intra refresh.");
+            }
+            return false;
+        }
+        if (!EncoderProfile.supportsIntraRefresh(getCodecInfo(), MIME_TYPE)) {
+            if (log) {
+                mLogger.log("Encoder does not support intra refresh, "
+                        + "using periodic key frames instead.");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private MediaCodecInfo getCodecInfo() {
+        if (!mCodecInfoKnown) {
+            mCodecInfo = findEncoder(MIME_TYPE);
+            mCodecInfoKnown = true;
+        }
+        return mCodecInfo;
+    }
+
+    @Override
+    public String toString() {
+        if (mEncoder == null) {
+            return "profile=" + mProfile;
+        }
+        return "profile=" + mProfile
+                + ", intraRefresh=" + mIntraRefresh
+                + ", variableFrameRate=" + mVariableFrameRate
+                + ", gopCache=" + mGopCacheEnabled
+                + ", size=" + mWidth + "x" + mHeight
+                + ", bitrate=" + mBitrateController.getBitrate()
+                + ", dropped=" + mEncoder.getDroppedFrameCount()
+                + ", encodeLatency: " + mEncoder.getEncodeLatencyHistogram()
+                + ", frameSizes: " + mEncoder.getFrameSizeStats()
+                + ", resizeLatency: " + mResizeLatencyHistogram
+                + ", encoderFailures=" + mEncoderFailureCount;
+    }
+
+    // An encoder and the sink it was created for.
+    private final class Session implements StreamingEncoder.Callback {
+        public final int width;
+        public final int height;
+        public final boolean intraRefresh;
+        public final EncoderProfile profile;
+        public final boolean variableFrameRate;
+        public final boolean gopCacheEnabled;
+        public final StreamingEncoder encoder;
+
+        // Set before the encoder starts, which publishes them to the encoder thread.
+        public int densityDpi;
+        public long startTimeNanos;
+
+        // Only accessed on the encoder thread.
+        public boolean resized;
+
+        // Set once the session may no longer take over the backend, guarded by
+        // the backend lock.
+        public boolean retired;
+
+        public Session(int width, int height, boolean intraRefresh) {
+            this.width = width;
+            this.height = height;
+            this.intraRefresh = intraRefresh;
+            this.profile = mProfile;
+            this.variableFrameRate = mVariableFrameRate;
+            this.gopCacheEnabled = mGopCacheEnabled;
+
+            final MediaCodecInfo codecInfo = getCodecInfo();
+            final int bitrate = (int)(mBitrate * mProfile.getBitrateScale());
+            encoder = new StreamingEncoder(mTransport,
+                    codecInfo != null ? codecInfo.getName() : null,
+                    mProfile.createFormat(codecInfo, MIME_TYPE, width, height, bitrate,
+                            intraRefresh ? mProfile.getFrameRate() : 0, variableFrameRate),
+                    gopCacheEnabled, this);
+        }
+
+        // Returns true if the encoder suits a sink with the current profile.
+        public boolean matches(int width, int height, boolean intraRefresh) {
+            return this.width == width && this.height == height
+                    && this.intraRefresh == intraRefresh && profile == mProfile
+                    && variableFrameRate == mVariableFrameRate
+                    && gopCacheEnabled == mGopCacheEnabled;
+        }
+
+        @Override
+        public void onInputSurfaceCreated(Surface surface) {
+            final Session previous;
+            synchronized (mBackendLock) {
+                if (retired) {
+                    return;
+                }
+                previous = mBackendSession;
+                mBackendSession = this;
+                mStartupTimer.mark("encoder ready");
+                if (previous == null) {
+                    mBackend.start(surface, width, height, densityDpi);
+                    mStartupTimer.mark("capture started");
+                } else {
+                    // Nothing draws on the previous encoder once this returns.
+                    previous.retired = true;
+                    mBackend.resize(surface, width, height, densityDpi);
+                    mStartupTimer.mark("capture resized");
+                    resized = true;
+                }
+            }
+            if (previous != null) {
+                previous.encoder.quit();
+            }
+        }
+
+        @Override
+        public void onInputSurfaceDestroyed(Surface surface) {
+            synchronized (mBackendLock) {
+                if (mBackendSession == this) {
+                    mBackend.stop();
+                    mBackendSession = null;
+                }
+            }
+        }
+
+        @Override
+        public void onFirstFrameSent() {
+            mStartupTimer.finish("first frame sent");
+            if (resized) {
+                final long latency = System.nanoTime() - startTimeNanos;
+                mResizeLatencyHistogram.record(latency);
+                mLogger.log("First frame at " + width + "x" + height + " sent "
+                        + latency / 1000000 + " ms after the resize, resize latency "
+                        + mResizeLatencyHistogram + ".");
+            }
+        }
+
+        @Override
+        public void onEncoderFailed(CodecException e) {
+            mTransport.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    handleEncoderFailed(Session.this);
+                }
+            });
+        }
+    }
+
+    // Finds the first encoder for a mime type, which is the one
+    // MediaCodec.createEncoderByType would choose.
+    private static MediaCodecInfo findEncoder(String mimeType) {
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS)
+                .getCodecInfos()) {
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(mimeType)) {
+                    return info;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import com.android.accessorydisplay.common.Clock;
+import com.android.accessorydisplay.common.ClockSyncService;
+import com.android.accessorydisplay.common.Protocol;
+import com.android.accessorydisplay.common.Service;
+import com.android.accessorydisplay.common.Transport;
+
+import android.content.Context;
+import android.content.Intent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams the content of a {@link CaptureBackend} to the sink.
+ * <p>
+ * This is the source side of the protocol: it asks the sink to announce itself,
+ * starts an {@link EncodingEngine} session for the size the sink reports and
+ * passes the sink's key frame requests and feedback on to the engine.  It also
+ * answers the sink's clock pings so that the sink can measure latency.  What is
+ * captured is up to the backend.
+ * </p><p>
+ * The activity that starts the service may pass the encoding options it was
+ * launched with to {@link #applyIntentExtras}, for example:
+ * <pre>
+ * adb shell am start -n com.android.accessorydisplay.source/.MediaProjectionActivity \
+ *         --es com.android.accessorydisplay.source.extra.ENCODER_PROFILE low-latency
+ * </pre>
+ * </p>
+ */
+public class EncodingSourceService extends Service {
+    /**
+     * String extra naming the {@link EncoderProfile}, such as "low-latency".
+     */
+    public static final String EXTRA_ENCODER_PROFILE =
+            "com.android.accessorydisplay.source.extra.ENCODER_PROFILE";
+
+    /**
+     * Boolean extra that is false to send periodic key frames instead of
+     * refreshing the picture gradually.
+     */
+    public static final String EXTRA_INTRA_REFRESH =
+            "com.android.accessorydisplay.source.extra.INTRA_REFRESH";
+
+    /**
+     * Boolean extra that is false to repeat still pictures at the rate of the
+     * profile instead of only encoding frames when the content changes.
+     */
+    public static final String EXTRA_VARIABLE_FRAME_RATE =
+            "com.android.accessorydisplay.source.extra.VARIABLE_FRAME_RATE";
+
+    /**
+     * Boolean extra that is true to cache the frames since the last sync frame
+     * so that a rejoining sink is brought up to date without a new key frame.
+     */
+    public static final String EXTRA_GOP_CACHE =
+            "com.android.accessorydisplay.source.extra.GOP_CACHE";
+
+    private boolean mSinkAvailable;
+    private int mSinkWidth;
+    private int mSinkHeight;
+    private int mSinkDensityDpi;
+    private int mSinkFlags;
+
+    private final EncodingEngine mEngine;
+
+    // Answers the sink's pings so that it can measure latency on its clock.
+    private final ClockSyncService mClockSync;
+
+    /**
+     * Creates a service that streams what the backend draws.
+     *
+     * @param bitrate The initial bitrate in bits per second.
+     * @param minBitrate The lowest bitrate the sink's feedback may choose.
+     * @param maxBitrate The highest bitrate the sink's feedback may choose.
+     */
+    public EncodingSourceService(Context context, Transport transport, CaptureBackend backend,
+            int bitrate, int minBitrate, int maxBitrate) {
+        super(context, transport, Protocol.DisplaySourceService.ID);
+        mClockSync = new ClockSyncService(context, transport, Clock.SYSTEM);
+        mEngine = new EncodingEngine(transport, backend, bitrate, minBitrate, maxBitrate);
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        mClockSync.start();
+
+        // Get the encoder ready while waiting for the sink to answer.
+        mEngine.prepare();
+
+        getLogger().log("Sending MSG_QUERY.");
+        sendMessage(Protocol.DisplaySinkService.ID,
+                Protocol.DisplaySinkService.MSG_QUERY, null);
+    }
+
+    @Override
+    public void stop() {
+        mClockSync.stop();
+        super.stop();
+
+        handleSinkNotAvailable();
+    }
+
+    /**
+     * Sets the encoder profile, such as {@link EncoderProfile#LOW_LATENCY}, for this
+     * session.  A running stream restarts with the new profile.
+     */
+    public void setEncoderProfile(EncoderProfile profile) {
+        mEngine.setProfile(profile);
+    }
+
+    /**
+     * Chooses between refreshing the picture gradually, which is the default
+     * where the sink and encoder support it, and sending periodic key frames.
+     */
+    public void setIntraRefreshEnabled(boolean enabled) {
+        mEngine.setIntraRefreshEnabled(enabled);
+    }
+
+    /**
+     * Chooses between only encoding frames when the content changes, which is
+     * the default, and repeating still pictures at the rate of the profile.
+     */
+    public void setVariableFrameRate(boolean variableFrameRate) {
+        mEngine.setVariableFrameRate(variableFrameRate);
+    }
+
+    /**
+     * Chooses whether the frames since the last sync frame are cached for a sink
+     * that rejoins, which is off by default.
+     */
+    public void setGopCacheEnabled(boolean enabled) {
+        mEngine.setGopCacheEnabled(enabled);
+    }
+
+    /**
+     * Applies the encoding options found in an intent's extras, such as
+     * {@link #EXTRA_ENCODER_PROFILE}.  Options that are missing keep their defaults.
+     */
+    public void applyIntentExtras(Intent intent) {
+        final String profileName = intent.getStringExtra(EXTRA_ENCODER_PROFILE);
+        if (profileName != null) {
+            try {
+                setEncoderProfile(EncoderProfile.fromName(profileName));
+            } catch (IllegalArgumentException ex) {
+                getLogger().logError(ex.getMessage() + ", keeping the default profile.");
+            }
+        }
+        if (intent.hasExtra(EXTRA_INTRA_REFRESH)) {
+            setIntraRefreshEnabled(intent.getBooleanExtra(EXTRA_INTRA_REFRESH, true));
+        }
+        if (intent.hasExtra(EXTRA_VARIABLE_FRAME_RATE)) {
+            setVariableFrameRate(intent.getBooleanExtra(EXTRA_VARIABLE_FRAME_RATE, true));
+        }
+        setGopCacheEnabled(intent.getBooleanExtra(EXTRA_GOP_CACHE, false));
+    }
+
+    @Override
+    public void onMessageReceived(int service, int what, ByteBuffer content) {
+        switch (what) {
+            case Protocol.DisplaySourceService.MSG_SINK_AVAILABLE: {
+                getLogger().log("Received MSG_SINK_AVAILABLE");
+                if (content.remaining() >= 12) {
+                    final int width = content.getInt();
+                    final int height = content.getInt();
+                    final int densityDpi = content.getInt();
+                    final int flags = content.remaining() >= 4 ? content.getInt() : 0;
+                    if (width >= 0 && width <= 4096
+                            && height >= 0 && height <= 4096
+                            && densityDpi >= 60 && densityDpi <= 640) {
+                        handleSinkAvailable(width, height, densityDpi, flags);
+                        return;
+                    }
+                }
+                getLogger().log("Receive invalid MSG_SINK_AVAILABLE message.");
+                break;
+            }
+
+            case Protocol.DisplaySourceService.MSG_SINK_NOT_AVAILABLE: {
+                getLogger().log("Received MSG_SINK_NOT_AVAILABLE");
+                handleSinkNotAvailable();
+                break;
+            }
+
+            case Protocol.DisplaySourceService.MSG_SINK_FEEDBACK: {
+                if (content != null && content.remaining() >= 12) {
+                    final int receiveRate = content.getInt();
+                    final int decodeBacklog = content.getInt();
+                    final int jitterUs = content.getInt();
+                    mEngine.onSinkFeedback(receiveRate, decodeBacklog, jitterUs);
+                }
+                break;
+            }
+
+            case Protocol.DisplaySourceService.MSG_REQUEST_KEYFRAME: {
+                getLogger().log("Received MSG_REQUEST_KEYFRAME");
+                mEngine.requestSyncFrame();
+                break;
+            }
+        }
+    }
+
+    private void handleSinkAvailable(int width, int height, int densityDpi, int flags) {
+        if (mSinkAvailable && mSinkWidth == width && mSinkHeight == height
+                && mSinkDensityDpi == densityDpi && mSinkFlags == flags) {
+            // The sink announces itself again when it restarts its decoder or
+            // reconnects, so bring it up to date with the running stream.
+            getLogger().log("Accessory display sink rejoined.");
+            mEngine.replayCache();
+            return;
+        }
+
+        getLogger().log("Accessory display sink available: "
+                + "width=" + width + ", height=" + height
+                + ", densityDpi=" + densityDpi + ", flags=" + flags);
+        mSinkAvailable = true;
+        mSinkWidth = width;
+        mSinkHeight = height;
+        mSinkDensityDpi = densityDpi;
+        mSinkFlags = flags;
+        mEngine.start(width, height, densityDpi, flags);
+    }
+
+    private void handleSinkNotAvailable() {
+        getLogger().log("Accessory display sink not available.");
+
+        mSinkAvailable = false;
+        mSinkWidth = 0;
+        mSinkHeight = 0;
+        mSinkDensityDpi = 0;
+        mSinkFlags = 0;
+        mEngine.stop();
+    }
+}
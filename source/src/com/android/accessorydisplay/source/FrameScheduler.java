@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import com.android.accessorydisplay.common.FrameHeader;
+import com.android.accessorydisplay.common.LatencyHistogram;
+import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.Protocol;
+import com.android.accessorydisplay.common.Transport;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides which encoded frames to send to the sink so that the picture stays close
+ * to real time when the link cannot keep up.
+ * <p>
+ * The age of each frame is measured from its presentation time, relative to the
+ * smallest delay seen so far so that the encoder's own timebase and pipeline delay
+ * do not matter, and from the age of any video still waiting in the send queue.
+ * Once the age exceeds the latency budget, delta frames are discarded until the
+ * next sync frame and the encoder is asked to produce one.  Codec configuration
+ * and sync frames are always sent.
+ * </p><p>
+ * Sinks that speak protocol version 2 or later receive each frame preceded by a
+ * {@link FrameHeader}.  Sequence numbers only count frames that were sent, so a
+ * gap at the sink means that content was lost rather than deliberately dropped.
+ * From protocol version 5 the sink is also sent a small heartbeat with the next
+ * sequence number while nothing changes on screen, so it can tell an idle stream
+ * from a stalled one and notice if the last frame before it went idle was lost.
+ * </p><p>
+ * This object is only intended to be used by the thread that drains the encoder,
+ * except that {@link #requestSyncFrame} and the statistics may be used from any thread.
+ * </p>
+ */
+public final class FrameScheduler {
+    /**
+     * Default latency budget in nanoseconds.
+     */
+    public static final long DEFAULT_LATENCY_BUDGET_NANOS = 100 * 1000000L;
+
+    // Ask for another sync frame if none has arrived after this long.
+    private static final long SYNC_FRAME_RETRY_NANOS = 500 * 1000000L;
+
+    // Never ask the encoder for sync frames more often than this.
+    private static final long MIN_SYNC_FRAME_REQUEST_INTERVAL_NANOS = 250 * 1000000L;
+
+    private final Transport mTransport;
+    private final Logger mLogger;
+    private final long mLatencyBudgetNanos;
+    private final Callback mCallback;
+
+    // The smallest difference between arrival and presentation time seen so far.
+    private boolean mHaveBaseDelay;
+    private long mBaseDelayUs;
+
+    // True while discarding delta frames until the next sync frame.
+    private boolean mDropping;
+
+    // The frame header sent in front of each frame and the next sequence number.
+    private final ByteBuffer mHeaderBuffer = ByteBuffer.allocate(FrameHeader.SIZE);
+    private int mNextSequence;
+    private boolean mIntraRefresh;
+    private final ByteBuffer mHeartbeatBuffer = ByteBuffer.allocate(4);
+
+    // Sync frame request state, guarded by mSyncFrameLock.
+    private final Object mSyncFrameLock = new Object();
+    private long mLastSyncRequestTimeNanos;
+    private long mFirstPendingSyncRequestTimeNanos;
+
+    // Statistics.
+    private volatile long mSentFrameCount;
+    private volatile long mHeartbeatCount;
+    private volatile long mDroppedFrameCount;
+    private volatile long mSyncFrameRequestCount;
+    private volatile long mLastFrameAgeNanos;
+    private final LatencyHistogram mFrameAgeHistogram = new LatencyHistogram();
+    private final LatencyHistogram mSyncFrameLatencyHistogram = new LatencyHistogram();
+
+    /**
+     * Callback used to ask the encoder for a sync frame.
+     */
+    public interface Callback {
+        public void onSyncFrameNeeded();
+    }
+
+    /**
+     * Creates a frame scheduler that asks a codec for sync frames itself.
+     */
+    public static FrameScheduler create(Transport transport, final MediaCodec codec) {
+        return new FrameScheduler(transport, DEFAULT_LATENCY_BUDGET_NANOS, new Callback() {
+            @Override
+            public void onSyncFrameNeeded() {
+                final Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                codec.setParameters(params);
+            }
+        });
+    }
+
+    /**
+     * Creates a frame scheduler.
+     *
+     * @param transport The transport used to send frames.
+     * @param latencyBudgetNanos How old a frame may be before frames are discarded.
+     * @param callback The callback used to ask for sync frames.
+     */
+    public FrameScheduler(Transport transport, long latencyBudgetNanos, Callback callback) {
+        if (latencyBudgetNanos <= 0) {
+            throw new IllegalArgumentException("latencyBudgetNanos must be positive: "
+                    + latencyBudgetNanos);
+        }
+        mTransport = transport;
+        mLogger = transport.getLogger();
+        mLatencyBudgetNanos = latencyBudgetNanos;
+        mCallback = callback;
+    }
+
+    /**
+     * Marks the frames as belonging to a stream that refreshes gradually, so the
+     * sink can start decoding without a key frame.
+     */
+    public void setIntraRefresh(boolean intraRefresh) {
+        mIntraRefresh = intraRefresh;
+    }
+
+    public boolean isIntraRefresh() {
+        return mIntraRefresh;
+    }
+
+    /**
+     * Sends an encoded frame unless it should be discarded.
+     *
+     * @param content The encoded data, which is sent without being copied.
+     * @param info The buffer info returned by the encoder with the frame.
+     * @return True if the frame was sent.
+     */
+    public boolean sendFrame(ByteBuffer content, BufferInfo info) {
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            final long now = System.nanoTime();
+            final long ageNanos = Math.max(getFrameAgeNanos(now, info.presentationTimeUs),
+                    mTransport.getOldestQueuedAgeNanos(Transport.PRIORITY_VIDEO));
+            mLastFrameAgeNanos = ageNanos;
+            mFrameAgeHistogram.record(ageNanos);
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                if (mDropping) {
+                    mLogger.log("Resuming video at sync frame after dropping frames.");
+                    mDropping = false;
+                }
+                onSyncFrame(now);
+            } else if (mDropping || ageNanos > mLatencyBudgetNanos) {
+                if (!mDropping) {
+                    mLogger.log("Dropping frames until the next sync frame because frame age "
+                            + ageNanos / 1000000 + " ms exceeds the latency budget.");
+                    mDropping = true;
+                    requestSyncFrame();
+                } else if (now - getLastSyncRequestTimeNanos() > SYNC_FRAME_RETRY_NANOS) {
+                    requestSyncFrame();
+                }
+                mDroppedFrameCount += 1;
+                return false;
+            }
+        }
+        return writeFrame(content, info.flags, info.presentationTimeUs);
+    }
+
+    /**
+     * Sends a frame that was sent before, such as to bring a sink that joined
+     * mid-stream up to date.  The frame is never discarded.
+     *
+     * @param content The encoded data, which is sent without being copied.
+     * @param codecFlags The flags the encoder returned with the frame.
+     * @param presentationTimeUs The presentation time of the frame.
+     * @return True if the frame was sent.
+     */
+    public boolean resendFrame(ByteBuffer content, int codecFlags, long presentationTimeUs) {
+        return writeFrame(content, codecFlags, presentationTimeUs);
+    }
+
+    /**
+     * Discards delta frames until the next sync frame and asks the encoder for
+     * one, such as when frames the sink needs could not be sent.
+     */
+    public void dropUntilSyncFrame() {
+        if (!mDropping) {
+            mDropping = true;
+            requestSyncFrame();
+        }
+    }
+
+    private boolean writeFrame(ByteBuffer content, int codecFlags, long presentationTimeUs) {
+        ByteBuffer header = null;
+        if (mTransport.getPeerVersion() >= 2) {
+            int flags = mIntraRefresh ? FrameHeader.FLAG_INTRA_REFRESH : 0;
+            if ((codecFlags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                flags |= FrameHeader.FLAG_KEY_FRAME;
+            }
+            if ((codecFlags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                flags |= FrameHeader.FLAG_CODEC_CONFIG;
+            }
+            header = mHeaderBuffer;
+            header.clear();
+            FrameHeader.write(header, flags, mNextSequence, presentationTimeUs,
+                    System.nanoTime());
+            header.flip();
+        }
+
+        if (!mTransport.sendMessageDirect(Protocol.DisplaySinkService.ID,
+                Protocol.DisplaySinkService.MSG_CONTENT, header, content,
+                Transport.PRIORITY_VIDEO)) {
+            return false;
+        }
+        mNextSequence += 1;
+        mSentFrameCount += 1;
+        return true;
+    }
+
+    /**
+     * Tells the sink that the stream is idle, such as when no frame was sent
+     * for a while because nothing changed on screen.
+     *
+     * @return True if the heartbeat was sent, false if the sink does not
+     * understand heartbeats or the transport is closed.
+     */
+    public boolean sendHeartbeat() {
+        if (mTransport.getPeerVersion() < 5) {
+            return false;
+        }
+        final ByteBuffer content = mHeartbeatBuffer;
+        content.clear();
+        content.putInt(mNextSequence);
+        content.flip();
+        if (!mTransport.sendMessageDirect(Protocol.DisplaySinkService.ID,
+                Protocol.DisplaySinkService.MSG_HEARTBEAT, content,
+                Transport.PRIORITY_VIDEO)) {
+            return false;
+        }
+        mHeartbeatCount += 1;
+        return true;
+    }
+
+    /**
+     * Asks the encoder for a sync frame unless one was asked for very recently.
+     * May be called from any thread.
+     *
+     * @return True if the encoder was asked for a sync frame.
+     */
+    public boolean requestSyncFrame() {
+        final long now = System.nanoTime();
+        synchronized (mSyncFrameLock) {
+            if (mLastSyncRequestTimeNanos != 0
+                    && now - mLastSyncRequestTimeNanos < MIN_SYNC_FRAME_REQUEST_INTERVAL_NANOS) {
+                return false;
+            }
+            mLastSyncRequestTimeNanos = now;
+            if (mFirstPendingSyncRequestTimeNanos == 0) {
+                mFirstPendingSyncRequestTimeNanos = now;
+            }
+        }
+        mSyncFrameRequestCount += 1;
+        mCallback.onSyncFrameNeeded();
+        return true;
+    }
+
+    /**
+     * Gets the number of frames that were sent.
+     */
+    public long getSentFrameCount() {
+        return mSentFrameCount;
+    }
+
+    /**
+     * Gets the number of heartbeats sent while the stream was idle.
+     */
+    public long getHeartbeatCount() {
+        return mHeartbeatCount;
+    }
+
+    /**
+     * Gets the number of frames that were discarded.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Gets the number of times the encoder was asked for a sync frame.
+     */
+    public long getSyncFrameRequestCount() {
+        return mSyncFrameRequestCount;
+    }
+
+    /**
+     * Gets the age of the most recent frame in nanoseconds.
+     */
+    public long getLastFrameAgeNanos() {
+        return mLastFrameAgeNanos;
+    }
+
+    /**
+     * Gets the distribution of frame ages.
+     */
+    public LatencyHistogram getFrameAgeHistogram() {
+        return mFrameAgeHistogram;
+    }
+
+    /**
+     * Gets the distribution of the time from asking for a sync frame until one
+     * was produced.
+     */
+    public LatencyHistogram getSyncFrameLatencyHistogram() {
+        return mSyncFrameLatencyHistogram;
+    }
+
+    private long getFrameAgeNanos(long now, long presentationTimeUs) {
+        final long delayUs = now / 1000 - presentationTimeUs;
+        if (!mHaveBaseDelay || delayUs < mBaseDelayUs) {
+            mHaveBaseDelay = true;
+            mBaseDelayUs = delayUs;
+        }
+        return (delayUs - mBaseDelayUs) * 1000;
+    }
+
+    private long getLastSyncRequestTimeNanos() {
+        synchronized (mSyncFrameLock) {
+            return mLastSyncRequestTimeNanos;
+        }
+    }
+
+    private void onSyncFrame(long now) {
+        synchronized (mSyncFrameLock) {
+            if (mFirstPendingSyncRequestTimeNanos != 0) {
+                mSyncFrameLatencyHistogram.record(now - mFirstPendingSyncRequestTimeNanos);
+                mFirstPendingSyncRequestTimeNanos = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+/**
+ * Summarizes the sizes of encoded frames to show how bursty a stream is.
+ * <p>
+ * Periodic key frames are many times larger than the frames around them, which
+ * shows up as a high standard deviation and a high ratio of the largest frame
+ * to the mean.  A stream that refreshes gradually should keep both low.
+ * </p><p>
+ * This object is thread-safe.
+ * </p>
+ */
+public final class FrameSizeStats {
+    private long mCount;
+    private long mKeyFrameCount;
+    private double mMean;
+    private double mSumOfSquaredDeviations;
+    private int mMax;
+
+    /**
+     * Records the size of a frame.
+     */
+    public synchronized void record(int size, boolean keyFrame) {
+        // Welford's method keeps the variance accurate over long streams.
+        mCount += 1;
+        if (keyFrame) {
+            mKeyFrameCount += 1;
+        }
+        final double delta = size - mMean;
+        mMean += delta / mCount;
+        mSumOfSquaredDeviations += delta * (size - mMean);
+        if (size > mMax) {
+            mMax = size;
+        }
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized long getKeyFrameCount() {
+        return mKeyFrameCount;
+    }
+
+    /**
+     * Gets the mean frame size in bytes.
+     */
+    public synchronized double getMean() {
+        return mMean;
+    }
+
+    /**
+     * Gets the standard deviation of frame sizes in bytes.
+     */
+    public synchronized double getStandardDeviation() {
+        return mCount > 1 ? Math.sqrt(mSumOfSquaredDeviations / (mCount - 1)) : 0;
+    }
+
+    /**
+     * Gets the largest frame size in bytes.
+     */
+    public synchronized int getMax() {
+        return mMax;
+    }
+
+    /**
+     * Gets the ratio of the largest frame to the mean.
+     */
+    public synchronized double getPeakToMeanRatio() {
+        return mMean > 0 ? mMax / mMean : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count=" + mCount
+                + ", keyFrames=" + mKeyFrameCount
+                + ", mean=" + (long)mMean
+                + ", stddev=" + (long)getStandardDeviation()
+                + ", max=" + mMax
+                + ", peakToMean=" + Math.round(getPeakToMeanRatio() * 10) / 10.0;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the latest codec configuration and the frames encoded since the last
+ * sync frame so that a sink which joins mid-stream can be brought up to date
+ * without waiting for the next sync frame.
+ * <p>
+ * Frames are copied into one buffer that grows as needed up to a limit.  When
+ * a group of pictures outgrows the limit it is abandoned until the next sync
+ * frame, but the codec configuration is always kept.  Once the buffer has grown
+ * to fit a typical group of pictures, caching does not allocate.
+ * </p><p>
+ * This object is not thread-safe.
+ * </p>
+ */
+public final class GopCache {
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+
+    private final int mMaxBytes;
+    private final int mMaxFrames;
+
+    // The most recent codec configuration.
+    private ByteBuffer mConfig;
+    private long mConfigPresentationTimeUs;
+
+    // The frames of the current group of pictures, starting with a sync frame.
+    private ByteBuffer mData;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPresentationTimesUs;
+    private int mFrameCount;
+    private boolean mGopValid;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes The most encoded data a group of pictures may hold,
+     * or 0 to only keep the codec configuration.
+     * @param maxFrames The most frames a group of pictures may hold.
+     */
+    public GopCache(int maxBytes, int maxFrames) {
+        if (maxBytes < 0 || maxFrames < 0) {
+            throw new IllegalArgumentException("Invalid cache limits: "
+                    + maxBytes + " bytes, " + maxFrames + " frames");
+        }
+        mMaxBytes = maxBytes;
+        mMaxFrames = maxFrames;
+        mOffsets = new int[maxFrames];
+        mSizes = new int[maxFrames];
+        mFlags = new int[maxFrames];
+        mPresentationTimesUs = new long[maxFrames];
+    }
+
+    /**
+     * Adds an encoded buffer.  The content's position is not changed.
+     *
+     * @param content The encoded data.
+     * @param info The buffer info returned by the encoder with it.
+     * @return True if the buffer was cached, false if the group of pictures it
+     * belongs to is no longer cached.
+     */
+    public boolean add(ByteBuffer content, BufferInfo info) {
+        final int size = content.remaining();
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (mConfig == null || mConfig.capacity() < size) {
+                mConfig = ByteBuffer.allocate(size);
+            }
+            mConfig.clear();
+            mConfig.put(content.duplicate());
+            mConfig.flip();
+            mConfigPresentationTimeUs = info.presentationTimeUs;
+            return true;
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mFrameCount = 0;
+            mGopValid = true;
+        }
+        if (!mGopValid) {
+            return false;
+        }
+
+        final int offset = mFrameCount != 0
+                ? mOffsets[mFrameCount - 1] + mSizes[mFrameCount - 1] : 0;
+        if (mFrameCount == mMaxFrames || offset + size > mMaxBytes) {
+            mGopValid = false;
+            mFrameCount = 0;
+            return false;
+        }
+        ensureCapacity(offset + size);
+
+        final ByteBuffer data = mData;
+        data.limit(offset + size);
+        data.position(offset);
+        data.put(content.duplicate());
+        mOffsets[mFrameCount] = offset;
+        mSizes[mFrameCount] = size;
+        mFlags[mFrameCount] = info.flags;
+        mPresentationTimesUs[mFrameCount] = info.presentationTimeUs;
+        mFrameCount += 1;
+        return true;
+    }
+
+    /**
+     * Forgets everything, such as when the encoder is replaced.
+     */
+    public void clear() {
+        mConfig = null;
+        mFrameCount = 0;
+        mGopValid = false;
+    }
+
+    /**
+     * Gets the latest codec configuration, or null if there is none.  The caller
+     * must not modify the buffer's content.
+     */
+    public ByteBuffer getCodecConfig() {
+        return mConfig != null ? mConfig.duplicate() : null;
+    }
+
+    public long getCodecConfigPresentationTimeUs() {
+        return mConfigPresentationTimeUs;
+    }
+
+    /**
+     * Returns true if the cache holds a whole group of pictures from its sync frame.
+     */
+    public boolean hasGop() {
+        return mGopValid && mFrameCount != 0;
+    }
+
+    /**
+     * Gets the number of frames in the cached group of pictures.
+     */
+    public int getFrameCount() {
+        return mGopValid ? mFrameCount : 0;
+    }
+
+    /**
+     * Gets the data of a cached frame.
+     *
+     * @param index The index of the frame, where the sync frame is 0.
+     * @return A buffer positioned over the frame's data, which is only valid until
+     * the next frame is added.  The caller must not modify its content.
+     */
+    public ByteBuffer getFrame(int index) {
+        checkIndex(index);
+        final ByteBuffer buffer = mData.duplicate();
+        buffer.limit(mOffsets[index] + mSizes[index]);
+        buffer.position(mOffsets[index]);
+        return buffer;
+    }
+
+    /**
+     * Gets the encoder flags of a cached frame.
+     */
+    public int getFrameFlags(int index) {
+        checkIndex(index);
+        return mFlags[index];
+    }
+
+    /**
+     * Gets the presentation time of a cached frame.
+     */
+    public long getFramePresentationTimeUs(int index) {
+        checkIndex(index);
+        return mPresentationTimesUs[index];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= getFrameCount()) {
+            throw new IllegalArgumentException("Invalid frame index: " + index);
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (mData != null && mData.capacity() >= capacity) {
+            return;
+        }
+        int newCapacity = mData != null ? mData.capacity() : INITIAL_CAPACITY;
+        while (newCapacity < capacity) {
+            newCapacity *= 2;
+        }
+        newCapacity = Math.min(newCapacity, mMaxBytes);
+
+        final ByteBuffer data = ByteBuffer.allocate(newCapacity);
+        if (mData != null && mFrameCount != 0) {
+            mData.limit(mOffsets[mFrameCount - 1] + mSizes[mFrameCount - 1]);
+            mData.position(0);
+            data.put(mData);
+        }
+        mData = data;
+    }
+}
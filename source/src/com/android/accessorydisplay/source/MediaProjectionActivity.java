@@ -16,21 +16,41 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.SocketChannelTransport;
 
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 public class MediaProjectionActivity extends Activity {
     private static final String TAG = "MediaProjectionActivity";
 
+    /**
+     * Boolean extra that streams a {@link SyntheticCaptureBackend} test pattern
+     * instead of the screen, for exercising the encoder, transport and sink
+     * without asking for screen capture permission.  For example:
+     * <pre>
+     * adb shell am start -n com.android.accessorydisplay.source/.MediaProjectionActivity \
+     *         --ez com.android.accessorydisplay.source.extra.SYNTHETIC true
+     * </pre>
+     */
+    public static final String EXTRA_SYNTHETIC =
+            "com.android.accessorydisplay.source.extra.SYNTHETIC";
+
+    private static final int SYNTHETIC_FRAME_RATE = 30;
+    private static final int SYNTHETIC_BIT_RATE = 5000000;
+    private static final int SYNTHETIC_MIN_BIT_RATE = 1000000;
+    private static final int SYNTHETIC_MAX_BIT_RATE = 10000000;
+
     private TextView mLogTextView;
 	private EditText mAddressText;
 	private Button mButton;
     private Logger mLogger;
 
     private boolean mConnected;
-    private SourceTcpTransport mTransport;
+    private SocketChannelTransport mTransport;
 
-    private MediaProjectionService mMediaProjectionService;
+    private EncodingSourceService mSourceService;
+    private boolean mSynthetic;
 
     private MediaProjectionManager mProjectionManager;
     private MediaProjection mMediaProjection = null;
@@ -50,6 +70,11 @@ public class MediaProjectionActivity extends Activity {
         mLogger = new TextLogger();
 
         mProjectionManager = (MediaProjectionManager)getSystemService(MEDIA_PROJECTION_SERVICE);
+
+        mSynthetic = getIntent().getBooleanExtra(EXTRA_SYNTHETIC, false);
+        if (mSynthetic) {
+            mLogger.log("Streaming a synthetic test pattern instead of the screen.");
+        }
     }
 
     @Override
@@ -75,6 +100,10 @@ public class MediaProjectionActivity extends Activity {
     public void onConnectClicked(View view) {
         if (!mConnected) {
             mSinkAddress = mAddressText.getText().toString();
+            if (mSynthetic) {
+                connect();
+                return;
+            }
             startActivityForResult(mProjectionManager.createScreenCaptureIntent(), PERMISSION_CODE);
         } else {
             disconnect();
@@ -102,16 +131,18 @@ public class MediaProjectionActivity extends Activity {
     }
 
     private void connect() {
-        if (mMediaProjection != null) {
+        if (mMediaProjection != null || mSynthetic) {
             new AsyncTask<Void, Void, Void>() {
                 @Override
                 protected Void doInBackground(Void... params) {
                     try {
-                        final Socket socket = new Socket(mSinkAddress, 1234);
+                        final SocketChannel channel = SocketChannel.open(
+                                new InetSocketAddress(mSinkAddress, 1234));
                         MediaProjectionActivity.this.runOnUiThread(new Runnable() {
                             public void run() {
-                                mTransport = new SourceTcpTransport(mLogger, socket);
+                                mTransport = new SocketChannelTransport(mLogger, channel);
                                 mButton.setText(R.string.button_disconnect);
+                                mTransport.startWriting();
                                 startServices();
                                 mTransport.startReading();
                                 mLogger.log("Connected.");
@@ -155,16 +186,23 @@ public class MediaProjectionActivity extends Activity {
     }
 
     private void startServices() {
-        if (mMediaProjection != null) {
-            mMediaProjectionService = new MediaProjectionService(this, mTransport, mMediaProjection);
-            mMediaProjectionService.start();
+        if (mSynthetic) {
+            mSourceService = new EncodingSourceService(this, mTransport,
+                    new SyntheticCaptureBackend(SYNTHETIC_FRAME_RATE), SYNTHETIC_BIT_RATE,
+                    SYNTHETIC_MIN_BIT_RATE, SYNTHETIC_MAX_BIT_RATE);
+        } else if (mMediaProjection != null) {
+            mSourceService = new MediaProjectionService(this, mTransport, mMediaProjection);
+        } else {
+            return;
         }
+        mSourceService.applyIntentExtras(getIntent());
+        mSourceService.start();
     }
 
     private void stopServices() {
-        if (mMediaProjectionService != null) {
-            mMediaProjectionService.stop();
-            mMediaProjectionService = null;
+        if (mSourceService != null) {
+            mSourceService.stop();
+            mSourceService = null;
         }
     }
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.media.projection.MediaProjection;
+import android.view.Surface;
+
+/**
+ * Captures a mirror of the default display through a media projection.
+ */
+public final class MediaProjectionCaptureBackend implements CaptureBackend {
+    private static final String DISPLAY_NAME = "MediaProjection Display";
+
+    private final MediaProjection mMediaProjection;
+    private VirtualDisplay mVirtualDisplay;
+
+    public MediaProjectionCaptureBackend(MediaProjection projection) {
+        mMediaProjection = projection;
+    }
+
+    @Override
+    public void start(Surface surface, int width, int height, int densityDpi) {
+        mVirtualDisplay = mMediaProjection.createVirtualDisplay(
+                DISPLAY_NAME, width, height, densityDpi,
+                DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR, surface, null, null);
+    }
+
+    @Override
+    public void resize(Surface surface, int width, int height, int densityDpi) {
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.resize(width, height, densityDpi);
+            mVirtualDisplay.setSurface(surface);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import android.hardware.display.DisplayManager;
+import android.hardware.display.VirtualDisplay;
+import android.os.Handler;
+import android.os.Message;
+import android.view.Display;
+import android.view.Surface;
+
+/**
+ * Captures a private virtual display on which the application shows a
+ * presentation.
+ * <p>
+ * The callbacks are told about the display on the thread that created the
+ * backend so that they can attach and dismiss the presentation.  Resizing keeps
+ * the same display, so the presentation stays attached and is only laid out
+ * again.
+ * </p>
+ */
+public final class PresentationCaptureBackend implements CaptureBackend {
+    private static final int MSG_DISPATCH_DISPLAY_ADDED = 1;
+    private static final int MSG_DISPATCH_DISPLAY_REMOVED = 2;
+
+    private static final String DISPLAY_NAME = "Accessory Display";
+
+    private final DisplayManager mDisplayManager;
+    private final DisplaySourceService.Callbacks mCallbacks;
+    private final CallbackHandler mHandler;
+    private VirtualDisplay mVirtualDisplay;
+
+    public PresentationCaptureBackend(DisplayManager displayManager,
+            DisplaySourceService.Callbacks callbacks) {
+        mDisplayManager = displayManager;
+        mCallbacks = callbacks;
+        mHandler = new CallbackHandler();
+    }
+
+    @Override
+    public void start(Surface surface, int width, int height, int densityDpi) {
+        mVirtualDisplay = mDisplayManager.createVirtualDisplay(
+                DISPLAY_NAME, width, height, densityDpi, surface, 0);
+        if (mVirtualDisplay != null) {
+            mHandler.obtainMessage(MSG_DISPATCH_DISPLAY_ADDED,
+                    mVirtualDisplay.getDisplay()).sendToTarget();
+        }
+    }
+
+    @Override
+    public void resize(Surface surface, int width, int height, int densityDpi) {
+        if (mVirtualDisplay != null) {
+            mVirtualDisplay.resize(width, height, densityDpi);
+            mVirtualDisplay.setSurface(surface);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mVirtualDisplay != null) {
+            mHandler.obtainMessage(MSG_DISPATCH_DISPLAY_REMOVED,
+                    mVirtualDisplay.getDisplay()).sendToTarget();
+            mVirtualDisplay.release();
+            mVirtualDisplay = null;
+        }
+    }
+
+    private final class CallbackHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_DISPATCH_DISPLAY_ADDED: {
+                    mCallbacks.onDisplayAdded((Display)msg.obj);
+                    break;
+                }
+
+                case MSG_DISPATCH_DISPLAY_REMOVED: {
+                    mCallbacks.onDisplayRemoved((Display)msg.obj);
+                    break;
+                }
+            }
+        }
+    }
+}
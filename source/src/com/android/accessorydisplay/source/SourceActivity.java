@@ -161,6 +161,7 @@ public class SourceActivity extends Activity {
         mConnected = true;
         mAccessory = accessory;
         mTransport = new UsbAccessoryStreamTransport(mLogger, fd);
+        mTransport.startWriting();
         startServices();
         mTransport.startReading();
     }
@@ -180,6 +181,7 @@ public class SourceActivity extends Activity {
 
     private void startServices() {
         mDisplaySourceService = new DisplaySourceService(this, mTransport, mPresenter);
+        mDisplaySourceService.applyIntentExtras(getIntent());
         mDisplaySourceService.start();
     }
 
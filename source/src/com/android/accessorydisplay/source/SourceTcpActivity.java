@@ -1,8 +1,10 @@
 package com.android.accessorydisplay.source;
 
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
 
 import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.SocketChannelTransport;
 import com.android.accessorydisplay.source.presentation.DemoPresentation;
 
 import android.app.Activity;
@@ -25,7 +27,7 @@ public class SourceTcpActivity extends Activity {
     private Logger mLogger;
 
     private boolean mConnected;
-    private SourceTcpTransport mTransport;
+    private SocketChannelTransport mTransport;
 
     private DisplaySourceService mDisplaySourceService;
 
@@ -64,13 +66,15 @@ public class SourceTcpActivity extends Activity {
             @Override
             protected Void doInBackground(Void... params) {
                 try {
-                    final Socket socket = new Socket(address, 1234);
+                    final SocketChannel channel = SocketChannel.open(
+                            new InetSocketAddress(address, 1234));
                     SourceTcpActivity.this.runOnUiThread(new Runnable() {
                         public void run() {
-                            mTransport = new SourceTcpTransport(mLogger, socket);
+                            mTransport = new SocketChannelTransport(mLogger, channel);
                             mLogger.log("Connected.");
                             mConnected = true;
                             mButton.setText(R.string.button_disconnect);
+                            mTransport.startWriting();
                             startServices();
                             mTransport.startReading();
                         }
@@ -107,6 +111,7 @@ public class SourceTcpActivity extends Activity {
 
     private void startServices() {
         mDisplaySourceService = new DisplaySourceService(this, mTransport, new Presenter());
+        mDisplaySourceService.applyIntentExtras(getIntent());
         mDisplaySourceService.start();
     }
 
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import com.android.accessorydisplay.common.Logger;
+
+import android.os.Process;
+
+/**
+ * Measures what streaming costs while the content changes and while it is idle,
+ * so that the savings of variable frame rate encoding show up in the log.
+ * <p>
+ * Each report covers a fixed interval and gives the frame rate, the bitrate
+ * including heartbeats, the share of the interval in which no frame was sent
+ * and the share of one CPU that the process used.
+ * </p><p>
+ * This object is only intended to be used by the encoder thread.
+ * </p>
+ */
+public final class StreamActivityStats {
+    private static final long REPORT_INTERVAL_NANOS = 10 * 1000000000L;
+
+    // Gaps between frames longer than this count as idle time.
+    private static final long IDLE_GAP_NANOS = 200 * 1000000L;
+
+    private final Logger mLogger;
+
+    private long mIntervalStartTimeNanos;
+    private long mIntervalStartCpuTimeMillis;
+    private long mLastFrameTimeNanos;
+    private int mFrameCount;
+    private int mHeartbeatCount;
+    private long mByteCount;
+    private long mIdleNanos;
+
+    public StreamActivityStats(Logger logger) {
+        mLogger = logger;
+    }
+
+    /**
+     * Records that a frame was sent.
+     */
+    public void onFrameSent(int size, long now) {
+        update(now);
+        if (mLastFrameTimeNanos != 0 && now - mLastFrameTimeNanos > IDLE_GAP_NANOS) {
+            mIdleNanos += now - Math.max(mLastFrameTimeNanos, mIntervalStartTimeNanos);
+        }
+        mLastFrameTimeNanos = now;
+        mFrameCount += 1;
+        mByteCount += size;
+    }
+
+    /**
+     * Records that a heartbeat was sent.
+     */
+    public void onHeartbeatSent(int size, long now) {
+        update(now);
+        mHeartbeatCount += 1;
+        mByteCount += size;
+    }
+
+    // Reports and starts a new interval once the current one is over.
+    private void update(long now) {
+        if (mIntervalStartTimeNanos == 0) {
+            startInterval(now);
+            return;
+        }
+        final long elapsed = now - mIntervalStartTimeNanos;
+        if (elapsed < REPORT_INTERVAL_NANOS) {
+            return;
+        }
+
+        // Count the idle time up to now, the rest goes into the next interval.
+        long idle = mIdleNanos;
+        if (mLastFrameTimeNanos != 0 && now - mLastFrameTimeNanos > IDLE_GAP_NANOS) {
+            idle += now - Math.max(mLastFrameTimeNanos, mIntervalStartTimeNanos);
+        }
+        final long cpuMillis = Process.getElapsedCpuTime() - mIntervalStartCpuTimeMillis;
+        mLogger.log("Stream activity over the last " + elapsed / 1000000 + " ms: "
+                + Math.round(mFrameCount * 10000000000.0 / elapsed) / 10.0 + " fps, "
+                + mByteCount * 8 * 1000000L / elapsed + " kbit/s, "
+                + mHeartbeatCount + " heartbeats, "
+                + idle * 100 / elapsed + "% idle, "
+                + cpuMillis * 100000000L / elapsed + "% cpu.");
+        startInterval(now);
+    }
+
+    private void startInterval(long now) {
+        mIntervalStartTimeNanos = now;
+        mIntervalStartCpuTimeMillis = Process.getElapsedCpuTime();
+        mFrameCount = 0;
+        mHeartbeatCount = 0;
+        mByteCount = 0;
+        mIdleNanos = 0;
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import com.android.accessorydisplay.common.LatencyHistogram;
+import com.android.accessorydisplay.common.Logger;
+import com.android.accessorydisplay.common.Transport;
+
+import android.media.MediaCodec;
+import android.media.MediaCodec.BufferInfo;
+import android.media.MediaCodec.CodecException;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes whatever is drawn on an input surface and sends it to the sink.
+ * <p>
+ * The encoder runs asynchronously on its own thread: each output buffer is passed
+ * to a {@link FrameScheduler} as soon as the codec produces it and handed straight
+ * to the transport without being copied, so nothing waits on a timeout or sleeps
+ * between frames.
+ * </p><p>
+ * The time each frame took to encode is measured from its presentation time,
+ * which is the capture time on the same monotonic clock as {@link System#nanoTime}
+ * for surfaces fed by a virtual display.
+ * </p><p>
+ * The codec configuration is kept in a {@link GopCache} so that a sink which
+ * restarts its decoder mid-stream can be sent it with {@link #replayCache}.
+ * Caching the frames since the last sync frame as well is optional since each
+ * one is copied; a sink can then be brought up to date without waiting for a
+ * new key frame.  Cached frames are replayed a few milliseconds apart so as not
+ * to overflow the sink's decode queue, and live frames are held in the cache
+ * behind them until the replay catches up.  Streams that refresh gradually never
+ * cache frames, since the sink can start from any frame once it has the
+ * configuration.
+ * </p><p>
+ * The codec can be created and configured ahead of time with {@link #prepare},
+ * such as while waiting to hear from the sink, so that {@link #start} only has
+ * to hand its input surface to the callback.
+ * </p><p>
+ * Nothing is encoded while nothing is drawn on the input surface, apart from
+ * the repeats the format asks for.  When no frame has been sent for a while a
+ * heartbeat is sent instead so the sink knows the stream is idle, and what the
+ * stream costs busy and idle is reported by {@link StreamActivityStats}.
+ * </p><p>
+ * The methods of this class may be called from any thread.
+ * </p>
+ */
+public final class StreamingEncoder {
+    private static final String MIME_TYPE = "video/avc";
+
+    // The most a group of pictures may hold to be replayed.  Longer ones are not
+    // worth replaying, a key frame gets the sink going sooner.
+    private static final int GOP_CACHE_MAX_BYTES = 8 * 1024 * 1024;
+    private static final int GOP_CACHE_MAX_FRAMES = 120;
+
+    // The time between replayed frames.
+    private static final long REPLAY_FRAME_INTERVAL_MS = 8;
+
+    // Send a heartbeat when no frame was sent for this long.
+    private static final long HEARTBEAT_INTERVAL_MS = 250;
+
+    // The size of a heartbeat message including its 8 byte message header.
+    private static final int HEARTBEAT_SIZE = 12;
+
+    private final Transport mTransport;
+    private final Logger mLogger;
+    private final String mCodecName;
+    private final MediaFormat mFormat;
+    private final Callback mCallback;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // These fields are only accessed on the encoder thread.
+    private MediaCodec mCodec;
+    private Surface mSurface;
+    private boolean mStarted;
+    private boolean mFirstFrameSent;
+    private long mLastFrameSentTimeNanos;
+    private int mBitrate;
+    private final boolean mCacheFrames;
+    private final GopCache mGopCache;
+
+    // The index of the next cached frame to replay, or -1 if not replaying.
+    private int mReplayIndex = -1;
+    private long mReplayStartTimeNanos;
+
+    // The scheduler for the running codec, or null before it starts and once it
+    // stops or fails.
+    private volatile FrameScheduler mScheduler;
+
+    // Statistics.
+    private final LatencyHistogram mEncodeLatencyHistogram = new LatencyHistogram();
+    private final FrameSizeStats mFrameSizeStats = new FrameSizeStats();
+    private final StreamActivityStats mActivityStats;
+
+    /**
+     * Callback notified on the encoder thread as its input surface comes and goes.
+     */
+    public interface Callback {
+        /**
+         * Called once the encoder is running and content can be drawn on its
+         * input surface, such as by attaching a virtual display to it.
+         */
+        public void onInputSurfaceCreated(Surface surface);
+
+        /**
+         * Called before the encoder is released.  Nothing may draw on the
+         * surface once this method returns.
+         */
+        public void onInputSurfaceDestroyed(Surface surface);
+
+        /**
+         * Called when the first frame of the stream has been sent.
+         */
+        public void onFirstFrameSent();
+
+        /**
+         * Called when the codec failed and will not produce any more frames.
+         * The encoder should be replaced; nothing is sent until it is.
+         */
+        public void onEncoderFailed(CodecException e);
+    }
+
+    /**
+     * Creates a streaming encoder.
+     *
+     * @param transport The transport used to send frames.
+     * @param codecName The name of the encoder to use, or null for the default.
+     * @param format The encoder format, which must include the bitrate.
+     * @param cacheFrames True to cache the frames since the last sync frame for
+     * {@link #replayCache}, unless the format refreshes the picture gradually.
+     * @param callback The callback notified of the input surface.
+     */
+    public StreamingEncoder(Transport transport, String codecName, MediaFormat format,
+            boolean cacheFrames, Callback callback) {
+        mTransport = transport;
+        mLogger = transport.getLogger();
+        mCodecName = codecName;
+        mFormat = format;
+        mCallback = callback;
+        mBitrate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        mActivityStats = new StreamActivityStats(mLogger);
+        mCacheFrames = cacheFrames
+                && !format.containsKey(MediaFormat.KEY_INTRA_REFRESH_PERIOD);
+        mGopCache = mCacheFrames ? new GopCache(GOP_CACHE_MAX_BYTES, GOP_CACHE_MAX_FRAMES)
+                : new GopCache(0, 0);
+
+        mThread = new HandlerThread("StreamingEncoder", Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Creates, configures and starts the codec without telling the callback about
+     * its input surface yet.  The codec is created on the encoder thread so that
+     * its callbacks arrive there.
+     */
+    public void prepare() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                prepareCodec();
+            }
+        });
+    }
+
+    /**
+     * Starts encoding, preparing the codec first unless {@link #prepare} was
+     * called.
+     */
+    public void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startCodec();
+            }
+        });
+    }
+
+    /**
+     * Stops encoding and the encoder thread once the frames that were already
+     * produced have been sent.
+     */
+    public void quit() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopCodec();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    /**
+     * Changes the target bitrate of the running encoder.
+     */
+    public void setBitrate(final int bitrate) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCodec != null && mBitrate != bitrate) {
+                    mBitrate = bitrate;
+                    final Bundle params = new Bundle();
+                    params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+                    mCodec.setParameters(params);
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks the encoder for a sync frame.
+     */
+    public void requestSyncFrame() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // The scheduler is cleared once the codec stops or fails.
+                final FrameScheduler scheduler = mScheduler;
+                if (scheduler != null) {
+                    scheduler.requestSyncFrame();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the cached codec configuration and the frames since the last sync
+     * frame, such as when the sink restarted its decoder.  Asks for a sync frame
+     * instead when the frames were not cached.
+     */
+    public void replayCache() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startReplay();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of frames the scheduler discarded.
+     */
+    public long getDroppedFrameCount() {
+        final FrameScheduler scheduler = mScheduler;
+        return scheduler != null ? scheduler.getDroppedFrameCount() : 0;
+    }
+
+    /**
+     * Gets the distribution of the time from capture until the encoder produced
+     * each frame.
+     */
+    public LatencyHistogram getEncodeLatencyHistogram() {
+        return mEncodeLatencyHistogram;
+    }
+
+    /**
+     * Gets the statistics of encoded frame sizes.
+     */
+    public FrameSizeStats getFrameSizeStats() {
+        return mFrameSizeStats;
+    }
+
+    private void prepareCodec() {
+        if (mCodec != null) {
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        final MediaCodec codec;
+        try {
+            codec = mCodecName != null ? MediaCodec.createByCodecName(mCodecName)
+                    : MediaCodec.createEncoderByType(MIME_TYPE);
+        } catch (IOException e) {
+            throw new RuntimeException("failed to create video/avc encoder", e);
+        }
+        codec.setCallback(mCodecCallback);
+        codec.configure(mFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mSurface = codec.createInputSurface();
+        codec.start();
+        mCodec = codec;
+        mLogger.log("Encoder prepared in " + (System.nanoTime() - startTime) / 1000000
+                + " ms.");
+    }
+
+    private void startCodec() {
+        prepareCodec();
+        if (mStarted) {
+            return;
+        }
+
+        mStarted = true;
+        final FrameScheduler scheduler = FrameScheduler.create(mTransport, mCodec);
+        scheduler.setIntraRefresh(mFormat.containsKey(MediaFormat.KEY_INTRA_REFRESH_PERIOD));
+        mScheduler = scheduler;
+
+        final ByteBuffer config = mGopCache.getCodecConfig();
+        if (config != null) {
+            scheduler.resendFrame(config, MediaCodec.BUFFER_FLAG_CODEC_CONFIG,
+                    mGopCache.getCodecConfigPresentationTimeUs());
+        }
+        mLastFrameSentTimeNanos = System.nanoTime();
+        mHandler.postDelayed(mHeartbeatRunnable, HEARTBEAT_INTERVAL_MS);
+        mCallback.onInputSurfaceCreated(mSurface);
+    }
+
+    private void failCodec(CodecException e) {
+        // Heartbeats would tell the sink the stream is merely idle.
+        cancelReplay();
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        if (mScheduler != null) {
+            logStreamStopped(mScheduler);
+            mScheduler = null;
+        }
+        mCallback.onEncoderFailed(e);
+    }
+
+    private void stopCodec() {
+        if (mCodec == null) {
+            return;
+        }
+
+        cancelReplay();
+        mGopCache.clear();
+        mHandler.removeCallbacks(mHeartbeatRunnable);
+        if (mStarted) {
+            mCallback.onInputSurfaceDestroyed(mSurface);
+        }
+        try {
+            mCodec.signalEndOfInputStream();
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            // The codec failed, releasing it is all that is left to do.
+        }
+        mCodec.release();
+        mCodec = null;
+        mSurface.release();
+        mSurface = null;
+        if (!mStarted) {
+            return;
+        }
+
+        mStarted = false;
+        final FrameScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            mScheduler = null;
+            logStreamStopped(scheduler);
+        }
+    }
+
+    private void logStreamStopped(FrameScheduler scheduler) {
+        mLogger.log("Video stream stopped: sent " + scheduler.getSentFrameCount()
+                + " frames, dropped " + scheduler.getDroppedFrameCount()
+                + " frames, requested " + scheduler.getSyncFrameRequestCount()
+                + " sync frames, sent " + scheduler.getHeartbeatCount()
+                + " heartbeats, encode latency " + mEncodeLatencyHistogram
+                + ", frame sizes " + mFrameSizeStats
+                + ", frame age " + scheduler.getFrameAgeHistogram()
+                + ", sync frame latency " + scheduler.getSyncFrameLatencyHistogram() + ".");
+    }
+
+    // Returns true if the frame was sent, false if it is held back behind a replay
+    // or was discarded.
+    private boolean sendFrame(ByteBuffer buffer, BufferInfo info) {
+        // Without frame caching only the configuration is copied.
+        final boolean cached = (mCacheFrames
+                || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+                && mGopCache.add(buffer, info);
+        if (mReplayIndex < 0
+                || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return mScheduler.sendFrame(buffer, info);
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            // The sink can start from here, so the rest of the replay is moot.
+            mLogger.log("Abandoning replay at a new sync frame.");
+            cancelReplay();
+            return mScheduler.sendFrame(buffer, info);
+        }
+        if (!cached) {
+            // The frames the replay was waiting to send are gone.
+            mLogger.log("Replay outgrew the cache, waiting for a sync frame.");
+            cancelReplay();
+            mScheduler.dropUntilSyncFrame();
+        }
+        // Otherwise the frame is sent when the replay reaches it.
+        return false;
+    }
+
+    private void startReplay() {
+        if (mScheduler == null) {
+            return;
+        }
+        cancelReplay();
+
+        final FrameScheduler scheduler = mScheduler;
+
+        final ByteBuffer config = mGopCache.getCodecConfig();
+        if (config == null) {
+            // The sink gets the configuration with the first frame.
+            return;
+        }
+        scheduler.resendFrame(config, MediaCodec.BUFFER_FLAG_CODEC_CONFIG,
+                mGopCache.getCodecConfigPresentationTimeUs());
+
+        if (scheduler.isIntraRefresh()) {
+            // The sink can start from any frame once it has the configuration.
+            mLogger.log("Replayed codec config for intra refresh stream.");
+        } else if (!mCacheFrames) {
+            mLogger.log("Frames are not cached, requesting a sync frame.");
+            scheduler.dropUntilSyncFrame();
+        } else if (mGopCache.hasGop()) {
+            mLogger.log("Replaying " + mGopCache.getFrameCount() + " cached frames.");
+            mReplayIndex = 0;
+            mReplayStartTimeNanos = System.nanoTime();
+            mReplayRunnable.run();
+        } else {
+            mLogger.log("No cached frames to replay, requesting a sync frame.");
+            scheduler.dropUntilSyncFrame();
+        }
+    }
+
+    private void cancelReplay() {
+        if (mReplayIndex >= 0) {
+            mReplayIndex = -1;
+            mHandler.removeCallbacks(mReplayRunnable);
+        }
+    }
+
+    private final Runnable mReplayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final int index = mReplayIndex;
+            if (index < 0) {
+                return;
+            }
+            final ByteBuffer frame = mGopCache.getFrame(index);
+            final int size = frame.remaining();
+            if (mScheduler.resendFrame(frame, mGopCache.getFrameFlags(index),
+                    mGopCache.getFramePresentationTimeUs(index))) {
+                final long now = System.nanoTime();
+                mLastFrameSentTimeNanos = now;
+                mActivityStats.onFrameSent(size, now);
+            }
+            if (index + 1 < mGopCache.getFrameCount()) {
+                mReplayIndex = index + 1;
+                mHandler.postDelayed(this, REPLAY_FRAME_INTERVAL_MS);
+            } else {
+                mReplayIndex = -1;
+                mLogger.log("Replay caught up after "
+                        + (System.nanoTime() - mReplayStartTimeNanos) / 1000000 + " ms.");
+            }
+        }
+    };
+
+    private final Runnable mHeartbeatRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long now = System.nanoTime();
+            if (now - mLastFrameSentTimeNanos >= HEARTBEAT_INTERVAL_MS * 1000000L
+                    && mScheduler.sendHeartbeat()) {
+                mActivityStats.onHeartbeatSent(HEARTBEAT_SIZE, now);
+            }
+            mHandler.postDelayed(this, HEARTBEAT_INTERVAL_MS);
+        }
+    };
+
+    private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Input comes from the surface.
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+            if (codec != mCodec || (mStarted && mScheduler == null)) {
+                // The codec failed and is about to be released.
+                return;
+            }
+
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size != 0) {
+                if (info.presentationTimeUs > 0) {
+                    mEncodeLatencyHistogram.record(
+                            System.nanoTime() - info.presentationTimeUs * 1000);
+                }
+                mFrameSizeStats.record(info.size,
+                        (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            }
+
+            if (info.size != 0) {
+                final ByteBuffer buffer = codec.getOutputBuffer(index);
+                buffer.limit(info.offset + info.size);
+                buffer.position(info.offset);
+                if (!mStarted) {
+                    // Only codec configuration comes before any input, so keep
+                    // it to send once started.
+                    mGopCache.add(buffer, info);
+                } else if (sendFrame(buffer, info)) {
+                    final long now = System.nanoTime();
+                    mLastFrameSentTimeNanos = now;
+                    mActivityStats.onFrameSent(info.size, now);
+                }
+                if (mStarted && !mFirstFrameSent
+                        && (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                    mFirstFrameSent = true;
+                    mCallback.onFirstFrameSent();
+                }
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, CodecException e) {
+            if (codec != mCodec) {
+                return;
+            }
+            mLogger.logError("Encoder error: " + e);
+            if (!e.isTransient()) {
+                failCodec(e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            if (codec == mCodec) {
+                mLogger.log("Encoder output format changed: " + format);
+            }
+        }
+    };
+}
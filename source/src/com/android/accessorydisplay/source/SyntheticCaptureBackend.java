@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+/**
+ * Draws a moving test pattern at a fixed frame rate, for exercising the encoder,
+ * transport and sink without a display to capture.
+ * <p>
+ * Each frame shows a bar that sweeps across the screen and the frame number, so
+ * dropped, repeated or late frames are visible on the sink.
+ * </p><p>
+ * Start {@link MediaProjectionActivity} with
+ * {@link MediaProjectionActivity#EXTRA_SYNTHETIC} to stream it.
+ * </p>
+ */
+public final class SyntheticCaptureBackend implements CaptureBackend {
+    private final int mFrameRate;
+    private final Paint mPaint = new Paint();
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // The surface being drawn on, guarded by the lock so it can be replaced
+    // between frames.
+    private final Object mSurfaceLock = new Object();
+    private Surface mSurface;
+    private int mWidth;
+    private int mHeight;
+    private long mStartTimeNanos;
+    private int mFrameNumber;
+
+    public SyntheticCaptureBackend(int frameRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frameRate must be positive: " + frameRate);
+        }
+        mFrameRate = frameRate;
+    }
+
+    @Override
+    public void start(Surface surface, int width, int height, int densityDpi) {
+        synchronized (mSurfaceLock) {
+            mSurface = surface;
+            mWidth = width;
+            mHeight = height;
+        }
+        mStartTimeNanos = System.nanoTime();
+        mFrameNumber = 0;
+
+        mThread = new HandlerThread("SyntheticCaptureBackend");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mDrawRunnable);
+    }
+
+    @Override
+    public void resize(Surface surface, int width, int height, int densityDpi) {
+        // Waits for the frame being drawn, if any.
+        synchronized (mSurfaceLock) {
+            mSurface = surface;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (mThread != null) {
+            // Wait for the frame being drawn, if any, so the surface is not
+            // touched after we return.
+            mHandler.removeCallbacks(mDrawRunnable);
+            mThread.quit();
+            try {
+                mThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+            mHandler = null;
+            synchronized (mSurfaceLock) {
+                mSurface = null;
+            }
+        }
+    }
+
+    private void drawFrame() {
+        synchronized (mSurfaceLock) {
+            final Canvas canvas = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? mSurface.lockHardwareCanvas() : mSurface.lockCanvas(null);
+            try {
+                canvas.drawColor(Color.BLACK);
+                final int barWidth = Math.max(1, mWidth / 16);
+                final int x = (mFrameNumber * barWidth / 4) % mWidth;
+                mPaint.setColor(Color.WHITE);
+                canvas.drawRect(x, 0, x + barWidth, mHeight, mPaint);
+                mPaint.setTextSize(mHeight / 10f);
+                canvas.drawText(Integer.toString(mFrameNumber),
+                        mWidth / 20f, mHeight / 5f, mPaint);
+            } finally {
+                mSurface.unlockCanvasAndPost(canvas);
+            }
+        }
+        mFrameNumber += 1;
+    }
+
+    private final Runnable mDrawRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drawFrame();
+
+            // Schedule from the start time so that drawing time does not
+            // accumulate into drift.
+            final long frameIntervalNanos = 1000000000L / mFrameRate;
+            final long nextFrameNanos = mStartTimeNanos + mFrameNumber * frameIntervalNanos;
+            final long delayMillis = Math.max(0,
+                    (nextFrameNanos - System.nanoTime()) / 1000000);
+            mHandler.postDelayed(this, delayMillis);
+        }
+    };
+}
@@ -25,6 +25,8 @@ import android.os.ParcelFileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Sends or receives messages over a file descriptor associated with a {@link UsbAccessory}.
@@ -33,12 +35,14 @@ public class UsbAccessoryStreamTransport extends Transport {
     private ParcelFileDescriptor mFd;
     private FileInputStream mInputStream;
     private FileOutputStream mOutputStream;
+    private FileChannel mOutputChannel;
 
     public UsbAccessoryStreamTransport(Logger logger, ParcelFileDescriptor fd) {
         super(logger, 16384);
         mFd = fd;
         mInputStream = new FileInputStream(fd.getFileDescriptor());
         mOutputStream = new FileOutputStream(fd.getFileDescriptor());
+        mOutputChannel = mOutputStream.getChannel();
     }
 
     @Override
@@ -50,6 +54,7 @@ public class UsbAccessoryStreamTransport extends Transport {
         mFd = null;
         mInputStream = null;
         mOutputStream = null;
+        mOutputChannel = null;
     }
 
     @Override
@@ -67,4 +72,14 @@ public class UsbAccessoryStreamTransport extends Transport {
         }
         mOutputStream.write(buffer, offset, count);
     }
+
+    @Override
+    protected void ioWrite(ByteBuffer buffer) throws IOException {
+        if (mOutputChannel == null) {
+            throw new IOException("Stream was closed.");
+        }
+        while (buffer.hasRemaining()) {
+            mOutputChannel.write(buffer);
+        }
+    }
 }
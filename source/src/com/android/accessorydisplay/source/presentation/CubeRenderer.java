@@ -23,34 +23,61 @@ import android.opengl.GLSurfaceView;
 
 /**
  * Render a pair of tumbling cubes.
+ * <p>
+ * The view must render only when dirty.  The cubes tumble for a few seconds
+ * after {@link #wake} and then come to rest, so that the display they are shown
+ * on goes idle and nothing needs to be encoded.  While they move, the next frame
+ * is requested at the frame rate rather than drawing as fast as possible, and
+ * they move by the time that passed so the speed does not depend on it.
+ * </p>
  */
 
 public class CubeRenderer implements GLSurfaceView.Renderer {
+    private static final long FRAME_INTERVAL_MS = 33;
+    private static final long SPIN_DURATION_NANOS = 5 * 1000000000L;
+
+    // Rates per second, matching what used to be applied each frame.
+    private static final float DEGREES_PER_SECOND = 36.0f;
+    private static final float EXPLOSION_SCALE_PER_SECOND = 1.8f;
+
+    private final GLSurfaceView mView;
     private boolean mTranslucentBackground;
     private Cube mCube;
     private float mAngle;
     private float mScale = 1.0f;
-    private boolean mExploding;
+    private volatile boolean mExploding;
+    private volatile long mSpinUntilNanos;
+    private long mLastFrameTimeNanos;
 
-    public CubeRenderer(boolean useTranslucentBackground) {
+    public CubeRenderer(GLSurfaceView view, boolean useTranslucentBackground) {
+        mView = view;
         mTranslucentBackground = useTranslucentBackground;
         mCube = new Cube();
     }
 
+    /**
+     * Sets the cubes tumbling for a while.
+     */
+    public void wake() {
+        mSpinUntilNanos = System.nanoTime() + SPIN_DURATION_NANOS;
+        mView.requestRender();
+    }
+
     public void explode() {
         mExploding = true;
+        wake();
     }
 
     public void onDrawFrame(GL10 gl) {
+        final long now = System.nanoTime();
+        final float elapsedSeconds = mLastFrameTimeNanos != 0
+                ? Math.min(now - mLastFrameTimeNanos, 100 * 1000000L) / 1e9f : 0;
+
         /*
          * Usually, the first thing one might want to do is to clear
          * the screen. The most efficient way of doing this is to use
          * glClear().
          */
-        try {
-            Thread.sleep(35);
-        } catch (InterruptedException e) {}
-
         gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
 
         /*
@@ -74,17 +101,32 @@ public class CubeRenderer implements GLSurfaceView.Renderer {
 
         mCube.draw(gl);
 
-        mAngle += 1.2f;
+        mAngle += DEGREES_PER_SECOND * elapsedSeconds;
 
         if (mExploding) {
-            mScale *= 1.02f;
+            mScale *= (float)Math.pow(EXPLOSION_SCALE_PER_SECOND, elapsedSeconds);
             if (mScale > 4.0f) {
                 mScale = 1.0f;
                 mExploding = false;
             }
         }
+
+        // Keep moving until the time is up, then draw nothing until woken again.
+        if (mExploding || now < mSpinUntilNanos) {
+            mLastFrameTimeNanos = now;
+            mView.postDelayed(mRequestRender, FRAME_INTERVAL_MS);
+        } else {
+            mLastFrameTimeNanos = 0;
+        }
     }
 
+    private final Runnable mRequestRender = new Runnable() {
+        @Override
+        public void run() {
+            mView.requestRender();
+        }
+    };
+
     public void onSurfaceChanged(GL10 gl, int width, int height) {
          gl.glViewport(0, 0, width, height);
 
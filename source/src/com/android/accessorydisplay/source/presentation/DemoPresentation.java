@@ -61,10 +61,13 @@ public final class DemoPresentation extends Presentation {
         // Inflate the layout.
         setContentView(R.layout.presentation_content);
 
-        // Set up the surface view for visual interest.
-        mRenderer = new CubeRenderer(false);
+        // Set up the surface view for visual interest.  It only draws while the
+        // cubes move so the display can go idle.
         mSurfaceView = (GLSurfaceView)findViewById(R.id.surface_view);
+        mRenderer = new CubeRenderer(mSurfaceView, false);
         mSurfaceView.setRenderer(mRenderer);
+        mSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+        mRenderer.wake();
 
         // Add a button.
         mExplodeButton = (Button)findViewById(R.id.explode_button);
@@ -79,6 +82,7 @@ public final class DemoPresentation extends Presentation {
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         mLogger.log("Received touch event: " + event);
+        mRenderer.wake();
         return super.onTouchEvent(event);
     }
 }
\ No newline at end of file
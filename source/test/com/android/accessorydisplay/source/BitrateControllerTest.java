@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2026 The TcpDisplay Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.accessorydisplay.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BitrateControllerTest {
+    private static final int MBPS = 1000 * 1000;
+
+    @Test
+    public void convergesBelowCapacityAfterStepDown() {
+        final BitrateController controller = new BitrateController(8 * MBPS, MBPS, 10 * MBPS);
+        final Link link = new Link(12 * MBPS);
+        for (int i = 0; i < 40; i++) {
+            link.report(controller, Integer.MAX_VALUE);
+        }
+        assertEquals(10 * MBPS, controller.getBitrate());
+        assertEquals(0, controller.getDecreaseCount());
+
+        link.mCapacity = 3 * MBPS;
+        int reports = 0;
+        while (controller.getBitrate() > link.mCapacity) {
+            link.report(controller, Integer.MAX_VALUE);
+            reports += 1;
+            assertTrue("Did not back off after " + reports + " reports", reports <= 10);
+        }
+
+        // Additive increase probes past the capacity now and then, which costs a
+        // few frames, but the bitrate stays near the capacity.
+        link.mDropCount = 0;
+        long total = 0;
+        for (int i = 0; i < 200; i++) {
+            link.report(controller, Integer.MAX_VALUE);
+            total += controller.getBitrate();
+        }
+        final long average = total / 200;
+        assertTrue("Average " + average + " too high", average <= link.mCapacity);
+        assertTrue("Average " + average + " too low", average >= link.mCapacity * 3 / 5);
+        assertTrue("Dropped frames in " + link.mDropCount + " reports", link.mDropCount <= 5);
+    }
+
+    @Test
+    public void holdsAfterDecrease() {
+        final BitrateController controller = new BitrateController(4 * MBPS, MBPS, 10 * MBPS);
+        assertEquals(2800000, controller.onFeedback(4 * MBPS, 0, 0, true /*framesDropped*/));
+
+        // Fully used and uncongested, but the bitrate holds for two reports.
+        assertEquals(2800000, controller.onFeedback(2800000, 0, 0, false));
+        assertEquals(2800000, controller.onFeedback(2800000, 0, 0, false));
+        assertEquals(3300000, controller.onFeedback(2800000, 0, 0, false));
+        assertEquals(1, controller.getDecreaseCount());
+        assertEquals(1, controller.getIncreaseCount());
+    }
+
+    @Test
+    public void congestionDuringHoldRestartsIt() {
+        final BitrateController controller = new BitrateController(4 * MBPS, MBPS, 10 * MBPS);
+        controller.onFeedback(4 * MBPS, 5 /*decodeBacklog*/, 0, false);
+        controller.onFeedback(2800000, 0, 0, false);
+        assertEquals(1960000, controller.onFeedback(2800000, 5, 0, false));
+        assertEquals(1960000, controller.onFeedback(1960000, 0, 0, false));
+        assertEquals(1960000, controller.onFeedback(1960000, 0, 0, false));
+        assertEquals(2460000, controller.onFeedback(1960000, 0, 0, false));
+    }
+
+    @Test
+    public void staticScreenDoesNotGrow() {
+        final BitrateController controller = new BitrateController(2 * MBPS, MBPS, 10 * MBPS);
+        final Link link = new Link(20 * MBPS);
+        for (int i = 0; i < 100; i++) {
+            // Only a cursor blinks, so little of the bitrate is used.
+            link.report(controller, 100 * 1000);
+        }
+        assertEquals(2 * MBPS, controller.getBitrate());
+        assertEquals(0, controller.getIncreaseCount());
+
+        // Growth resumes once the content uses the bitrate.
+        for (int i = 0; i < 100; i++) {
+            link.report(controller, Integer.MAX_VALUE);
+        }
+        assertEquals(10 * MBPS, controller.getBitrate());
+    }
+
+    @Test
+    public void onlyHighAndRisingJitterBacksOff() {
+        final BitrateController controller = new BitrateController(4 * MBPS, MBPS, 10 * MBPS);
+        assertEquals(4500000, controller.onFeedback(4 * MBPS, 0, 10000, false));
+        assertEquals(3150000, controller.onFeedback(4 * MBPS, 0, 30000, false));
+
+        // High but steady jitter does not back off further.
+        assertEquals(3150000, controller.onFeedback(3150000, 0, 30000, false));
+        assertEquals(3150000, controller.onFeedback(3150000, 0, 30000, false));
+        assertEquals(3650000, controller.onFeedback(3150000, 0, 30000, false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRange() {
+        new BitrateController(MBPS, 2 * MBPS, MBPS);
+    }
+
+    // A bottleneck link fed by an encoder at the controller's bitrate, reporting
+    // what the sink would see every half second.
+    private static final class Link {
+        private static final float REPORT_INTERVAL_S = 0.5f;
+        private static final int FRAME_RATE = 30;
+        private static final int LATENCY_BUDGET_MS = 100;
+
+        public int mCapacity;
+        private double mQueueBits;
+        private int mQueueDelayMs;
+        public int mDropCount;
+
+        public Link(int capacity) {
+            mCapacity = capacity;
+        }
+
+        // Sends content at the bitrate, or less if the content needs less.
+        public void report(BitrateController controller, int contentRate) {
+            final int sendRate = Math.min(controller.getBitrate(), contentRate);
+            mQueueBits += sendRate * REPORT_INTERVAL_S;
+            final double sentBits = Math.min(mQueueBits, mCapacity * REPORT_INTERVAL_S);
+            mQueueBits -= sentBits;
+
+            // The source discards frames that would wait longer than its budget.
+            final double maxQueueBits = (double)mCapacity * LATENCY_BUDGET_MS / 1000;
+            final boolean dropped = mQueueBits > maxQueueBits;
+            if (dropped) {
+                mQueueBits = maxQueueBits;
+                mDropCount += 1;
+            }
+
+            final int lastDelayMs = mQueueDelayMs;
+            mQueueDelayMs = (int)(mQueueBits * 1000 / mCapacity);
+            final double frameBits = Math.max(1, sendRate / FRAME_RATE);
+            final int backlog = (int)(mQueueBits / frameBits);
+            final int jitterUs = Math.max(0, mQueueDelayMs - lastDelayMs) * 1000;
+            controller.onFeedback((int)(sentBits / REPORT_INTERVAL_S), backlog, jitterUs,
+                    dropped);
+        }
+    }
+}